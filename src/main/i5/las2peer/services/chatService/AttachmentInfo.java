@@ -0,0 +1,121 @@
+package i5.las2peer.services.chatService;
+
+import java.io.Serializable;
+
+
+/**
+ *
+ * <p>Data class that is used by the {@link i5.las2peer.services.chatService.ChatService} to describe a shared file.
+ * <br>
+ * The file itself is stored once, in content-addressed chunks, and a
+ * {@link i5.las2peer.services.chatService.ChatRoomMessage} only carries the id of this description. Recipients
+ * download the chunks on demand, so the file is never part of the message fan-out.
+ *
+ */
+public class AttachmentInfo implements Serializable {
+
+	private static final long serialVersionUID = -1587283409962470361L;
+
+	private String fileName;
+	private String chatRoomName;
+	private String[] chunkIds;
+	private int[] chunkSizes;
+	private long size = 0;
+	private long uploaderId;
+
+
+	/**
+	 * Constructor for an {@link i5.las2peer.services.chatService.AttachmentInfo}.
+	 *
+	 * @param fileName the name of the file
+	 * @param chatRoomName the name of the chatroom the file is shared in
+	 * @param chunkIds the ids (content hashes) of the chunks, in file order
+	 * @param chunkSizes the sizes of the chunks in bytes, in file order
+	 * @param uploaderId the id of the user sharing the file
+	 *
+	 */
+	public AttachmentInfo(String fileName, String chatRoomName, String[] chunkIds, int[] chunkSizes, long uploaderId){
+		this.fileName = fileName;
+		this.chatRoomName = chatRoomName;
+		this.chunkIds = chunkIds;
+		this.chunkSizes = chunkSizes;
+		this.uploaderId = uploaderId;
+		for(int chunkSize : chunkSizes)
+			size += chunkSize;
+	}
+
+
+	/**
+	 * Gets the name of the file.
+	 *
+	 * @return A String containing the file name.
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+
+	/**
+	 * Gets the name of the {@link i5.las2peer.services.chatService.ChatRoom} the file is shared in.
+	 * Only its members may download the file.
+	 *
+	 * @return A String containing the chatroom name.
+	 */
+	public String getChatRoomName() {
+		return chatRoomName;
+	}
+
+
+	/**
+	 * Gets the size of the file.
+	 *
+	 * @return The size in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+
+	/**
+	 * Gets the id of the user that shared the file.
+	 *
+	 * @return The user Id.
+	 */
+	public long getUploaderId() {
+		return uploaderId;
+	}
+
+
+	/**
+	 * Gets the number of chunks of the file.
+	 *
+	 * @return A number.
+	 */
+	public int getChunkCount() {
+		return chunkIds.length;
+	}
+
+
+	/**
+	 * Gets the id of a chunk.
+	 *
+	 * @param index the position of the chunk in the file
+	 *
+	 * @return A String containing the content hash of the chunk.
+	 */
+	public String getChunkId(int index) {
+		return chunkIds[index];
+	}
+
+
+	/**
+	 * Gets the size of a chunk.
+	 *
+	 * @param index the position of the chunk in the file
+	 *
+	 * @return The size in bytes.
+	 */
+	public int getChunkSize(int index) {
+		return chunkSizes[index];
+	}
+}
@@ -5,9 +5,17 @@ import i5.las2peer.p2p.AgentNotKnownException;
 import i5.las2peer.p2p.Node;
 import i5.las2peer.security.UserAgent;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -27,8 +35,15 @@ public class ChatRoom implements Serializable{
 	private String roomName;
 	private long adminId;
 	private boolean isPrivate;
-	private List<Long> members = new ArrayList<Long>();
-	private List<Long> invitedAgents; //Only used for private chatrooms
+	private transient MemberSet memberSet = new MemberSet();
+	private transient MemberSet invitedSet; //Only used for private chatrooms
+	private HashMap<String, Long> memberLogins = new HashMap<String, Long>(); //Login name -> id of the members
+	private List<Long> members; //Only set while serializing, in the form nodes of previous versions read
+	private List<Long> invitedAgents; //Only set while serializing, in the form nodes of previous versions read
+	private long lastOperation = 0; //Sequence number of the last logged operation contained in this state
+	private boolean operationLog = false; //Logged operations may follow this snapshot
+	private long version = 0; //Incremented with every store, used to invalidate cached copies at other nodes
+	private transient List<ChatRoomOperation> pendingOperations;
 	
 	
 	/**
@@ -47,8 +62,9 @@ public class ChatRoom implements Serializable{
 		this.isPrivate = isPrivate;
 		this.adminId = admin.getId();
 		if(isPrivate)
-			invitedAgents = new ArrayList<Long>();
-		members.add(admin.getId());
+			invitedSet = new MemberSet();
+		memberSet.add(admin.getId());
+		memberLogins.put(admin.getLoginName(), admin.getId());
 		
 	}
 	
@@ -62,7 +78,7 @@ public class ChatRoom implements Serializable{
 	 * @return True or False.
 	 */
 	public boolean isMember(UserAgent userAgent){
-		return members.contains(userAgent.getId());
+		return memberSet.contains(userAgent.getId());
 	}
 	
 	
@@ -77,7 +93,7 @@ public class ChatRoom implements Serializable{
 	public boolean isInvited(UserAgent userAgent) {
 		if(!isPrivate())
 			return false;
-		return invitedAgents.contains(userAgent.getId());
+		return invitedSet.contains(userAgent.getId());
 	}
 	
 	
@@ -89,7 +105,7 @@ public class ChatRoom implements Serializable{
 	public Long[] getInvitedAgentsIdList(){
 		if(!isPrivate())
 			return null;
-		return invitedAgents.toArray(new Long[0]);
+		return invitedSet.toArray();
 	}
 	
 	
@@ -125,11 +141,25 @@ public class ChatRoom implements Serializable{
 	
 	/**
 	 * Returns a list of Members to this {@link i5.las2peer.services.chatService.ChatRoom}.
+	 * The array is cached until the members change and must not be modified.
 	 * 
-	 * @return An Array of Id's.
+	 * @return An Array of Id's, in the order the members joined.
 	 */
 	public Long[] getMemberIdList(){
-		return members.toArray(new Long[0]);
+		return memberSet.toArray();
+	}
+	
+	
+	/**
+	 * Returns a list of Members to this {@link i5.las2peer.services.chatService.ChatRoom}, reusing the given
+	 * array if it holds the same members. The array must not be modified.
+	 * 
+	 * @param previous an array of Id's returned for another copy of this room, may be null
+	 * 
+	 * @return An Array of Id's, in the order the members joined.
+	 */
+	public Long[] getMemberIdList(Long[] previous){
+		return memberSet.toArray(previous);
 	}
 	
 	
@@ -139,12 +169,19 @@ public class ChatRoom implements Serializable{
 	 * @return An Array of login names.
 	 */
 	public String[] getMemberLoginList(){
-		Long[] members = getMemberIdList();
-		String[] returnArray = new String[members.length];
+		Long[] memberIds = getMemberIdList();
+		String[] returnArray = new String[memberIds.length];
+		Map<Long, String> loginsById = new HashMap<Long, String>();
+		for(Map.Entry<String, Long> entry : memberLogins.entrySet())
+			loginsById.put(entry.getValue(), entry.getKey());
 		
 		for(int i = 0; i < returnArray.length; i++) {
+			returnArray[i] = loginsById.get(memberIds[i]);
+			if(returnArray[i] != null)
+				continue;
 			try {
-				returnArray[i] = ((UserAgent) getActiveNode().getAgent(members[i])).getLoginName();
+				returnArray[i] = ((UserAgent) getActiveNode().getAgent(memberIds[i])).getLoginName();
+				memberLogins.put(returnArray[i], memberIds[i]);
 			} catch (AgentNotKnownException e) {
 				e.printStackTrace();
 			}
@@ -152,13 +189,89 @@ public class ChatRoom implements Serializable{
 		return returnArray;
 	}
 	
+	
+	/**
+	 * Returns the id of the member with the given login name.
+	 * Members whose login name is not indexed yet (they joined through a replayed operation or were stored
+	 * by a previous version) are resolved once and then indexed.
+	 * 
+	 * @param login the login name of the member
+	 * 
+	 * @return The user Id or null, if no member has this login name.
+	 */
+	public Long getMemberId(String login){
+		Long memberId = memberLogins.get(login);
+		if(memberId != null || memberLogins.size() >= memberSet.size())
+			return memberId;
+		Set<Long> indexedIds = new HashSet<Long>(memberLogins.values());
+		for(Long unindexedId : memberSet.toArray()){
+			if(indexedIds.contains(unindexedId))
+				continue;
+			try {
+				String memberLogin = ((UserAgent) getActiveNode().getAgent(unindexedId)).getLoginName();
+				memberLogins.put(memberLogin, unindexedId);
+				if(memberLogin.equals(login))
+					return unindexedId;
+			} catch (AgentNotKnownException e) {
+				e.printStackTrace();
+			}
+		}
+		return null;
+	}
+	
 	/**
 	 * Returns the size of this {@link i5.las2peer.services.chatService.ChatRoom}.
 	 * 
 	 * @return A number.
 	 */
 	public int getSize() {
-		return members.size();
+		return memberSet.size();
+	}
+	
+	
+	/**
+	 * Returns the sequence number of the last logged {@link i5.las2peer.services.chatService.ChatRoomOperation}
+	 * that is contained in this state.
+	 * 
+	 * @return A sequence number, 0 if no operation was logged yet.
+	 */
+	public long getLastOperation() {
+		return lastOperation;
+	}
+	
+	
+	/**
+	 * Returns the version of this {@link i5.las2peer.services.chatService.ChatRoom}, which is incremented
+	 * every time it is stored.
+	 * 
+	 * @return A version number, 0 for a new chatroom.
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	
+	/**
+	 * Determines, if logged operations may follow the stored snapshot of this
+	 * {@link i5.las2peer.services.chatService.ChatRoom}.
+	 * 
+	 * @return True or False.
+	 */
+	public boolean hasOperationLog() {
+		return operationLog;
+	}
+	
+	
+	/**
+	 * Returns the changes of this {@link i5.las2peer.services.chatService.ChatRoom} that have not been
+	 * stored yet.
+	 * 
+	 * @return An array of operations, in the order they were made.
+	 */
+	public ChatRoomOperation[] getPendingOperations() {
+		if(pendingOperations == null)
+			return new ChatRoomOperation[0];
+		return pendingOperations.toArray(new ChatRoomOperation[0]);
 	}
 	
 	/**
@@ -194,6 +307,7 @@ public class ChatRoom implements Serializable{
 	 */
 	public void setAdminId(long adminId){
 		this.adminId = adminId;
+		recordOperation(ChatRoomOperation.Type.SET_ADMIN, adminId);
 	}
 	
 	
@@ -206,9 +320,9 @@ public class ChatRoom implements Serializable{
 	 */
 	public boolean addMember(UserAgent userAgent){
 		if(!isMember(userAgent)){
-			members.add(userAgent.getId());
-			if(isPrivate() && userAgent.getId()!=adminId)
-				invitedAgents.remove(userAgent.getId());
+			addMemberId(userAgent.getId());
+			memberLogins.put(userAgent.getLoginName(), userAgent.getId());
+			recordOperation(ChatRoomOperation.Type.ADD_MEMBER, userAgent.getId());
 			return true;
 		}
 		return false;
@@ -224,7 +338,8 @@ public class ChatRoom implements Serializable{
 	 */
 	public boolean inviteMember(UserAgent userAgent){
 		if(isPrivate() && !isMember(userAgent) && !isInvited(userAgent)){
-			invitedAgents.add(userAgent.getId());
+			invitedSet.add(userAgent.getId());
+			recordOperation(ChatRoomOperation.Type.INVITE_MEMBER, userAgent.getId());
 			return true;
 		}
 		return false;
@@ -240,13 +355,129 @@ public class ChatRoom implements Serializable{
 	 */
 	public boolean removeMember(UserAgent userAgent){
 		if(isMember(userAgent)){
-			members.remove(userAgent.getId());
+			memberSet.remove(userAgent.getId());
+			memberLogins.remove(userAgent.getLoginName());
+			recordOperation(ChatRoomOperation.Type.REMOVE_MEMBER, userAgent.getId());
 			return true;
 		}
 		return false;
 	}
 	
 	
+	/**
+	 * Applies a logged {@link i5.las2peer.services.chatService.ChatRoomOperation} to this
+	 * {@link i5.las2peer.services.chatService.ChatRoom}. Used to rebuild the current state from a snapshot,
+	 * so the operation is not recorded again.
+	 * 
+	 * @param operation the operation to be applied
+	 * @param sequenceNumber the position of the operation in the log
+	 * 
+	 */
+	public void applyOperation(ChatRoomOperation operation, long sequenceNumber){
+		long agentId = operation.getAgentId();
+		switch(operation.getType()){
+		case ADD_MEMBER:
+			if(!memberSet.contains(agentId))
+				addMemberId(agentId);
+			break;
+		case INVITE_MEMBER:
+			if(isPrivate() && !memberSet.contains(agentId))
+				invitedSet.add(agentId);
+			break;
+		case REMOVE_MEMBER:
+			memberSet.remove(agentId);
+			memberLogins.values().remove(agentId);
+			break;
+		case SET_ADMIN:
+			this.adminId = agentId;
+			break;
+		}
+		if(operation.getRoomVersion() > version)
+			this.version = operation.getRoomVersion();
+		this.lastOperation = sequenceNumber;
+	}
+	
+	
+	/**
+	 * Increments the version of this {@link i5.las2peer.services.chatService.ChatRoom} before it is stored.
+	 * 
+	 * @return The new version.
+	 */
+	public long nextVersion(){
+		++version;
+		//Readers replaying the log take the version from the operations, the snapshot keeps its older one
+		if(pendingOperations != null){
+			for(ChatRoomOperation operation : pendingOperations)
+				operation.setRoomVersion(version);
+		}
+		return version;
+	}
+	
+	
+	/**
+	 * Marks the pending changes as stored.
+	 * 
+	 * @param lastOperation the sequence number of the last logged operation contained in this state
+	 * @param operationLog determines, if logged operations may follow this state once it is stored as snapshot
+	 * 
+	 */
+	public void operationsStored(long lastOperation, boolean operationLog){
+		this.lastOperation = lastOperation;
+		this.operationLog = operationLog;
+		this.pendingOperations = null;
+	}
+	
+	
+	private void addMemberId(long agentId){
+		memberSet.add(agentId);
+		if(isPrivate() && agentId!=adminId)
+			invitedSet.remove(agentId);
+	}
+	
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		//The members are written as lists, so nodes of previous versions still read the chatrooms of updated nodes.
+		//Written field by field, since a cached chatroom may be serialized by several threads at once.
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("roomName", roomName);
+		fields.put("adminId", adminId);
+		fields.put("isPrivate", isPrivate);
+		fields.put("memberLogins", memberLogins);
+		fields.put("members", new ArrayList<Long>(Arrays.asList(memberSet.toArray())));
+		fields.put("invitedAgents", invitedSet != null ? new ArrayList<Long>(Arrays.asList(invitedSet.toArray())) : null);
+		fields.put("lastOperation", lastOperation);
+		fields.put("operationLog", operationLog);
+		fields.put("version", version);
+		out.writeFields();
+	}
+	
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		memberSet = new MemberSet();
+		if(members != null){
+			for(Long memberId : members)
+				memberSet.add(memberId);
+			members = null;
+		}
+		if(invitedAgents != null){
+			invitedSet = new MemberSet();
+			for(Long invitedId : invitedAgents)
+				invitedSet.add(invitedId);
+			invitedAgents = null;
+		}
+		if(memberLogins == null)
+			memberLogins = new HashMap<String, Long>();
+	}
+	
+	
+	private void recordOperation(ChatRoomOperation.Type type, long agentId){
+		if(pendingOperations == null)
+			pendingOperations = new ArrayList<ChatRoomOperation>();
+		pendingOperations.add(new ChatRoomOperation(type, agentId));
+	}
+	
+	
 	//Helper methods to get the current node
 	private final L2pThread getL2pThread () {
 		Thread t = Thread.currentThread();
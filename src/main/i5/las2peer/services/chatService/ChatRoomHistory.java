@@ -0,0 +1,225 @@
+package i5.las2peer.services.chatService;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ *
+ * <p>Data class that is used by the {@link i5.las2peer.services.chatService.ChatService} to keep track of the
+ * persisted history of a {@link i5.las2peer.services.chatService.ChatRoom}.<br>
+ * The messages themselves are stored in {@link i5.las2peer.services.chatService.HistorySegment}s of a fixed size,
+ * this index knows which segments exist, how many messages they hold and how old their newest message is.
+ * It also holds the retention policy of the room, so retention is enforced by dropping whole segments.
+ *
+ */
+public class ChatRoomHistory implements Serializable {
+
+	private static final long serialVersionUID = -2874405117361296530L;
+
+	private long retentionAge = 0; //0: use the default of the service
+	private int retentionCount = 0; //0: use the default of the service
+	private long nextSegment = 0;
+	private List<SegmentInfo> segments = new ArrayList<SegmentInfo>(); //Oldest first
+	private long lastCompaction = System.currentTimeMillis();
+
+
+	/**
+	 * Returns the maximum age of the messages of this room.
+	 *
+	 * @return The age in milliseconds, 0 if the default of the service is used.
+	 */
+	public long getRetentionAge() {
+		return retentionAge;
+	}
+
+
+	/**
+	 * Returns the maximum number of messages kept for this room.
+	 *
+	 * @return A number, 0 if the default of the service is used.
+	 */
+	public int getRetentionCount() {
+		return retentionCount;
+	}
+
+
+	/**
+	 * Sets the retention policy of this room.
+	 *
+	 * @param retentionAge the maximum age of the messages in milliseconds, 0 for the default of the service
+	 * @param retentionCount the maximum number of messages, 0 for the default of the service
+	 *
+	 */
+	public void setRetention(long retentionAge, int retentionCount) {
+		this.retentionAge = retentionAge;
+		this.retentionCount = retentionCount;
+	}
+
+
+	/**
+	 * Registers a new message and returns the segment it has to be appended to. A new segment is started
+	 * once the current one is full.
+	 *
+	 * @param timestamp the time the message was sent
+	 * @param segmentSize the maximum number of messages per segment
+	 *
+	 * @return The number of the segment.
+	 */
+	public long append(long timestamp, int segmentSize) {
+		SegmentInfo current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if(current == null || current.count >= segmentSize || current.archived){
+			current = new SegmentInfo(nextSegment++);
+			segments.add(current);
+		}
+		current.count++;
+		current.newest = timestamp;
+		return current.number;
+	}
+
+
+	/**
+	 * Returns the numbers of all segments, newest first.
+	 *
+	 * @return An array of segment numbers.
+	 */
+	public long[] getSegmentsNewestFirst() {
+		long[] numbers = new long[segments.size()];
+		for(int i = 0; i < numbers.length; i++)
+			numbers[i] = segments.get(segments.size() - 1 - i).number;
+		return numbers;
+	}
+
+
+	/**
+	 * Returns the oldest segment following the given one.
+	 *
+	 * @param after the number of a segment, -1 for the oldest segment
+	 *
+	 * @return The number of the segment, -1 if there is none.
+	 */
+	public long getSegmentAfter(long after) {
+		for(SegmentInfo segment : segments){
+			if(segment.number > after)
+				return segment.number;
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Returns the number of messages in all segments.
+	 *
+	 * @return A number.
+	 */
+	public int getMessageCount() {
+		int count = 0;
+		for(SegmentInfo segment : segments)
+			count += segment.count;
+		return count;
+	}
+
+
+	/**
+	 * Removes the segments that are expired under the given policy. A segment expires once its newest message
+	 * is older than the maximum age, or once the newer segments alone hold the maximum number of messages.
+	 *
+	 * @param maxAge the maximum age in milliseconds, 0 for unlimited
+	 * @param maxMessages the maximum number of messages, 0 for unlimited
+	 *
+	 * @return The numbers of the removed segments.
+	 */
+	public long[] expire(long maxAge, int maxMessages) {
+		long now = System.currentTimeMillis();
+		int remaining = getMessageCount();
+		List<Long> removed = new ArrayList<Long>();
+		Iterator<SegmentInfo> iterator = segments.iterator();
+		while(iterator.hasNext()){
+			SegmentInfo segment = iterator.next();
+			boolean tooOld = maxAge > 0 && now - segment.newest > maxAge;
+			boolean tooMany = maxMessages > 0 && remaining - segment.count >= maxMessages;
+			if(!tooOld && !tooMany)
+				break; //Newer segments are neither older nor needed to reach the limit
+			iterator.remove();
+			remaining -= segment.count;
+			removed.add(segment.number);
+		}
+		long[] numbers = new long[removed.size()];
+		for(int i = 0; i < numbers.length; i++)
+			numbers[i] = removed.get(i);
+		return numbers;
+	}
+
+
+	/**
+	 * Returns the segments that are not archived yet, although their newest message is older than the given age.
+	 * The current segment is never archived, since messages are still appended to it.
+	 *
+	 * @param archiveAge the age in milliseconds
+	 *
+	 * @return The numbers of the segments.
+	 */
+	public long[] getArchivable(long archiveAge) {
+		long now = System.currentTimeMillis();
+		List<Long> archivable = new ArrayList<Long>();
+		for(int i = 0; i < segments.size() - 1; i++){
+			SegmentInfo segment = segments.get(i);
+			if(!segment.archived && now - segment.newest > archiveAge)
+				archivable.add(segment.number);
+		}
+		long[] numbers = new long[archivable.size()];
+		for(int i = 0; i < numbers.length; i++)
+			numbers[i] = archivable.get(i);
+		return numbers;
+	}
+
+
+	/**
+	 * Marks a segment as archived.
+	 *
+	 * @param number the number of the segment
+	 *
+	 */
+	public void archived(long number) {
+		for(SegmentInfo segment : segments){
+			if(segment.number == number)
+				segment.archived = true;
+		}
+	}
+
+
+	/**
+	 * Determines, if the last compaction is longer ago than the given interval.
+	 *
+	 * @param interval the interval in milliseconds
+	 *
+	 * @return True or False.
+	 */
+	public boolean isCompactionDue(long interval) {
+		return System.currentTimeMillis() - lastCompaction > interval;
+	}
+
+
+	/**
+	 * Marks this history as compacted.
+	 */
+	public void compacted() {
+		lastCompaction = System.currentTimeMillis();
+	}
+
+
+	private static class SegmentInfo implements Serializable {
+		private static final long serialVersionUID = 7731285071845906443L;
+
+		private final long number;
+		private int count = 0;
+		private long newest = 0;
+		private boolean archived = false;
+
+		private SegmentInfo(long number) {
+			this.number = number;
+		}
+	}
+}
@@ -1,7 +1,12 @@
 package i5.las2peer.services.chatService;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
+import java.util.UUID;
 
 
 /**
@@ -16,11 +21,22 @@ import java.util.Date;
 public class ChatRoomMessage implements Serializable{
 
 	private static final long serialVersionUID = 4158164047266143442L;
+	private static final int FORMAT_PLAIN = 1; //Readable by all versions
+	private static final int FORMAT_COMPRESSED = 2; //The content is only in compressedContent
 	private String content;
 	private long sendById;
 	private Date timestamp;
 	private String inChatRoom;
 	private boolean isPrivate; 
+	private String messageId;
+	private boolean clientMessageId; //False, if the id was generated by the service or written by a previous version
+	private String attachmentId;
+	private long enqueuedAt = 0; //Trace stamp: start of the fan-out at the sending node, 0 if not sent yet
+	private int format = FORMAT_PLAIN; //Only used in the serialized form, 0 if written by a previous version
+	private byte[] compressedContent; //Only used in the serialized form, replaces a large content
+	private transient PayloadCompression compression; //Set by the sending service, null if received
+	private transient byte[] compressed; //Compressed once, even if the message is serialized for many recipients
+	private transient boolean compressionChecked = false;
 	
 	
 	/**
@@ -34,11 +50,48 @@ public class ChatRoomMessage implements Serializable{
 	 * 
 	 */
 	public ChatRoomMessage(String content, long sendById, String chatRoom, boolean isPrivate){
+		this(content, sendById, chatRoom, isPrivate, null);
+	}
+	
+	
+	/**
+	 * Constructor for a {@link i5.las2peer.services.chatService.ChatRoomMessage} with a message id supplied by
+	 * the client. Resending with the same id does not deliver the message twice.
+	 * 
+	 * @param content the message content itself
+	 * @param sendById id of the user this message was sent from
+	 * @param chatRoom the {@link i5.las2peer.services.chatService.ChatRoom} this message is sent from (and to)
+	 * @param isPrivate determines, if this message is a private (sent to only one user) or public message.
+	 * @param messageId id of this message, unique for the sending user, or null to generate one
+	 * 
+	 */
+	public ChatRoomMessage(String content, long sendById, String chatRoom, boolean isPrivate, String messageId){
+		this(content, sendById, chatRoom, isPrivate, messageId, null);
+	}
+	
+	
+	/**
+	 * Constructor for a {@link i5.las2peer.services.chatService.ChatRoomMessage} that refers to a shared file.
+	 * 
+	 * @param content the message content itself, usually describing the file
+	 * @param sendById id of the user this message was sent from
+	 * @param chatRoom the {@link i5.las2peer.services.chatService.ChatRoom} this message is sent from (and to)
+	 * @param isPrivate determines, if this message is a private (sent to only one user) or public message.
+	 * @param messageId id of this message supplied by the client, unique for the sending user, or null to
+	 * generate one
+	 * @param attachmentId id of the {@link i5.las2peer.services.chatService.AttachmentInfo} of the file, or null
+	 * 
+	 */
+	public ChatRoomMessage(String content, long sendById, String chatRoom, boolean isPrivate, String messageId,
+			String attachmentId){
+		this.attachmentId = attachmentId;
 		this.content = content;
 		this.sendById = sendById;
 		this.inChatRoom = chatRoom;
 		this.timestamp = new Date();
 		this.isPrivate = isPrivate;
+		this.clientMessageId = messageId != null;
+		this.messageId = messageId != null ? messageId : UUID.randomUUID().toString();
 	}
 	
 	
@@ -90,4 +143,119 @@ public class ChatRoomMessage implements Serializable{
 	public boolean isPrivate(){
 		return this.isPrivate;
 	}
+	
+	
+	/**
+	 * Gets the id of this {@link i5.las2peer.services.chatService.ChatRoomMessage}. Together with the id of the
+	 * sending user, it identifies the message.
+	 * 
+	 * @return A String containing the id.
+	 */
+	public String getMessageId(){
+		return this.messageId;
+	}
+	
+	
+	/**
+	 * Determines, if the id of this {@link i5.las2peer.services.chatService.ChatRoomMessage} was supplied by the
+	 * client. Only such messages can be resent with the same id.
+	 * 
+	 * @return True or False.
+	 */
+	public boolean hasClientMessageId(){
+		return this.clientMessageId;
+	}
+	
+	
+	/**
+	 * Gets the id of the file this {@link i5.las2peer.services.chatService.ChatRoomMessage} refers to.
+	 * 
+	 * @return A String containing the id of the {@link i5.las2peer.services.chatService.AttachmentInfo}, or null
+	 * if this message has no attachment.
+	 */
+	public String getAttachmentId(){
+		return this.attachmentId;
+	}
+	
+	
+	/**
+	 * Gets the time the fan-out of this {@link i5.las2peer.services.chatService.ChatRoomMessage} started.
+	 * 
+	 * @return The time in milliseconds, 0 if the message was not sent yet.
+	 */
+	public long getEnqueuedAt(){
+		return this.enqueuedAt;
+	}
+	
+	
+	/**
+	 * Stamps the start of the fan-out. A resent message keeps the stamp of its first attempt.
+	 * 
+	 * @return True, if the message was stamped now.
+	 */
+	public synchronized boolean markEnqueued(){
+		if(enqueuedAt != 0)
+			return false;
+		enqueuedAt = System.currentTimeMillis();
+		return true;
+	}
+	
+	
+	/**
+	 * Sets the compression of the sending service, which compresses the content when this
+	 * {@link i5.las2peer.services.chatService.ChatRoomMessage} is serialized. A received message that was
+	 * compressed keeps its compressed content when it is serialized again.
+	 * 
+	 * @param compression the {@link i5.las2peer.services.chatService.PayloadCompression} of the service
+	 * 
+	 */
+	public void setCompression(PayloadCompression compression){
+		this.compression = compression;
+	}
+	
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		byte[] compressedBytes;
+		synchronized(this){
+			if(!compressionChecked && content != null && compression != null
+					&& compression.isWorthCompressing(content.length())){
+				compressed = compression.compress(content.getBytes(StandardCharsets.UTF_8));
+				compressionChecked = true;
+			}
+			compressedBytes = compressed;
+		}
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("format", compressedBytes == null ? FORMAT_PLAIN : FORMAT_COMPRESSED);
+		fields.put("content", compressedBytes == null ? content : null);
+		fields.put("compressedContent", compressedBytes);
+		fields.put("sendById", sendById);
+		fields.put("timestamp", timestamp);
+		fields.put("inChatRoom", inChatRoom);
+		fields.put("isPrivate", isPrivate);
+		fields.put("messageId", messageId);
+		fields.put("clientMessageId", clientMessageId);
+		fields.put("attachmentId", attachmentId);
+		fields.put("enqueuedAt", enqueuedAt);
+		out.writeFields();
+	}
+	
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		if(fields.get("format", 0) >= FORMAT_COMPRESSED){
+			compressed = (byte[]) fields.get("compressedContent", null);
+			compressionChecked = true;
+			content = new String(PayloadCompression.decompress(compressed), StandardCharsets.UTF_8);
+		}
+		else
+			content = (String) fields.get("content", null);
+		sendById = fields.get("sendById", 0L);
+		timestamp = (Date) fields.get("timestamp", null);
+		inChatRoom = (String) fields.get("inChatRoom", null);
+		isPrivate = fields.get("isPrivate", false);
+		messageId = (String) fields.get("messageId", null);
+		clientMessageId = fields.get("clientMessageId", false);
+		attachmentId = (String) fields.get("attachmentId", null);
+		enqueuedAt = fields.get("enqueuedAt", 0L);
+	}
 }
@@ -0,0 +1,105 @@
+package i5.las2peer.services.chatService;
+
+import java.io.Serializable;
+
+
+/**
+ *
+ * <p>Data class that is used by the {@link i5.las2peer.services.chatService.ChatService} to store a single
+ * change of a {@link i5.las2peer.services.chatService.ChatRoom} in its operation log.<br>
+ * Replaying all operations following the last snapshot on that snapshot results in the current
+ * state of the {@link i5.las2peer.services.chatService.ChatRoom}.
+ *
+ */
+public class ChatRoomOperation implements Serializable{
+
+	private static final long serialVersionUID = 6287340192740125391L;
+
+	/**
+	 * The kinds of changes that can be logged.
+	 */
+	public enum Type {ADD_MEMBER, INVITE_MEMBER, REMOVE_MEMBER, SET_ADMIN}
+
+	private Type type;
+	private long agentId;
+	private long roomVersion = 0; //Version of the chatroom this operation was stored with, 0 if logged by a previous version
+	private long sequenceNumber = 0; //Position in the operation log
+
+
+	/**
+	 * Constructor for a {@link i5.las2peer.services.chatService.ChatRoomOperation}. Will be called by the
+	 * {@link i5.las2peer.services.chatService.ChatRoom} each time it is changed.
+	 *
+	 * @param type the kind of change
+	 * @param agentId the id of the agent the change refers to
+	 *
+	 */
+	public ChatRoomOperation(Type type, long agentId){
+		this.type = type;
+		this.agentId = agentId;
+	}
+
+
+	/**
+	 * Gets the kind of this {@link i5.las2peer.services.chatService.ChatRoomOperation}.
+	 *
+	 * @return The type.
+	 */
+	public Type getType() {
+		return type;
+	}
+
+
+	/**
+	 * Gets the id of the agent this {@link i5.las2peer.services.chatService.ChatRoomOperation} refers to.
+	 *
+	 * @return The agent Id.
+	 */
+	public long getAgentId() {
+		return agentId;
+	}
+
+
+	/**
+	 * Gets the version of the {@link i5.las2peer.services.chatService.ChatRoom} this
+	 * {@link i5.las2peer.services.chatService.ChatRoomOperation} was stored with.
+	 *
+	 * @return A version number, 0 if unknown.
+	 */
+	public long getRoomVersion() {
+		return roomVersion;
+	}
+
+
+	/**
+	 * Sets the version of the {@link i5.las2peer.services.chatService.ChatRoom} this
+	 * {@link i5.las2peer.services.chatService.ChatRoomOperation} is stored with.
+	 *
+	 * @param roomVersion the version number
+	 *
+	 */
+	public void setRoomVersion(long roomVersion) {
+		this.roomVersion = roomVersion;
+	}
+
+
+	/**
+	 * Gets the position of this {@link i5.las2peer.services.chatService.ChatRoomOperation} in the operation log.
+	 *
+	 * @return A sequence number, 0 if not logged yet.
+	 */
+	public long getSequenceNumber() {
+		return sequenceNumber;
+	}
+
+
+	/**
+	 * Sets the position of this {@link i5.las2peer.services.chatService.ChatRoomOperation} in the operation log.
+	 *
+	 * @param sequenceNumber the sequence number
+	 *
+	 */
+	public void setSequenceNumber(long sequenceNumber) {
+		this.sequenceNumber = sequenceNumber;
+	}
+}
@@ -12,22 +12,40 @@ import i5.las2peer.security.AgentException;
 import i5.las2peer.security.L2pSecurityException;
 import i5.las2peer.security.Mediator;
 import i5.las2peer.security.UserAgent;
+import i5.las2peer.services.chatService.RoomActivityTracker.DeliveryMode;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
  * 
  * <p>This is a middleware service for LAS2peer that provides methods to run a chat tool in LAS2peer.
- * It is stateless, so there exist no session dependent values and it uses the LAS2peer shared storage
- * for persistence. This makes it possible to run and use the service either at each node that joins a
- * LAS2peer network or to just call the service from a LAS2peer instance that joined a network that
- * contains at least one node hosting this service.<br>
+ * It uses the LAS2peer shared storage for persistence, so there exist no session dependent values and it is
+ * possible to run and use the service either at each node that joins a LAS2peer network or to just call the
+ * service from a LAS2peer instance that joined a network that contains at least one node hosting this service.
+ * Each node keeps some state in memory: caches of chatrooms and lookups, queued writes and batches, the room logs
+ * and events of the rooms it owns, and the background threads writing and sending them. All of it can be rebuilt
+ * from the storage, except for the queued writes (see the properties file), and most of it is disabled by default.<br>
  * This project comes with an additional frontend for the service. If you want to try it locally, please be 
  * aware that you have to disable same origin policy at your browser (for Chrome, this can be achieved by
  * launching from command line with "--disable-web-security"), otherwise the service will 
@@ -57,8 +75,46 @@ import java.util.Random;
  */
 public class ChatService extends Service {
 	private final String knownChatRoomsIdentifier = "KNOWN_CHAT_ROOMS";
+	private static final String CONTINUATION_PREFIX = "CONTINUATION:";
+	private static final long MIN_COMPACTION_DELAY = 60000; //Time between two runs of the compaction timer at least
+	private static final String EXPORT_PREFIX = "EXPORT:";
+	private static final String CHATROOM_PREFIX = "CHATROOM:";
+	private static final String SEARCH_PREFIX = "SEARCH:";
+	private static final String EVENTS_PREFIX = "EVENTS:";
+	private static final String CONFIGURATION_FILE = "etc/" + ChatService.class.getName() + ".properties";
 		
-	private MessageResultListener messageResultListener = null;
+	private volatile ChatServiceConfiguration configuration;
+	private volatile SendScheduler sendSlots;
+	private PayloadCompression compression;
+	private volatile RoomAffinity affinityRing = null;
+	private DeduplicationCache<PendingDelivery> sentMessages;
+	private final ConcurrentHashMap<Long, DeduplicationCache<Boolean>> receivedMessages =
+			new ConcurrentHashMap<Long, DeduplicationCache<Boolean>>();
+	private final PresenceTable presence = new PresenceTable();
+	private final DeferralQueue pendingDeferrals = new DeferralQueue();
+	private final WriteBehindFlusher pendingDeferralsFlusher = new WriteBehindFlusher("flushDeferredMessages");
+	private final Set<Long> spilledAgents = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	private final RoomActivityTracker roomActivity = new RoomActivityTracker();
+	private final RoomBatcher roomBatcher = new RoomBatcher();
+	private final HistoryBuffer pendingHistory = new HistoryBuffer();
+	private final WriteBehindFlusher pendingHistoryFlusher = new WriteBehindFlusher("flushChatRoomHistory");
+	private final WriteBehindFlusher historyCompactor = new WriteBehindFlusher("compactChatRoomHistories");
+	private final Set<String> historyRooms = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private volatile boolean historyRoomsLoaded = false;
+	private final WriteBehindQueue pendingWrites = new WriteBehindQueue();
+	private final WriteBehindFlusher pendingWritesFlusher = new WriteBehindFlusher("flushChatRooms");
+	private final MediatorRegistry mediators = new MediatorRegistry();
+	private final RoomLookupCache roomLookups = new RoomLookupCache();
+	private final RoomNameIndex roomNames = new RoomNameIndex();
+	private final RoomEventBoard roomEvents = new RoomEventBoard();
+	private final DeliveryLatency latency = new DeliveryLatency();
+	private final RoomStateCache roomStates = new RoomStateCache();
+	private final RoomChangeNotifier roomChanges = new RoomChangeNotifier();
+	private final MemberArrayCache memberArrays = new MemberArrayCache();
+	private final ConcurrentHashMap<String, RoomMessageLog> roomLogs = new ConcurrentHashMap<String, RoomMessageLog>();
+	private final LogReaderIndex logReaders = new LogReaderIndex();
+	private final ConcurrentHashMap<Long, List<ChatRoomMessage>> pollOverflow = new ConcurrentHashMap<Long, List<ChatRoomMessage>>();
+	private final ConcurrentHashMap<String, Object> writeLocks = new ConcurrentHashMap<String, Object>();
 	
 	//private final L2pLogger logger = L2pLogger.getInstance(ChatService.class.getName());
 	/**
@@ -66,6 +122,7 @@ public class ChatService extends Service {
 	 */
 	public ChatService(){
 		setFieldValues(); //This sets the values of the property file
+		loadConfiguration();
 	}
 	
 	
@@ -80,14 +137,17 @@ public class ChatService extends Service {
 	 * @return Result of the creation, either that is was created or that its name was already taken.
 	 */
 	public String addChatRoom(String chatRoomName, String isPrivate){
-		ChatRoom chatRoom = findChatRoom(chatRoomName);
+		ChatRoom chatRoom = findChatRoom(chatRoomName, false); //The name has to be checked at the storage
 		if (chatRoom == null){ //Not found
 			chatRoom = new ChatRoom(chatRoomName, Boolean.valueOf(isPrivate), (UserAgent) getContext().getMainAgent());
-			if(addChatRoomToNetwork(chatRoom))
+			if(addChatRoomToNetwork(chatRoom)){
+				roomLookups.added(chatRoomName); //Stored, so it exists even if the directory misses its name
 				if(addChatRoomNameToNetwork(chatRoomName)){
+					roomNames.added(chatRoomName, chatRoom.isPrivate());
 					L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_8, ""+chatRoomName);
 					return "Chatroom " + chatRoomName + " was created!";
 				}
+			}
 			return "Problems during chatroom creation!";
 		}
 		return "Chatroom name " + chatRoomName + " was already taken!";
@@ -128,7 +188,9 @@ public class ChatService extends Service {
 	/**
 	 * Sends a {@link i5.las2peer.services.chatService.ChatRoomMessage} to all users (including the sending one)
 	 * of the given {@link i5.las2peer.services.chatService.ChatRoom}. Has a build in wait mechanism to prevent
-	 * floating the network with new messages.
+	 * floating the network with new messages.<br>
+	 * If room affinity is enabled, the message is forwarded to the node owning the
+	 * {@link i5.las2peer.services.chatService.ChatRoom}, which then does the fan-out.
 	 * 
 	 * @param message a simple text message
 	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the user is currently in
@@ -136,34 +198,135 @@ public class ChatService extends Service {
 	 * @return Success or error message.
 	 */
 	public String sendChatRoomMessage(String message, String chatRoomName) {
+		return sendChatRoomMessage(message, chatRoomName, "");
+	}
+	
+	
+	/**
+	 * Works as {@link #sendChatRoomMessage(String message, String chatRoomName)}, but is idempotent: 
+	 * The client supplies an id for the message and may resend it with the same id, for example after a timeout.
+	 * Members that already received the message will not get it again, so a retry only completes
+	 * a previous partial delivery.
+	 * 
+	 * @param message a simple text message
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the user is currently in
+	 * @param messageId an id chosen by the client, unique for the sending user; if empty, the message
+	 * is not deduplicated
+	 * 
+	 * @return Success or error message.
+	 */
+	public String sendChatRoomMessage(String message, String chatRoomName, String messageId) {
+		return sendViaOwner(message, chatRoomName, messageId, "");
+	}
+	
+	
+	private String sendViaOwner(String message, String chatRoomName, String messageId, String attachmentId) {
+		Object owner = getRoomOwner(chatRoomName);
+		if(owner != null && !owner.equals(getContext().getLocalNode().getNodeId())){
+			try {
+				return (String) invokeAtNode(owner, "deliverChatRoomMessage", message, chatRoomName, messageId, attachmentId);
+			} catch (Exception e) {
+				//Owner not reachable, the next refresh of the ring will drop it. Until then, send from here.
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Forwarding to owner of chatroom " + chatRoomName + " failed! " + e);
+				affinityRing = null;
+			}
+		}
+		return deliverChatRoomMessage(message, chatRoomName, messageId, attachmentId);
+	}
+	
+	
+	/**
+	 * Does the actual fan-out of {@link #sendChatRoomMessage(String message, String chatRoomName, String messageId)}
+	 * at this node. Is invoked at the owning node of the {@link i5.las2peer.services.chatService.ChatRoom} if room
+	 * affinity is enabled and never forwards again, so differing views of the nodes on the ring can not cause loops.
+	 * 
+	 * @param message a simple text message
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the user is currently in
+	 * @param messageId an id chosen by the client or an empty String
+	 * 
+	 * @return Success or error message.
+	 */
+	public String deliverChatRoomMessage(String message, String chatRoomName, String messageId) {
+		return deliverChatRoomMessage(message, chatRoomName, messageId, "");
+	}
+	
+	
+	/**
+	 * Works as {@link #deliverChatRoomMessage(String message, String chatRoomName, String messageId)}, for messages
+	 * that refer to a shared file.
+	 * 
+	 * @param message a simple text message
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the user is currently in
+	 * @param messageId an id chosen by the client or an empty String
+	 * @param attachmentId the id of the shared file or an empty String
+	 * 
+	 * @return Success or error message.
+	 */
+	public String deliverChatRoomMessage(String message, String chatRoomName, String messageId, String attachmentId) {
+		if(attachmentId != null && attachmentId.isEmpty())
+			attachmentId = null;
 		UserAgent sendingAgent = (UserAgent) this.getContext().getMainAgent();
+		updatePresence(sendingAgent.getId());
 		ChatRoom chatRoom = findChatRoom(chatRoomName);
 		if(chatRoom == null){
 			return "Chatroom " + chatRoomName + " does not exist!";
 		}
 		if(chatRoom.isMember(sendingAgent)){
-			ChatRoomMessage chatRoomMessage = new ChatRoomMessage(message, sendingAgent.getId(), chatRoom.getRoomName(), false);
+			PendingDelivery delivery;
+			if(messageId == null || messageId.isEmpty()){
+				delivery = new PendingDelivery(new ChatRoomMessage(message, sendingAgent.getId(), chatRoom.getRoomName(), false,
+						null, attachmentId));
+			}
+			else{
+				//A retry reuses the message (and its timestamp) of the first attempt
+				delivery = new PendingDelivery(new ChatRoomMessage(message, sendingAgent.getId(), chatRoom.getRoomName(), false,
+						messageId, attachmentId));
+				//The client chooses the id, so it is only unique together with the room
+				PendingDelivery previous = sentMessages.putIfAbsent(sendingAgent.getId() + ":" + chatRoom.getRoomName() + ":"
+						+ messageId, delivery);
+				if(previous != null)
+					delivery = previous;
+			}
+			delivery.message.setCompression(compression);
+			if(getConfiguration().isHistoryPersistence() && delivery.markPersisted()){
+				//Only the first attempt is persisted
+				appendToHistory(delivery.message);
+			}
+			if(delivery.message.markEnqueued())
+				latency.record(chatRoom.getRoomName(), DeliveryLatency.Stage.QUEUE,
+						delivery.message.getEnqueuedAt() - delivery.message.getTimestamp().getTime());
+			Long[] memberIds = memberArrays.getMemberIds(chatRoom);
+			ChatServiceEvents.FanOut fanOutEvent = new ChatServiceEvents.FanOut();
+			fanOutEvent.room = chatRoom.getRoomName();
+			fanOutEvent.members = memberIds.length;
+			fanOutEvent.begin();
 			try {
-				Long[] members = chatRoom.getMemberIdList();
-				for(int i = 0; i < members.length; i++){
-					Agent receivingAgent = getContext().getLocalNode().getAgent(members[i]);
-					Message toSend = new Message(sendingAgent, receivingAgent, chatRoomMessage);
-					toSend.setSendingNodeId(getContext().getLocalNode().getNodeId()); //For monitoring, otherwise sending node is not stored (Security/Privacy?)
-					if(messageResultListener == null || messageResultListener.isFinished()){
-						messageResultListener = new MessageResultListener(2000);
-						getContext().getLocalNode().sendMessage(toSend, messageResultListener);
-						L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_2, "" + toSend.getId());
-						messageResultListener.waitForOneAnswer();
-						L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_10, "" + toSend.getId());
-					}
-					else{
-						return "Wait a little, busy!";
-					}
+				ChatServiceConfiguration configuration = getConfiguration();
+				//Only the owner keeps the log of a room, if the owner could not be reached the members get the message directly
+				if(configuration.isSharedLog() && isLocalOwner(chatRoom.getRoomName())){
+					fanOutEvent.mode = "LOG";
+					appendToRoomLog(memberIds, delivery);
+					fanOutEvent.complete = true;
+					return "Message sent!";
+				}
+				if(configuration.isAdaptiveFanOut() && roomActivity.recordMessage(chatRoom.getRoomName(), memberIds.length,
+						configuration.getHotRoomMessageRate(), configuration.getHotRoomMemberCount()) == DeliveryMode.BATCHED){
+					fanOutEvent.mode = "BATCHED";
+					batchToMembers(memberIds, delivery);
+					fanOutEvent.complete = true;
+					return "Message sent!";
 				}
-				return "Message sent!";
+				fanOutEvent.mode = "DIRECT";
+				if(sendToMembers(sendingAgent, memberIds, delivery)){
+					fanOutEvent.complete = true;
+					return "Message sent!";
+				}
+				return "Wait a little, busy!";
 			} catch (Exception e) {
 				e.printStackTrace();
 				return "Problems with sending! Exception: " + e.toString();
+			} finally {
+				fanOutEvent.commit();
 			}
 		}
 		else{
@@ -172,6 +335,32 @@ public class ChatService extends Service {
 	}
 	
 	
+	/**
+	 * Drops the cached state of a {@link i5.las2peer.services.chatService.ChatRoom} at this node, because another
+	 * node stored a new version of it. Only invoked by the service itself.
+	 * 
+	 * @param chatRoomName the name of the changed {@link i5.las2peer.services.chatService.ChatRoom}
+	 * @param version the version that was stored
+	 * 
+	 * @return Success or error message.
+	 */
+	public String invalidateChatRoom(String chatRoomName, String version) {
+		try {
+			if(getContext().getMainAgent().getId() != getAgent().getId()){
+				return "Only the service may invalidate chatrooms!";
+			}
+			roomStates.invalidate(chatRoomName, Long.parseLong(version));
+		} catch (NumberFormatException e) {
+			return "Invalid version!";
+		} catch (AgentNotKnownException e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error invalidating chatroom " + chatRoomName + "! " + e);
+			return "Problems with invalidating the chatroom!";
+		}
+		roomLookups.added(chatRoomName); //A room created at the other node exists now
+		return "Chatroom " + chatRoomName + " invalidated!";
+	}
+	
+	
 	/**
 	 * Sends a private {@link i5.las2peer.services.chatService.ChatRoomMessage}.
 	 * Works as the {@link #sendChatRoomMessage(String message, String chatRoomName)} but without sending to everyone in the chatroom.
@@ -191,27 +380,15 @@ public class ChatService extends Service {
 		}
 		if(chatRoom.isMember(sendingAgent)){
 			ChatRoomMessage chatRoomMessage = new ChatRoomMessage(message, sendingAgent.getId(), chatRoom.getRoomName(), true);
+			chatRoomMessage.setCompression(compression);
 			try {
-				Long[] members = chatRoom.getMemberIdList();
-				for(int i = 0; i < members.length; i++){
-					Agent receivingAgent = getContext().getLocalNode().getAgent(members[i]);
-					if(((UserAgent) receivingAgent).getLoginName().equals(recipientLogin)){
-						Message toSend = new Message(sendingAgent, receivingAgent, chatRoomMessage);
-						//For monitoring, otherwise sending node is not stored (Security/Privacy?)
-						toSend.setSendingNodeId(getContext().getLocalNode().getNodeId());
-						if(messageResultListener == null || messageResultListener.isFinished()){
-							messageResultListener = new MessageResultListener(2000);
-							getContext().getLocalNode().sendMessage(toSend, messageResultListener);
-							L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_1, "" + toSend.getId());
-							messageResultListener.waitForOneAnswer(2000);
-						}
-						else{
-							return "Wait a little, busy!";
-						}
-						return "Message sent!";
-					}
-				}
-				return "User is not in chatroom!";
+				Long recipientId = chatRoom.getMemberId(recipientLogin);
+				if(recipientId == null)
+					return "User is not in chatroom!";
+				chatRoomMessage.markEnqueued();
+				if(sendToMembers(sendingAgent, new Long[] {recipientId}, new PendingDelivery(chatRoomMessage)))
+					return "Message sent!";
+				return "Wait a little, busy!";
 			} catch (Exception e) {
 				e.printStackTrace();
 				return "Problems with sending! Exception: " + e.toString();
@@ -224,454 +401,2690 @@ public class ChatService extends Service {
 	
 	
 	/**
-	 * Returns an array of member login names of the given {@link i5.las2peer.services.chatService.ChatRoom}.
-	 * Either the {@link i5.las2peer.services.chatService.ChatRoom} is private and the calling user is a member,
-	 * or the {@link i5.las2peer.services.chatService.ChatRoom} has to be public. Otherwise this method will return
-	 * an error message.
+	 * Sends an ephemeral event, like a typing indicator, to a {@link i5.las2peer.services.chatService.ChatRoom}.
+	 * Events are not persisted and not delivered as messages. They are kept at the node owning the chatroom for
+	 * "eventLifetime" and only the latest event of each type per user is kept, so sending the same type again
+	 * replaces the previous state. Members read them with {@link #getChatRoomEvents(String chatRoomName, String cursor)}.
 	 * 
-	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the information is requested from
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the user is currently in
+	 * @param type the type of the event, for example "typing"
+	 * @param value the state the event signals, for example "true"
 	 * 
-	 * @return An array of Strings containing all login names. Or an array of size one with the error message.
+	 * @return Success or error message.
 	 */
-	public String[] getMembersOfChatRoom(String chatRoomName){
-		String[] returnArray;
-		UserAgent currentAgent = (UserAgent) getContext().getMainAgent();
-		ChatRoom chatRoom = findChatRoom(chatRoomName);
-		if(chatRoom == null){
-			returnArray = new String[1];
-			returnArray[0] = "Chatroom " + chatRoomName + " does not exist!";
-			return returnArray;			
-		}
-		if(!chatRoom.isPrivate() || chatRoom.isMember(currentAgent)){
-			returnArray = chatRoom.getMemberLoginList();
-			return returnArray;
+	public String sendChatRoomEvent(String chatRoomName, String type, String value) {
+		if(type == null || type.isEmpty() || type.indexOf(':') >= 0){
+			return "The event type must not be empty or contain a colon!";
 		}
-		else{
-			returnArray = new String[1];
-			returnArray[0] = "You are no member of this private chatroom!";
-			return returnArray;
+		Object owner = getRoomOwner(chatRoomName);
+		if(owner != null && !owner.equals(getContext().getLocalNode().getNodeId())){
+			try {
+				return (String) invokeAtNode(owner, "postChatRoomEvent", chatRoomName, type, value);
+			} catch (Exception e) {
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Forwarding event to owner of chatroom " + chatRoomName + " failed! " + e);
+				affinityRing = null;
+			}
 		}
+		return postChatRoomEvent(chatRoomName, type, value);
 	}
 	
 	
 	/**
-	 * Adds a member to the given {@link i5.las2peer.services.chatService.ChatRoom}. A user can only add himself.
+	 * Keeps an event of {@link #sendChatRoomEvent(String chatRoomName, String type, String value)} at this node.
+	 * Is invoked at the owning node of the {@link i5.las2peer.services.chatService.ChatRoom} if room affinity is
+	 * enabled and never forwards again.
 	 * 
-	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} name the user will be added to
-	 * @param agentLogin currently, this has to be the login of the calling user
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the user is currently in
+	 * @param type the type of the event
+	 * @param value the state the event signals
 	 * 
 	 * @return Success or error message.
 	 */
-	public String addMember(String chatRoomName, String agentLogin){
-		ChatRoom chatRoom = findChatRoom(chatRoomName);
-		if(chatRoom == null){
-			return "Chatroom " + chatRoomName + " does not exist!";
-		}
-		UserAgent agentToAdd;
-		try {
-			agentToAdd = (UserAgent) getContext().getLocalNode().getAgent(getContext().getLocalNode().getAgentIdForLogin(agentLogin));
-		} catch (AgentNotKnownException e) {
-			return "There exists no agent with login " + agentLogin + "!";
-		}
-		if(agentToAdd.getId() != getContext().getMainAgent().getId()){
-			return "A user can only add himself to a chatroom. If this chatroom is private, use invite instead!";
+	public String postChatRoomEvent(String chatRoomName, String type, String value) {
+		UserAgent sendingAgent = (UserAgent) getContext().getMainAgent();
+		String error = checkEventAccess(chatRoomName, sendingAgent);
+		if(error != null){
+			return error;
 		}
-		if(!chatRoom.isPrivate() || chatRoom.isInvited(agentToAdd)){
-			if(chatRoom.addMember(agentToAdd)){
-				//Chatroom was empty, add new user as admin
-				if(chatRoom.getSize() == 1){
-					chatRoom.setAdminId(agentToAdd.getId());
-				}
-				if(updateChatRoom(chatRoom)){
-					L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_8, ""+chatRoomName);
-					return "User with login " + agentLogin + " added!";
-				}
+		roomEvents.post(chatRoomName, sendingAgent.getId(), sendingAgent.getLoginName(), type, value == null ? "" : value);
+		return "Event sent!";
+	}
+	
+	
+	/**
+	 * Returns the ephemeral events of a {@link i5.las2peer.services.chatService.ChatRoom} that were sent by other
+	 * members since the last call. The last entry is always a cursor (starting with "EVENTS:") to be passed to the
+	 * next call, the other entries have the form "type:login:value".
+	 * 
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the user is currently in
+	 * @param cursor the cursor returned with the previous call or an empty String for all current events
+	 * 
+	 * @return An array of Strings containing the events and a cursor. Or an array of size one with the error message.
+	 */
+	public String[] getChatRoomEvents(String chatRoomName, String cursor) {
+		Object owner = getRoomOwner(chatRoomName);
+		if(owner != null && !owner.equals(getContext().getLocalNode().getNodeId())){
+			try {
+				return (String[]) invokeAtNode(owner, "readChatRoomEvents", chatRoomName, cursor);
+			} catch (Exception e) {
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Reading events from owner of chatroom " + chatRoomName + " failed! " + e);
+				affinityRing = null;
 			}
-			else{
-				return "User is already member!";
+		}
+		return readChatRoomEvents(chatRoomName, cursor);
+	}
+	
+	
+	/**
+	 * Reads the events of {@link #getChatRoomEvents(String chatRoomName, String cursor)} at this node.
+	 * Is invoked at the owning node of the {@link i5.las2peer.services.chatService.ChatRoom} if room affinity is
+	 * enabled and never forwards again.
+	 * 
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the user is currently in
+	 * @param cursor the cursor returned with the previous call or an empty String for all current events
+	 * 
+	 * @return An array of Strings containing the events and a cursor. Or an array of size one with the error message.
+	 */
+	public String[] readChatRoomEvents(String chatRoomName, String cursor) {
+		long after = 0;
+		if(cursor != null && !cursor.isEmpty()){
+			try {
+				if(!cursor.startsWith(EVENTS_PREFIX))
+					throw new NumberFormatException();
+				after = Long.parseLong(cursor.substring(EVENTS_PREFIX.length()));
+			} catch (NumberFormatException e) {
+				return new String[] {"Invalid cursor!"};
 			}
 		}
-		else{
-			return "This chatroom is private, you have to be invited!";
+		UserAgent requestingAgent = (UserAgent) getContext().getMainAgent();
+		String error = checkEventAccess(chatRoomName, requestingAgent);
+		if(error != null){
+			return new String[] {error};
 		}
-		return "Problems with adding user";
+		List<RoomEventBoard.RoomEvent> events = new ArrayList<RoomEventBoard.RoomEvent>();
+		long sequenceNumber = roomEvents.read(chatRoomName, after, requestingAgent.getId(),
+				getConfiguration().getEventLifetime(), events);
+		List<String> returnEvents = new ArrayList<String>();
+		for(RoomEventBoard.RoomEvent event : events){
+			returnEvents.add(event.toString());
+		}
+		returnEvents.add(EVENTS_PREFIX + sequenceNumber);
+		return returnEvents.toArray(new String[0]);
 	}
 	
 	
 	/**
-	 * Sends out an invitation to the given user. This is only necessary for private chatrooms.
-	 * The calling user has to be a member of the given {@link i5.las2peer.services.chatService.ChatRoom}.
+	 * Checks that the given user may send and read events of a {@link i5.las2peer.services.chatService.ChatRoom}.
+	 * The chatroom is only fetched again once a check is older than "eventLifetime".
 	 * 
-	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the invite will be for
-	 * @param agentLogin the login name of an agent
+	 * @param chatRoomName the name of the {@link i5.las2peer.services.chatService.ChatRoom}
+	 * @param agent the user
 	 * 
-	 * @return Success or error message.
+	 * @return An error message or null, if the user is a member.
 	 */
-	public String inviteUser(String chatRoomName, String agentLogin){
-		UserAgent activeAgent = (UserAgent) getContext().getMainAgent();
+	private String checkEventAccess(String chatRoomName, UserAgent agent) {
+		long lifetime = getConfiguration().getEventLifetime();
+		if(roomEvents.isSweepDue(lifetime))
+			roomEvents.expire(lifetime);
+		if(roomEvents.isVerifiedMember(chatRoomName, agent.getId(), lifetime))
+			return null;
 		ChatRoom chatRoom = findChatRoom(chatRoomName);
 		if(chatRoom == null){
 			return "Chatroom " + chatRoomName + " does not exist!";
 		}
-		UserAgent agentToAdd;
-		try {
-			//Please mind that an UserList update has to happen before any other node can get an agent for its login!
-			agentToAdd = (UserAgent) getContext().getLocalNode().getAgent(getContext().getLocalNode().getAgentIdForLogin(agentLogin));
-		} catch (AgentNotKnownException e) {
-			return "There exists no agent with login " + agentLogin + "!";
+		if(!chatRoom.isMember(agent)){
+			return "You are no member of chatroom " + chatRoomName + "!";
 		}
-		if(!chatRoom.isPrivate()){
-			return "This is a public chatroom. No invites necessary!";
+		roomEvents.verifiedMember(chatRoomName, agent.getId());
+		return null;
+	}
+	
+	
+	/**
+	 * Uploads one chunk of a file that will be shared with {@link #sendAttachment(String chatRoomName, String fileName, String chunkIds)}.
+	 * Chunks are stored under the hash of their content, so a chunk that was uploaded before is not stored again.
+	 * 
+	 * @param data the content of the chunk, Base64 encoded
+	 * 
+	 * @return The id of the chunk or an error message.
+	 */
+	public String uploadAttachmentChunk(String data){
+		byte[] chunk;
+		try {
+			chunk = Base64.getDecoder().decode(data);
+		} catch (IllegalArgumentException e) {
+			return "The chunk has to be Base64 encoded!";
 		}
-		if(chatRoom.isMember(agentToAdd)){
-			return "This agent is already a member!";
+		if(chunk.length == 0 || chunk.length > getConfiguration().getAttachmentChunkSize()){
+			return "A chunk has to contain between 1 and " + getConfiguration().getAttachmentChunkSize() + " bytes!";
 		}
-		if(chatRoom.isMember(activeAgent)){
-			if(chatRoom.inviteMember(agentToAdd)){
-				if(updateChatRoom(chatRoom))
-					return "User with login " + agentLogin + " invited!";
-			}
-			else{
-				return "User is already invited!";
+		String chunkId = hash(chunk) + "-" + chunk.length;
+		try {
+			if(fetchFromNetwork(Integer[].class, getAttachmentSizeEnvelopeId(chunkId)) == null){
+				storeInNetwork(getAttachmentEnvelopeId(chunkId), new byte[][] {chunk});
+				//Written after the chunk, so a recorded size means the chunk is stored
+				storeInNetwork(getAttachmentSizeEnvelopeId(chunkId), new Integer[] {chunk.length});
 			}
+			return chunkId;
+		} catch (Exception e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error storing attachment chunk! " + e);
+			return "Problems with storing the chunk!";
 		}
-		else{
-			return "You are no member of this chatroom!";
-		}
-		return "Problems with inviting member!";
 	}
 	
 	
 	/**
-	 * Removes a member from a {@link i5.las2peer.services.chatService.ChatRoom}. Only the admin can remove
-	 * other members. All other members can only remove themselves.
+	 * Shares an uploaded file in a {@link i5.las2peer.services.chatService.ChatRoom}. The members only receive a
+	 * message referring to the file and download it on demand with
+	 * {@link #downloadAttachment(String attachmentId, String offset, String length)}.
 	 * 
-	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the user will be removed from
-	 * @param agentLogin the login of the user to be removed
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the user is currently in
+	 * @param fileName the name of the file
+	 * @param chunkIds the ids returned for the uploaded chunks, in file order and separated by commas
 	 * 
 	 * @return Success or error message.
 	 */
-	public String removeMember(String chatRoomName, String agentLogin){
-		UserAgent currentAgent = (UserAgent) getContext().getMainAgent();
-		UserAgent agentToRemove;
+	public String sendAttachment(String chatRoomName, String fileName, String chunkIds){
+		UserAgent sendingAgent = (UserAgent) getContext().getMainAgent();
+		if(fileName == null || fileName.isEmpty() || chunkIds == null || chunkIds.isEmpty()){
+			return "Invalid chunk ids!";
+		}
 		ChatRoom chatRoom = findChatRoom(chatRoomName);
-		
 		if(chatRoom == null){
 			return "Chatroom " + chatRoomName + " does not exist!";
 		}
-		try {
-			agentToRemove = (UserAgent) getContext().getLocalNode().getAgent(getContext().getLocalNode().getAgentIdForLogin(agentLogin));
-		} catch (AgentNotKnownException e) {
-			return "There exists no agent with login " + agentLogin + "!";
+		if(!chatRoom.isMember(sendingAgent)){
+			return "You are no member of chatroom " + chatRoomName + "!";
 		}
-		
-		//Own removal always possible
-		if(agentToRemove.getId() == currentAgent.getId()){
-			if(chatRoom.removeMember(agentToRemove)){
-				//If admin was removed and there exists another member
-				//(otherwise the next joining member will become admin)
-				if(chatRoom.getAdminId() == ((UserAgent) agentToRemove).getId() && chatRoom.getSize() != 0){
-					try {
-						Agent newAdmin = getContext().getLocalNode().getAgent(chatRoom.getMemberIdList()[0]);
-						chatRoom.setAdminId(newAdmin.getId());
-					} catch (AgentNotKnownException e) {
-						e.printStackTrace();
-					}
-				}
-				if(updateChatRoom(chatRoom)){
-					L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_9, ""+chatRoomName);
-					return "User Agent with login " + agentLogin + " removed!";
-				}
+		String[] chunks = chunkIds.split(",");
+		int[] chunkSizes = new int[chunks.length];
+		long size = 0;
+		for(int i = 0; i < chunks.length; i++){
+			//The sizes are taken from the records of the stored chunks, the ids are chosen by the client
+			Integer[] chunkSize = fetchFromNetwork(Integer[].class, getAttachmentSizeEnvelopeId(chunks[i]));
+			if(chunkSize == null || chunkSize.length == 0){
+				return "Chunk " + chunks[i] + " was not uploaded!";
 			}
-			else{
-				return "User is no member of chatroom!";
+			chunkSizes[i] = chunkSize[0];
+			size += chunkSizes[i];
+			if(size > getConfiguration().getAttachmentMaxSize()){
+				return "Files can have at most " + getConfiguration().getAttachmentMaxSize() + " bytes!";
 			}
 		}
-		//Only admin can remove other members
-		else if(chatRoom.getAdminId() == currentAgent.getId()){
-			if(chatRoom.removeMember(agentToRemove)){
-				if(updateChatRoom(chatRoom)){
-					L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_9, ""+chatRoomName);
-					return "User Agent with login " + agentLogin + " removed!";
+		AttachmentInfo attachment = new AttachmentInfo(fileName, chatRoom.getRoomName(), chunks, chunkSizes, sendingAgent.getId());
+		//Shared in another chatroom, the same file gets another id
+		String attachmentId = hash((chatRoom.getRoomName() + "\n" + fileName + "\n" + chunkIds).getBytes(StandardCharsets.UTF_8));
+		try {
+			if(fetchFromNetwork(AttachmentInfo[].class, getAttachmentEnvelopeId(attachmentId)) == null)
+				storeInNetwork(getAttachmentEnvelopeId(attachmentId), new AttachmentInfo[] {attachment});
+		} catch (Exception e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error storing attachment! " + e);
+			return "Problems with storing the attachment!";
+		}
+		return sendViaOwner(fileName + " (" + size + " bytes)", chatRoomName, "", attachmentId);
+	}
+	
+	
+	/**
+	 * Returns the description of a shared file to the members of the chatroom it was shared in.
+	 * 
+	 * @param attachmentId the id of the file, as contained in the message it was shared with
+	 * 
+	 * @return An array containing the two values file name and size in bytes. Or an array of size one with the error message.
+	 */
+	public String[] getAttachmentInfo(String attachmentId){
+		AttachmentInfo attachment = findAttachment(attachmentId);
+		if(attachment == null){
+			return new String[] {"Attachment " + attachmentId + " does not exist!"};
+		}
+		String accessError = checkAttachmentAccess(attachmentId, attachment);
+		if(accessError != null){
+			return new String[] {accessError};
+		}
+		return new String[] {attachment.getFileName(), String.valueOf(attachment.getSize())};
+	}
+	
+	
+	/**
+	 * Downloads a range of a shared file. Only the chunks overlapping the range are read.
+	 * Only the members of the chatroom the file was shared in may download it.
+	 * 
+	 * @param attachmentId the id of the file, as contained in the message it was shared with
+	 * @param offset the position of the first byte
+	 * @param length the number of bytes, limited by "attachmentMaxRange"
+	 * 
+	 * @return The bytes of the range, Base64 encoded (shorter at the end of the file). Or an error message.
+	 */
+	public String downloadAttachment(String attachmentId, String offset, String length){
+		AttachmentInfo attachment = findAttachment(attachmentId);
+		if(attachment == null){
+			return "Attachment " + attachmentId + " does not exist!";
+		}
+		String accessError = checkAttachmentAccess(attachmentId, attachment);
+		if(accessError != null){
+			return accessError;
+		}
+		long start;
+		int count;
+		try {
+			start = Long.parseLong(offset);
+			count = Integer.parseInt(length);
+		} catch (NumberFormatException e) {
+			return "Offset and length have to be numbers!";
+		}
+		if(start < 0 || start > attachment.getSize() || count < 1 || count > getConfiguration().getAttachmentMaxRange()){
+			return "Invalid range!";
+		}
+		count = (int) Math.min(count, attachment.getSize() - start);
+		byte[] range = new byte[count];
+		int filled = 0;
+		long chunkStart = 0;
+		for(int i = 0; i < attachment.getChunkCount() && filled < count; i++){
+			long chunkEnd = chunkStart + attachment.getChunkSize(i);
+			if(chunkEnd > start + filled){
+				byte[][] chunk = fetchFromNetwork(byte[][].class, getAttachmentEnvelopeId(attachment.getChunkId(i)));
+				if(chunk == null || chunk.length == 0){
+					return "Chunk " + i + " of attachment " + attachmentId + " is missing!";
 				}
+				int from = (int) (start + filled - chunkStart);
+				int copied = Math.min(chunk[0].length - from, count - filled);
+				System.arraycopy(chunk[0], from, range, filled, copied);
+				filled += copied;
 			}
-			else{
-				return "User is no member of chatroom!";
-			}
-		}
-		else{
-			return "You are no admin, only the admin can remove members!";
+			chunkStart = chunkEnd;
 		}
-		return "Problems with removing member!";
+		return Base64.getEncoder().encodeToString(range);
 	}
 	
 	
 	/**
-	 * Returns all (private and public) new messages of a user.
+	 * Returns an array of member login names of the given {@link i5.las2peer.services.chatService.ChatRoom}.
+	 * Either the {@link i5.las2peer.services.chatService.ChatRoom} is private and the calling user is a member,
+	 * or the {@link i5.las2peer.services.chatService.ChatRoom} has to be public. Otherwise this method will return
+	 * an error message.
 	 * 
-	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the user is currently in
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the information is requested from
 	 * 
-	 * @return An array of Strings containing all new messages. Or an array of size one with the error message.
+	 * @return An array of Strings containing all login names. Or an array of size one with the error message.
 	 */
-	public String[] getNewChatRoomMessages(String chatRoomName){
+	public String[] getMembersOfChatRoom(String chatRoomName){
 		String[] returnArray;
-		UserAgent requestingAgent = (UserAgent) getContext().getMainAgent();
-		
+		UserAgent currentAgent = (UserAgent) getContext().getMainAgent();
 		ChatRoom chatRoom = findChatRoom(chatRoomName);
 		if(chatRoom == null){
 			returnArray = new String[1];
 			returnArray[0] = "Chatroom " + chatRoomName + " does not exist!";
-			return returnArray;
+			return returnArray;			
 		}
-		if(!chatRoom.isMember(requestingAgent)){
-			returnArray = new String[1];
-			returnArray[0] = "You are no member of chatroom " + chatRoomName + "!";
+		if(!chatRoom.isPrivate() || chatRoom.isMember(currentAgent)){
+			returnArray = chatRoom.getMemberLoginList();
 			return returnArray;
 		}
-		 try {
-			 Mediator mediator = getContext().getLocalNode().getOrRegisterLocalMediator(requestingAgent);
-			 if(mediator.hasMessages()){
-				int messageCount = mediator.getNumberOfWaiting();
-				List<String> returnMessages = new ArrayList<String>();
-				for(int i = 0; i < messageCount; i++){
-					Message get = mediator.getNextMessage();
-					get.open(getContext().getLocalNode());
-					ChatRoomMessage chatRoomMessage = (ChatRoomMessage) get.getContent();
-					//This point marks a design decision: Message sending is only
-					//allowed in the current chatroom, not across chatrooms.
-					//Or in other words: A user can only be in one chatroom at a time.
-					if(chatRoomMessage.getInChatRoom().equals(chatRoomName)){
-						String returnMessage;
-						//If needed, these can be filtered out by the front-end and
-						//be replaced with some nicer formatting, of course;-)
-						if(chatRoomMessage.isPrivate()){
-							returnMessage = "<font color='#FF3333'>";
-							returnMessage += "<i>(private)</i> ";
-						}
-						else
-							returnMessage = "<font color='#000033'>";
-						returnMessage += new SimpleDateFormat("dd/MM/yyyy, HH:mm:ss").format(chatRoomMessage.getTimestamp());
-						returnMessage += " ";
-						UserAgent sendingUser = (UserAgent) getContext().getLocalNode().getAgent(chatRoomMessage.getSendById());
-						returnMessage += sendingUser.getLoginName();
-						returnMessage += ": ";
-						returnMessage += chatRoomMessage.getContent();
-						returnMessage += "</font>";
-						returnMessages.add(returnMessage);
-						L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_7, ""+get.getId());
-					}
-				}
-				if(!returnMessages.isEmpty()){
-					return returnMessages.toArray(new String[0]);
-				}
-				else{ //Only received "wrong" messages, meaning not for this chatroom.
-					//Should usually be avoided at front-end stage.
-					returnArray = new String[1];
-					returnArray[0] = "No new messages!";
-					return returnArray;
-				}
-			}
-			else{
-				returnArray = new String[1];
-				returnArray[0] = "No new messages!";
-				return returnArray;
-			}
-		} catch (L2pSecurityException | AgentException e) {
-			e.printStackTrace();
-			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error receiving message! Exception: " + e.toString());
+		else{
 			returnArray = new String[1];
-			returnArray[0] = "Error receiving message! Exception: " + e.toString();
+			returnArray[0] = "You are no member of this private chatroom!";
 			return returnArray;
 		}
 	}
 	
 	
 	/**
-	 * Returns a list of all public {@link i5.las2peer.services.chatService.ChatRoom}s.
+	 * Adds a member to the given {@link i5.las2peer.services.chatService.ChatRoom}. A user can only add himself.
 	 * 
-	 * @return An array of Strings containing all public {@link i5.las2peer.services.chatService.ChatRoom}s.
-	 * Or an array of size one with the message, that no public chatrooms exist.
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} name the user will be added to
+	 * @param agentLogin currently, this has to be the login of the calling user
+	 * 
+	 * @return Success or error message.
 	 */
-	public String[] getPublicChatRooms(){
-		ArrayList<String> chatRoomNames = getChatRoomNamesFromNetwork();
-		ArrayList<String> publicChatRooms = new ArrayList<String>();
-		if(chatRoomNames != null){
-			Iterator<String> iterator = chatRoomNames.iterator();
-			while(iterator.hasNext()){
-				String chatRoomName = iterator.next();
-				ChatRoom chatRoom = findChatRoom(chatRoomName);
+	public String addMember(String chatRoomName, String agentLogin){
+		logReaders.forget(getContext().getMainAgent().getId()); //The log of the room may be kept by another node
+		String answer = changeViaOwner("addMemberAtOwner", chatRoomName, agentLogin);
+		return answer != null ? answer : addMemberAtOwner(chatRoomName, agentLogin);
+	}
+	
+	
+	/**
+	 * Does the change of {@link #addMember(String chatRoomName, String agentLogin)} at this node. Is invoked at the
+	 * owning node of the {@link i5.las2peer.services.chatService.ChatRoom} if room affinity is enabled and never
+	 * forwards again. Changes of the same room are done one after the other.
+	 * 
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} name the user will be added to
+	 * @param agentLogin currently, this has to be the login of the calling user
+	 * 
+	 * @return Success or error message.
+	 */
+	public String addMemberAtOwner(String chatRoomName, String agentLogin){
+		synchronized(getWriteLock(getEnvelopeId(chatRoomName))){
+			ChatRoom chatRoom = findChatRoom(chatRoomName);
+			if(chatRoom == null){
+				return "Chatroom " + chatRoomName + " does not exist!";
+			}
+			UserAgent agentToAdd;
+			try {
+				agentToAdd = (UserAgent) getContext().getLocalNode().getAgent(getContext().getLocalNode().getAgentIdForLogin(agentLogin));
+			} catch (AgentNotKnownException e) {
+				return "There exists no agent with login " + agentLogin + "!";
+			}
+			if(agentToAdd.getId() != getContext().getMainAgent().getId()){
+				return "A user can only add himself to a chatroom. If this chatroom is private, use invite instead!";
+			}
+			if(!chatRoom.isPrivate() || chatRoom.isInvited(agentToAdd)){
+				if(chatRoom.addMember(agentToAdd)){
+					//Chatroom was empty, add new user as admin
+					if(chatRoom.getSize() == 1){
+						chatRoom.setAdminId(agentToAdd.getId());
+					}
+					if(updateChatRoom(chatRoom)){
+						L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_8, ""+chatRoomName);
+						return "User with login " + agentLogin + " added!";
+					}
+				}
+				else{
+					return "User is already member!";
+				}
+			}
+			else{
+				return "This chatroom is private, you have to be invited!";
+			}
+			return "Problems with adding user";
+		}
+	}
+	
+	
+	/**
+	 * Sends out an invitation to the given user. This is only necessary for private chatrooms.
+	 * The calling user has to be a member of the given {@link i5.las2peer.services.chatService.ChatRoom}.
+	 * 
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the invite will be for
+	 * @param agentLogin the login name of an agent
+	 * 
+	 * @return Success or error message.
+	 */
+	public String inviteUser(String chatRoomName, String agentLogin){
+		String answer = changeViaOwner("inviteUserAtOwner", chatRoomName, agentLogin);
+		return answer != null ? answer : inviteUserAtOwner(chatRoomName, agentLogin);
+	}
+	
+	
+	/**
+	 * Does the change of {@link #inviteUser(String chatRoomName, String agentLogin)} at this node. Is invoked at the
+	 * owning node of the {@link i5.las2peer.services.chatService.ChatRoom} if room affinity is enabled and never
+	 * forwards again. Changes of the same room are done one after the other.
+	 * 
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the invite will be for
+	 * @param agentLogin the login name of an agent
+	 * 
+	 * @return Success or error message.
+	 */
+	public String inviteUserAtOwner(String chatRoomName, String agentLogin){
+		synchronized(getWriteLock(getEnvelopeId(chatRoomName))){
+			UserAgent activeAgent = (UserAgent) getContext().getMainAgent();
+			ChatRoom chatRoom = findChatRoom(chatRoomName);
+			if(chatRoom == null){
+				return "Chatroom " + chatRoomName + " does not exist!";
+			}
+			UserAgent agentToAdd;
+			try {
+				//Please mind that an UserList update has to happen before any other node can get an agent for its login!
+				agentToAdd = (UserAgent) getContext().getLocalNode().getAgent(getContext().getLocalNode().getAgentIdForLogin(agentLogin));
+			} catch (AgentNotKnownException e) {
+				return "There exists no agent with login " + agentLogin + "!";
+			}
+			if(!chatRoom.isPrivate()){
+				return "This is a public chatroom. No invites necessary!";
+			}
+			if(chatRoom.isMember(agentToAdd)){
+				return "This agent is already a member!";
+			}
+			if(chatRoom.isMember(activeAgent)){
+				if(chatRoom.inviteMember(agentToAdd)){
+					if(updateChatRoom(chatRoom))
+						return "User with login " + agentLogin + " invited!";
+				}
+				else{
+					return "User is already invited!";
+				}
+			}
+			else{
+				return "You are no member of this chatroom!";
+			}
+			return "Problems with inviting member!";
+		}
+	}
+	
+	
+	/**
+	 * Removes a member from a {@link i5.las2peer.services.chatService.ChatRoom}. Only the admin can remove
+	 * other members. All other members can only remove themselves.
+	 * 
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the user will be removed from
+	 * @param agentLogin the login of the user to be removed
+	 * 
+	 * @return Success or error message.
+	 */
+	public String removeMember(String chatRoomName, String agentLogin){
+		String answer = changeViaOwner("removeMemberAtOwner", chatRoomName, agentLogin);
+		return answer != null ? answer : removeMemberAtOwner(chatRoomName, agentLogin);
+	}
+	
+	
+	/**
+	 * Does the change of {@link #removeMember(String chatRoomName, String agentLogin)} at this node. Is invoked at the
+	 * owning node of the {@link i5.las2peer.services.chatService.ChatRoom} if room affinity is enabled and never
+	 * forwards again. Changes of the same room are done one after the other.
+	 * 
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the user will be removed from
+	 * @param agentLogin the login of the user to be removed
+	 * 
+	 * @return Success or error message.
+	 */
+	public String removeMemberAtOwner(String chatRoomName, String agentLogin){
+		synchronized(getWriteLock(getEnvelopeId(chatRoomName))){
+			UserAgent currentAgent = (UserAgent) getContext().getMainAgent();
+			UserAgent agentToRemove;
+			ChatRoom chatRoom = findChatRoom(chatRoomName);
+		
+			if(chatRoom == null){
+				return "Chatroom " + chatRoomName + " does not exist!";
+			}
+			try {
+				agentToRemove = (UserAgent) getContext().getLocalNode().getAgent(getContext().getLocalNode().getAgentIdForLogin(agentLogin));
+			} catch (AgentNotKnownException e) {
+				return "There exists no agent with login " + agentLogin + "!";
+			}
+		
+			//Own removal always possible
+			if(agentToRemove.getId() == currentAgent.getId()){
+				if(chatRoom.removeMember(agentToRemove)){
+					//If admin was removed and there exists another member
+					//(otherwise the next joining member will become admin)
+					if(chatRoom.getAdminId() == ((UserAgent) agentToRemove).getId() && chatRoom.getSize() != 0){
+						try {
+							Agent newAdmin = getContext().getLocalNode().getAgent(chatRoom.getMemberIdList()[0]);
+							chatRoom.setAdminId(newAdmin.getId());
+						} catch (AgentNotKnownException e) {
+							e.printStackTrace();
+						}
+					}
+					if(updateChatRoom(chatRoom)){
+						L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_9, ""+chatRoomName);
+						return "User Agent with login " + agentLogin + " removed!";
+					}
+				}
+				else{
+					return "User is no member of chatroom!";
+				}
+			}
+			//Only admin can remove other members
+			else if(chatRoom.getAdminId() == currentAgent.getId()){
+				if(chatRoom.removeMember(agentToRemove)){
+					if(updateChatRoom(chatRoom)){
+						L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_9, ""+chatRoomName);
+						return "User Agent with login " + agentLogin + " removed!";
+					}
+				}
+				else{
+					return "User is no member of chatroom!";
+				}
+			}
+			else{
+				return "You are no admin, only the admin can remove members!";
+			}
+			return "Problems with removing member!";
+		}
+	}
+	
+	
+	/**
+	 * Returns all (private and public) new messages of a user.
+	 * If "maxDrainPerPoll" is configured, at most this number of messages is returned, the others are kept for the next poll.
+	 * 
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the user is currently in
+	 * 
+	 * @return An array of Strings containing all new messages. Or an array of size one with the error message.
+	 */
+	public String[] getNewChatRoomMessages(String chatRoomName){
+		return pollChatRoomMessages(chatRoomName, getConfiguration().getMaxDrainPerPoll(), false);
+	}
+	
+	
+	/**
+	 * Returns one page of new messages of a user. At most the given number of messages is returned, the
+	 * remaining ones (also the rest of a batch) stay queued at this node. If there are more messages waiting,
+	 * the last entry of the returned array is a continuation token, starting with "CONTINUATION:". Pass it with
+	 * the next call to get the next page, so response time and memory per call stay bounded for large backlogs.
+	 * 
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the user is currently in
+	 * @param maxMessages the maximum number of messages of this page
+	 * @param continuationToken the token returned with the previous page or an empty String for the first page
+	 * 
+	 * @return An array of Strings containing the new messages and possibly a continuation token.
+	 * Or an array of size one with the error message.
+	 */
+	public String[] getNewChatRoomMessages(String chatRoomName, String maxMessages, String continuationToken){
+		UserAgent requestingAgent = (UserAgent) getContext().getMainAgent();
+		int limit;
+		try {
+			limit = Integer.parseInt(maxMessages);
+		} catch (NumberFormatException e) {
+			limit = 0;
+		}
+		if(limit < 1){
+			return new String[] {"The page size has to be a positive number!"};
+		}
+		if(continuationToken != null && !continuationToken.isEmpty()
+				&& !continuationToken.startsWith(CONTINUATION_PREFIX + Long.toHexString(requestingAgent.getId()) + ".")){
+			return new String[] {"Invalid continuation token!"};
+		}
+		return pollChatRoomMessages(chatRoomName, limit, true);
+	}
+	
+	
+	private String[] pollChatRoomMessages(String chatRoomName, int limit, boolean paged){
+		String[] returnArray;
+		UserAgent requestingAgent = (UserAgent) getContext().getMainAgent();
+		
+		ChatRoom chatRoom = findChatRoom(chatRoomName);
+		if(chatRoom == null){
+			returnArray = new String[1];
+			returnArray[0] = "Chatroom " + chatRoomName + " does not exist!";
+			return returnArray;
+		}
+		if(!chatRoom.isMember(requestingAgent)){
+			returnArray = new String[1];
+			returnArray[0] = "You are no member of chatroom " + chatRoomName + "!";
+			return returnArray;
+		}
+		 try {
+			 boolean cameOnline = updatePresence(requestingAgent.getId());
+			 flushPendingWrites();
+			 List<String> returnMessages = new ArrayList<String>();
+			 ChatServiceConfiguration configuration = getConfiguration();
+			 //Messages taken from the mailboxes beyond the limit are kept for the next page
+			 List<ChatRoomMessage> left = new ArrayList<ChatRoomMessage>();
+			 List<ChatRoomMessage> carried = pollOverflow.remove(requestingAgent.getId());
+			 if(carried != null)
+				 addToPage(returnMessages, left, carried, limit);
+			 List<ChatRoomMessage> deferred = new ArrayList<ChatRoomMessage>();
+			 for(ChatRoomMessage chatRoomMessage : checkDeferredMessages(requestingAgent.getId(), cameOnline)){
+				 if(isFirstReceipt(requestingAgent.getId(), chatRoomMessage)
+						 && chatRoomMessage.getInChatRoom().equals(chatRoomName))
+					 deferred.add(chatRoomMessage);
+			 }
+			 addToPage(returnMessages, left, deferred, limit);
+			 //In shared log mode, chatroom messages are read from the log, only private messages are in the mailbox
+			 int loggedRemaining = 0;
+			 if(configuration.isSharedLog()){
+				 //A full page only asks the log for the number of its messages
+				 int logLimit = limit == 0 ? 0 : (returnMessages.size() < limit ? limit - returnMessages.size() : -1);
+				 for(String entry : readSharedLog(chatRoomName, logLimit)){
+					 if(entry.startsWith(CONTINUATION_PREFIX))
+						 loggedRemaining = Integer.parseInt(entry.substring(entry.lastIndexOf('.') + 1));
+					 else
+						 returnMessages.add(entry);
+				 }
+			 }
+			 Mediator mediator = getMediator(requestingAgent);
+			 if(mediator.hasMessages() && (limit == 0 || returnMessages.size() < limit)){
+				int messageCount = 0;
+				ChatServiceEvents.MediatorDrain drainEvent = new ChatServiceEvents.MediatorDrain();
+				drainEvent.begin();
+				//A message may be a batch of several chatroom messages, the ones beyond the limit are kept
+				while(mediator.hasMessages() && (limit == 0 || returnMessages.size() < limit)){
+					Message get = mediator.getNextMessage();
+					messageCount++;
+					List<ChatRoomMessage> received = new ArrayList<ChatRoomMessage>();
+					for(ChatRoomMessage chatRoomMessage : openChatRoomMessages(get)){
+						//Resent messages that were already received are dropped
+						if(!isFirstReceipt(requestingAgent.getId(), chatRoomMessage))
+							continue;
+						//This point marks a design decision: Message sending is only
+						//allowed in the current chatroom, not across chatrooms.
+						//Or in other words: A user can only be in one chatroom at a time.
+						if(chatRoomMessage.getInChatRoom().equals(chatRoomName))
+							received.add(chatRoomMessage);
+					}
+					if(!received.isEmpty())
+						L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_7, ""+get.getId());
+					addToPage(returnMessages, left, received, limit);
+				}
+				commitDrainEvent(drainEvent, requestingAgent.getId(), messageCount, mediator.getNumberOfWaiting());
+			}
+			if(!left.isEmpty())
+				pollOverflow.put(requestingAgent.getId(), left);
+			int remaining = left.size() + mediator.getNumberOfWaiting() + loggedRemaining;
+			if(paged && remaining > 0){
+				returnMessages.add(CONTINUATION_PREFIX + Long.toHexString(requestingAgent.getId()) + "." + remaining);
+			}
+			if(!returnMessages.isEmpty()){
+				return returnMessages.toArray(new String[0]);
+			}
+			else{ //No messages or only "wrong" messages, meaning not for this chatroom.
+				//Should usually be avoided at front-end stage.
+				returnArray = new String[1];
+				returnArray[0] = "No new messages!";
+				return returnArray;
+			}
+		} catch (L2pSecurityException | AgentException e) {
+			e.printStackTrace();
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error receiving message! Exception: " + e.toString());
+			returnArray = new String[1];
+			returnArray[0] = "Error receiving message! Exception: " + e.toString();
+			return returnArray;
+		}
+	}
+	
+	
+	//Adds the messages to the page as long as it is not full, the others are left for the next page
+	private void addToPage(List<String> page, List<ChatRoomMessage> left, List<ChatRoomMessage> chatRoomMessages, int limit)
+			throws AgentNotKnownException {
+		for(ChatRoomMessage chatRoomMessage : chatRoomMessages){
+			if(limit == 0 || page.size() < limit)
+				page.add(formatReceivedMessage(chatRoomMessage));
+			else
+				left.add(chatRoomMessage);
+		}
+	}
+	
+	
+	/**
+	 * Returns the new messages of a user in all {@link i5.las2peer.services.chatService.ChatRoom}s, so a client only
+	 * has to poll once, no matter in how many chatrooms the user is. Takes the messages from the mailbox once,
+	 * at most "maxDrainPerPoll" if configured. In shared log mode, the logs kept at the service nodes are read as well.
+	 * 
+	 * @return An array of Strings, containing for each chatroom with new messages a line "CHATROOM:" followed by
+	 * the name of the chatroom, followed by its messages and, if more messages of its shared log are waiting,
+	 * a continuation token. Or an array of size one with the error or no new messages message.
+	 */
+	public String[] getNewMessagesForAllRooms(){
+		UserAgent requestingAgent = (UserAgent) getContext().getMainAgent();
+		try {
+			boolean cameOnline = updatePresence(requestingAgent.getId());
+			flushPendingWrites();
+			ChatServiceConfiguration configuration = getConfiguration();
+			Map<String, List<String>> messagesByRoom = new LinkedHashMap<String, List<String>>();
+			for(ChatRoomMessage chatRoomMessage : checkDeferredMessages(requestingAgent.getId(), cameOnline)){
+				if(isFirstReceipt(requestingAgent.getId(), chatRoomMessage))
+					addToRoom(messagesByRoom, chatRoomMessage);
+			}
+			if(configuration.isSharedLog()){
+				addLogEntries(messagesByRoom, readLogs(requestingAgent.getId(), configuration.getMaxDrainPerPoll()));
+				//The logs of the rooms owned by the other nodes are kept there. All nodes are only asked now and then,
+				//otherwise only the nodes that had logs of the user.
+				boolean discover = cameOnline || logReaders.isDiscoveryDue(requestingAgent.getId(),
+						configuration.getServiceNodeRefreshInterval());
+				Object[] nodeIds = discover ? getServiceRing().getNodeIds() : logReaders.getNodes(requestingAgent.getId());
+				Object localNodeId = getContext().getLocalNode().getNodeId();
+				List<Object> readerNodes = new ArrayList<Object>();
+				for(Object nodeId : nodeIds){
+					if(nodeId.equals(localNodeId))
+						continue;
+					try {
+						String[] entries = (String[]) invokeAtNode(nodeId, "readChatRoomLogs",
+								String.valueOf(configuration.getMaxDrainPerPoll()));
+						if(entries.length > 0)
+							readerNodes.add(nodeId);
+						addLogEntries(messagesByRoom, entries);
+					} catch (Exception e) {
+						L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Reading logs at node " + nodeId + " failed! " + e);
+						readerNodes.add(nodeId); //Asked again with the next poll
+					}
+				}
+				if(discover)
+					logReaders.discovered(requestingAgent.getId(), readerNodes);
+			}
+			Mediator mediator = getMediator(requestingAgent);
+			int messageCount = mediator.getNumberOfWaiting();
+			if(configuration.getMaxDrainPerPoll() > 0 && messageCount > configuration.getMaxDrainPerPoll())
+				messageCount = configuration.getMaxDrainPerPoll(); //The remaining messages stay queued for the next poll
+			ChatServiceEvents.MediatorDrain drainEvent = new ChatServiceEvents.MediatorDrain();
+			drainEvent.begin();
+			for(int i = 0; i < messageCount; i++){
+				Message get = mediator.getNextMessage();
+				for(ChatRoomMessage chatRoomMessage : openChatRoomMessages(get)){
+					//Resent messages that were already received are dropped
+					if(isFirstReceipt(requestingAgent.getId(), chatRoomMessage)){
+						addToRoom(messagesByRoom, chatRoomMessage);
+						L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_7, ""+get.getId());
+					}
+				}
+			}
+			commitDrainEvent(drainEvent, requestingAgent.getId(), messageCount, mediator.getNumberOfWaiting());
+			if(messagesByRoom.isEmpty()){
+				return new String[] {"No new messages!"};
+			}
+			List<String> returnMessages = new ArrayList<String>();
+			for(Map.Entry<String, List<String>> room : messagesByRoom.entrySet()){
+				returnMessages.add(CHATROOM_PREFIX + room.getKey());
+				String continuation = null;
+				for(String entry : room.getValue()){
+					if(entry.startsWith(CONTINUATION_PREFIX))
+						continuation = entry; //Follows the messages of the room
+					else
+						returnMessages.add(entry);
+				}
+				if(continuation != null)
+					returnMessages.add(continuation);
+			}
+			return returnMessages.toArray(new String[0]);
+		} catch (L2pSecurityException | AgentException e) {
+			e.printStackTrace();
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error receiving message! Exception: " + e.toString());
+			return new String[] {"Error receiving message! Exception: " + e.toString()};
+		}
+	}
+	
+	
+	private void commitDrainEvent(ChatServiceEvents.MediatorDrain drainEvent, long agentId, int drained, int remaining) {
+		if(drainEvent.shouldCommit()){
+			drainEvent.agentId = agentId;
+			drainEvent.drained = drained;
+			drainEvent.remaining = remaining;
+			drainEvent.commit();
+		}
+	}
+	
+	
+	/**
+	 * Looks up an agent at the node, recorded as flight recorder event.
+	 * 
+	 * @param agentId the id of the agent
+	 * 
+	 * @return The agent.
+	 * 
+	 * @throws AgentNotKnownException if the agent is not known
+	 */
+	private Agent lookupAgent(long agentId) throws AgentNotKnownException {
+		ChatServiceEvents.AgentLookup lookupEvent = new ChatServiceEvents.AgentLookup();
+		lookupEvent.begin();
+		try {
+			Agent agent = getContext().getLocalNode().getAgent(agentId);
+			lookupEvent.found = true;
+			return agent;
+		} finally {
+			if(lookupEvent.shouldCommit()){
+				lookupEvent.agentId = agentId;
+				lookupEvent.commit();
+			}
+		}
+	}
+	
+	
+	private void addLogEntries(Map<String, List<String>> messagesByRoom, String[] entries) {
+		String chatRoomName = null;
+		for(String entry : entries){
+			if(entry.startsWith(CHATROOM_PREFIX)){
+				chatRoomName = entry.substring(CHATROOM_PREFIX.length());
+			}
+			else if(chatRoomName != null){
+				//Rooms without new messages are not listed
+				List<String> roomMessages = messagesByRoom.get(chatRoomName);
+				if(roomMessages == null){
+					roomMessages = new ArrayList<String>();
+					messagesByRoom.put(chatRoomName, roomMessages);
+				}
+				roomMessages.add(entry);
+			}
+		}
+	}
+	
+	
+	private void addToRoom(Map<String, List<String>> messagesByRoom, ChatRoomMessage chatRoomMessage) throws AgentNotKnownException {
+		List<String> roomMessages = messagesByRoom.get(chatRoomMessage.getInChatRoom());
+		if(roomMessages == null){
+			roomMessages = new ArrayList<String>();
+			messagesByRoom.put(chatRoomMessage.getInChatRoom(), roomMessages);
+		}
+		roomMessages.add(formatReceivedMessage(chatRoomMessage));
+	}
+	
+	
+	/**
+	 * Returns the mediator of the given user at this node, registering it if necessary. Also evicts the mediators
+	 * that were not used for "mediatorIdleTimeout", if due.
+	 * 
+	 * @param agent the user
+	 * 
+	 * @return The mediator.
+	 * 
+	 * @throws AgentException if the agent is not known
+	 * @throws L2pSecurityException if the agent is locked
+	 */
+	private Mediator getMediator(UserAgent agent) throws AgentException, L2pSecurityException {
+		Mediator mediator = getContext().getLocalNode().getOrRegisterLocalMediator(agent);
+		mediators.touch(mediator);
+		long idleTimeout = getConfiguration().getMediatorIdleTimeout();
+		if(idleTimeout > 0 && mediators.isSweepDue(idleTimeout))
+			evictIdleMediators(idleTimeout);
+		return mediator;
+	}
+	
+	
+	/**
+	 * Unregisters the mediators that were not used for the given time, so the node does not keep a mediator for
+	 * every user that ever polled. If "spillMediatorBacklog" is enabled, waiting messages are moved to the deferred
+	 * mailbox of the user, which is read with the next poll. Otherwise they are dropped.
+	 * 
+	 * @param idleTimeout the time in milliseconds after which an unused mediator is idle
+	 */
+	private void evictIdleMediators(long idleTimeout) {
+		int spilled = 0;
+		List<Mediator> idle = mediators.takeIdle(idleTimeout);
+		for(Mediator mediator : idle){
+			try {
+				List<ChatRoomMessage> carried = pollOverflow.remove(mediator.getResponsibleForAgentId());
+				logReaders.forget(mediator.getResponsibleForAgentId());
+				receivedMessages.remove(mediator.getResponsibleForAgentId());
+				if(getConfiguration().isSpillMediatorBacklog() && (mediator.hasMessages() || carried != null)){
+					List<ChatRoomMessage> backlog = new ArrayList<ChatRoomMessage>();
+					if(carried != null)
+						backlog.addAll(carried); //Left over by the last page
+					while(mediator.hasMessages())
+						backlog.addAll(Arrays.asList(openChatRoomMessages(mediator.getNextMessage())));
+					if(deferMessages(mediator.getResponsibleForAgentId(), backlog)){
+						spilled += backlog.size();
+						spilledAgents.add(mediator.getResponsibleForAgentId()); //Checked with the next poll at this node
+					}
+				}
+				getContext().getLocalNode().unregisterReceiver(mediator);
+			} catch (Exception e) {
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error evicting mediator of agent "
+						+ mediator.getResponsibleForAgentId() + "! " + e);
+			}
+		}
+		if(!idle.isEmpty())
+			L2pLogger.logEvent(Event.SERVICE_MESSAGE, "Evicted " + idle.size() + " idle mediators, "
+					+ spilled + " waiting messages moved to deferred mailboxes, " + mediators.size() + " remaining");
+	}
+	
+	
+	private ChatRoomMessage[] openChatRoomMessages(Message message) throws L2pSecurityException, AgentException {
+		message.open(getContext().getLocalNode());
+		//Messages of hot chatrooms arrive in batches
+		if(message.getContent() instanceof ChatRoomMessage[])
+			return (ChatRoomMessage[]) message.getContent();
+		return new ChatRoomMessage[] {(ChatRoomMessage) message.getContent()};
+	}
+	
+	
+	/**
+	 * Formats a message that is handed to its recipient and records its send-to-read latency.
+	 * 
+	 * @param chatRoomMessage the message
+	 * 
+	 * @return The formatted message.
+	 * 
+	 * @throws AgentNotKnownException if the sending user is not known
+	 */
+	private String formatReceivedMessage(ChatRoomMessage chatRoomMessage) throws AgentNotKnownException {
+		latency.record(chatRoomMessage.getInChatRoom(), DeliveryLatency.Stage.READ,
+				System.currentTimeMillis() - chatRoomMessage.getTimestamp().getTime());
+		return formatChatRoomMessage(chatRoomMessage);
+	}
+	
+	
+	private String formatChatRoomMessage(ChatRoomMessage chatRoomMessage) throws AgentNotKnownException {
+		String returnMessage;
+		//If needed, these can be filtered out by the front-end and
+		//be replaced with some nicer formatting, of course;-)
+		if(chatRoomMessage.isPrivate()){
+			returnMessage = "<font color='#FF3333'>";
+			returnMessage += "<i>(private)</i> ";
+		}
+		else
+			returnMessage = "<font color='#000033'>";
+		returnMessage += new SimpleDateFormat("dd/MM/yyyy, HH:mm:ss").format(chatRoomMessage.getTimestamp());
+		returnMessage += " ";
+		UserAgent sendingUser = (UserAgent) lookupAgent(chatRoomMessage.getSendById());
+		returnMessage += sendingUser.getLoginName();
+		returnMessage += ": ";
+		returnMessage += chatRoomMessage.getContent();
+		if(chatRoomMessage.getAttachmentId() != null)
+			returnMessage += " <i>(attachment " + chatRoomMessage.getAttachmentId() + ")</i>";
+		returnMessage += "</font>";
+		return returnMessage;
+	}
+	
+	
+	/**
+	 * Reads the new messages of the calling user from the shared log of a {@link i5.las2peer.services.chatService.ChatRoom}
+	 * at this node. Is invoked at the owning node of the {@link i5.las2peer.services.chatService.ChatRoom} if room
+	 * affinity is enabled, since only that node appends to the log.
+	 * 
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the user is currently in
+	 * @param maxMessages the maximum number of messages returned, 0 for unlimited, a negative number to only
+	 * get the continuation token
+	 * 
+	 * @return An array of Strings containing the new messages, followed by a continuation token if more messages
+	 * are waiting. Empty, if the user is no member or there is no log for the chatroom at this node.
+	 */
+	public String[] readChatRoomLog(String chatRoomName, String maxMessages){
+		UserAgent requestingAgent = (UserAgent) getContext().getMainAgent();
+		RoomMessageLog log = roomLogs.get(chatRoomName);
+		ChatRoom chatRoom = findChatRoom(chatRoomName);
+		if(log == null || chatRoom == null || !chatRoom.isMember(requestingAgent))
+			return new String[0];
+		try {
+			List<String> returnMessages = new ArrayList<String>();
+			int limit = Integer.parseInt(maxMessages);
+			if(limit >= 0){
+				for(ChatRoomMessage chatRoomMessage : log.read(requestingAgent.getId(), limit))
+					returnMessages.add(formatReceivedMessage(chatRoomMessage));
+			}
+			int remaining = log.getUnread(requestingAgent.getId());
+			if(remaining > 0)
+				returnMessages.add(CONTINUATION_PREFIX + Long.toHexString(requestingAgent.getId()) + "." + remaining);
+			return returnMessages.toArray(new String[0]);
+		} catch (NumberFormatException | AgentNotKnownException e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error reading log of chatroom " + chatRoomName + "! " + e);
+			return new String[0];
+		}
+	}
+	
+	
+	/**
+	 * Reads the new messages of the calling user from all shared logs kept at this node. Is invoked by
+	 * {@link #getNewMessagesForAllRooms()} at the other service nodes keeping logs of the user, since the log of a
+	 * {@link i5.las2peer.services.chatService.ChatRoom} is kept by its owning node.
+	 * 
+	 * @param maxMessages the maximum number of messages returned per chatroom, 0 for unlimited
+	 * 
+	 * @return An array of Strings, containing for each chatroom whose log the user reads a line "CHATROOM:" followed
+	 * by the name of the chatroom, followed by its new messages and a continuation token if more messages are
+	 * waiting. Empty, if the user reads no log at this node.
+	 */
+	public String[] readChatRoomLogs(String maxMessages){
+		try {
+			return readLogs(getContext().getMainAgent().getId(), Integer.parseInt(maxMessages));
+		} catch (NumberFormatException e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error reading chatroom logs! " + e);
+			return new String[0];
+		}
+	}
+	
+	
+	private String[] readLogs(long agentId, int limit){
+		List<String> returnMessages = new ArrayList<String>();
+		try {
+			for(Map.Entry<String, RoomMessageLog> log : roomLogs.entrySet()){
+				if(!log.getValue().isReader(agentId))
+					continue;
+				//Also listed without new messages, so the caller knows this node keeps logs of the user
+				returnMessages.add(CHATROOM_PREFIX + log.getKey());
+				for(ChatRoomMessage chatRoomMessage : log.getValue().read(agentId, limit))
+					returnMessages.add(formatReceivedMessage(chatRoomMessage));
+				int remaining = log.getValue().getUnread(agentId);
+				if(remaining > 0)
+					returnMessages.add(CONTINUATION_PREFIX + Long.toHexString(agentId) + "." + remaining);
+			}
+		} catch (AgentNotKnownException e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error reading chatroom logs! " + e);
+		}
+		return returnMessages.toArray(new String[0]);
+	}
+	
+	
+	private String[] readSharedLog(String chatRoomName, int limit){
+		Object owner = getRoomOwner(chatRoomName);
+		if(owner != null && !owner.equals(getContext().getLocalNode().getNodeId())){
+			try {
+				return (String[]) invokeAtNode(owner, "readChatRoomLog", chatRoomName, String.valueOf(limit));
+			} catch (Exception e) {
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Reading log at owner of chatroom " + chatRoomName + " failed! " + e);
+				affinityRing = null;
+			}
+		}
+		return readChatRoomLog(chatRoomName, String.valueOf(limit));
+	}
+	
+	
+	/**
+	 * Marks the calling user as online. Polling for new messages does this as well, so this is only
+	 * needed by clients that do not poll regularly.
+	 * 
+	 * @return Success message.
+	 */
+	public String heartbeat(){
+		updatePresence(getContext().getMainAgent().getId());
+		flushPendingWrites();
+		return "Heartbeat received!";
+	}
+	
+	
+	/**
+	 * Returns the login names of the members of the given {@link i5.las2peer.services.chatService.ChatRoom} that are
+	 * currently online, meaning they polled or sent a heartbeat within the presence expiry time at any node.
+	 * The same access rules as for {@link #getMembersOfChatRoom(String chatRoomName)} apply.
+	 * 
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the information is requested from
+	 * 
+	 * @return An array of Strings containing the login names. Or an array of size one with the error message.
+	 */
+	public String[] getOnlineMembers(String chatRoomName){
+		UserAgent currentAgent = (UserAgent) getContext().getMainAgent();
+		ChatRoom chatRoom = findChatRoom(chatRoomName);
+		if(chatRoom == null){
+			return new String[] {"Chatroom " + chatRoomName + " does not exist!"};
+		}
+		if(chatRoom.isPrivate() && !chatRoom.isMember(currentAgent)){
+			return new String[] {"You are no member of this private chatroom!"};
+		}
+		List<String> onlineMembers = new ArrayList<String>();
+		for(Long memberId : chatRoom.getMemberIdList()){
+			if(isOnline(memberId)){
+				try {
+					onlineMembers.add(((UserAgent) getContext().getLocalNode().getAgent(memberId)).getLoginName());
+				} catch (AgentNotKnownException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return onlineMembers.toArray(new String[0]);
+	}
+	
+	
+	/**
+	 * Returns the message latencies of a {@link i5.las2peer.services.chatService.ChatRoom} measured at this node.
+	 * Three stages are reported: "queue" from the creation of a message to the start of its fan-out and "ack" from
+	 * there to the acknowledgement of each recipient, both measured where the message is sent, and "read" from the
+	 * creation of a message to the poll handing it to a recipient, measured where the recipient polls.
+	 * Only members of the chatroom may request this.
+	 * 
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom}
+	 * 
+	 * @return An array of Strings with one line per stage, empty if nothing was measured yet.
+	 * Or an array of size one with the error message.
+	 */
+	public String[] getDeliveryLatency(String chatRoomName){
+		UserAgent requestingAgent = (UserAgent) getContext().getMainAgent();
+		ChatRoom chatRoom = findChatRoom(chatRoomName);
+		if(chatRoom == null){
+			return new String[] {"Chatroom " + chatRoomName + " does not exist!"};
+		}
+		if(!chatRoom.isMember(requestingAgent)){
+			return new String[] {"You are no member of chatroom " + chatRoomName + "!"};
+		}
+		return latency.describe(chatRoomName);
+	}
+	
+	
+	/**
+	 * Returns the latest persisted messages of a {@link i5.las2peer.services.chatService.ChatRoom}.
+	 * Only available if "historyPersistence" is enabled. The same access rules as for
+	 * {@link #getMembersOfChatRoom(String chatRoomName)} apply.
+	 * 
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom} the history is requested from
+	 * @param maxMessages the maximum number of messages returned
+	 * 
+	 * @return An array of Strings containing the messages, oldest first. Or an array of size one with the error message.
+	 */
+	public String[] getChatRoomHistory(String chatRoomName, String maxMessages){
+		UserAgent currentAgent = (UserAgent) getContext().getMainAgent();
+		ChatRoom chatRoom = findChatRoom(chatRoomName);
+		if(chatRoom == null){
+			return new String[] {"Chatroom " + chatRoomName + " does not exist!"};
+		}
+		if(chatRoom.isPrivate() && !chatRoom.isMember(currentAgent)){
+			return new String[] {"You are no member of this private chatroom!"};
+		}
+		int limit;
+		try {
+			limit = Integer.parseInt(maxMessages);
+		} catch (NumberFormatException e) {
+			limit = 0;
+		}
+		if(limit < 1){
+			return new String[] {"The number of messages has to be a positive number!"};
+		}
+		ChatRoomHistory history = fetchHistory(chatRoomName);
+		if(history == null){
+			return new String[] {"No messages in history!"};
+		}
+		try {
+			//Recent segments first, so usually only the newest one or two are read
+			List<String> returnMessages = new ArrayList<String>();
+			for(long segmentNumber : history.getSegmentsNewestFirst()){
+				HistorySegment segment = fetchHistorySegment(chatRoomName, segmentNumber);
+				if(segment == null)
+					continue;
+				ChatRoomMessage[] messages = segment.getMessages();
+				for(int i = messages.length - 1; i >= 0 && returnMessages.size() < limit; i--)
+					returnMessages.add(formatChatRoomMessage(messages[i]));
+				if(returnMessages.size() == limit)
+					break;
+			}
+			if(returnMessages.isEmpty()){
+				return new String[] {"No messages in history!"};
+			}
+			Collections.reverse(returnMessages);
+			return returnMessages.toArray(new String[0]);
+		} catch (Exception e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error reading history of chatroom " + chatRoomName + "! " + e);
+			return new String[] {"Error reading history! Exception: " + e.toString()};
+		}
+	}
+	
+	
+	/**
+	 * Exports the persisted history of a {@link i5.las2peer.services.chatService.ChatRoom}, one segment per call,
+	 * so even very long histories are read with constant memory. Only the admin can export the history.<br>
+	 * The first call is made with an empty token, each following call with the token returned by the previous one.
+	 * An interrupted export can be continued with the last returned token.
+	 * 
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom}
+	 * @param format "NDJSON" or "CSV"
+	 * @param resumeToken an empty String or the token returned by the previous call
+	 * 
+	 * @return An array containing the two values chunk (complete lines) and token for the next chunk, which is empty
+	 * once the export is complete. Or an array of size one with the error message.
+	 */
+	public String[] exportChatRoomHistory(String chatRoomName, String format, String resumeToken){
+		UserAgent currentAgent = (UserAgent) getContext().getMainAgent();
+		ChatRoom chatRoom = findChatRoom(chatRoomName);
+		if(chatRoom == null){
+			return new String[] {"Chatroom " + chatRoomName + " does not exist!"};
+		}
+		if(chatRoom.getAdminId() != currentAgent.getId()){
+			return new String[] {"You are no admin, only the admin can export the history!"};
+		}
+		TranscriptFormat transcriptFormat;
+		try {
+			transcriptFormat = TranscriptFormat.valueOf(format.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return new String[] {"Unknown format " + format + "!"};
+		}
+		long after = -1;
+		if(resumeToken != null && !resumeToken.isEmpty()){
+			try {
+				if(!resumeToken.startsWith(EXPORT_PREFIX))
+					throw new NumberFormatException();
+				after = Long.parseLong(resumeToken.substring(EXPORT_PREFIX.length()));
+			} catch (NumberFormatException e) {
+				return new String[] {"Invalid resume token!"};
+			}
+		}
+		ChatRoomHistory history = fetchHistory(chatRoomName);
+		if(history == null){
+			return new String[] {"No messages in history!"};
+		}
+		StringBuilder chunk = new StringBuilder(after < 0 ? transcriptFormat.getHeader() : "");
+		long segmentNumber = history.getSegmentAfter(after);
+		if(segmentNumber < 0){
+			return new String[] {chunk.toString(), ""};
+		}
+		try {
+			HistorySegment segment = fetchHistorySegment(chatRoomName, segmentNumber);
+			if(segment != null){
+				Map<Long, String> logins = new HashMap<Long, String>();
+				for(ChatRoomMessage chatRoomMessage : segment.getMessages()){
+					String login = logins.get(chatRoomMessage.getSendById());
+					if(login == null){
+						login = ((UserAgent) getContext().getLocalNode().getAgent(chatRoomMessage.getSendById())).getLoginName();
+						logins.put(chatRoomMessage.getSendById(), login);
+					}
+					chunk.append(transcriptFormat.format(chatRoomMessage, login));
+				}
+			}
+		} catch (Exception e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error exporting history of chatroom " + chatRoomName + "! " + e);
+			return new String[] {"Error exporting history! Exception: " + e.toString()};
+		}
+		String nextToken = history.getSegmentAfter(segmentNumber) < 0 ? "" : EXPORT_PREFIX + segmentNumber;
+		return new String[] {chunk.toString(), nextToken};
+	}
+	
+	
+	/**
+	 * Sets the retention policy of the history of a {@link i5.las2peer.services.chatService.ChatRoom}.
+	 * Only the admin can change it. Messages beyond the policy are dropped by the next compaction.
+	 * 
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom}
+	 * @param maxAge the maximum age of the messages in milliseconds, 0 for the default of the service
+	 * @param maxMessages the maximum number of messages kept, 0 for the default of the service
+	 * 
+	 * @return Success or error message.
+	 */
+	public String setChatRoomRetention(String chatRoomName, String maxAge, String maxMessages){
+		String answer = changeViaOwner("setChatRoomRetentionAtOwner", chatRoomName, maxAge, maxMessages);
+		return answer != null ? answer : setChatRoomRetentionAtOwner(chatRoomName, maxAge, maxMessages);
+	}
+	
+	
+	/**
+	 * Does the change of {@link #setChatRoomRetention(String chatRoomName, String maxAge, String maxMessages)} at
+	 * this node. Is invoked at the owning node of the {@link i5.las2peer.services.chatService.ChatRoom} if room
+	 * affinity is enabled, which also writes its history, and never forwards again.
+	 * 
+	 * @param chatRoomName the {@link i5.las2peer.services.chatService.ChatRoom}
+	 * @param maxAge the maximum age of the messages in milliseconds, 0 for the default of the service
+	 * @param maxMessages the maximum number of messages kept, 0 for the default of the service
+	 * 
+	 * @return Success or error message.
+	 */
+	public String setChatRoomRetentionAtOwner(String chatRoomName, String maxAge, String maxMessages){
+		UserAgent currentAgent = (UserAgent) getContext().getMainAgent();
+		ChatRoom chatRoom = findChatRoom(chatRoomName);
+		if(chatRoom == null){
+			return "Chatroom " + chatRoomName + " does not exist!";
+		}
+		if(chatRoom.getAdminId() != currentAgent.getId()){
+			return "You are no admin, only the admin can change the retention!";
+		}
+		long retentionAge;
+		int retentionCount;
+		try {
+			retentionAge = Long.parseLong(maxAge);
+			retentionCount = Integer.parseInt(maxMessages);
+		} catch (NumberFormatException e) {
+			return "Retention values have to be numbers!";
+		}
+		if(retentionAge < 0 || retentionCount < 0){
+			return "Retention values must not be negative!";
+		}
+		synchronized(getWriteLock(getHistoryEnvelopeId(chatRoomName))){
+			ChatRoomHistory history = fetchHistory(chatRoomName);
+			if(history == null)
+				history = new ChatRoomHistory();
+			history.setRetention(retentionAge, retentionCount);
+			try {
+				storeInNetwork(getHistoryEnvelopeId(chatRoomName), new ChatRoomHistory[] {history});
+			} catch (Exception e) {
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error storing retention of chatroom " + chatRoomName + "! " + e);
+				return "Problems with storing the retention!";
+			}
+		}
+		return "Retention of chatroom " + chatRoomName + " set!";
+	}
+	
+	
+	/**
+	 * Returns a list of all public {@link i5.las2peer.services.chatService.ChatRoom}s.
+	 * 
+	 * @return An array of Strings containing all public {@link i5.las2peer.services.chatService.ChatRoom}s.
+	 * Or an array of size one with the message, that no public chatrooms exist.
+	 */
+	public String[] getPublicChatRooms(){
+		ArrayList<String> chatRoomNames = getChatRoomNamesFromNetwork();
+		ArrayList<String> publicChatRooms = new ArrayList<String>();
+		if(chatRoomNames != null){
+			Iterator<String> iterator = chatRoomNames.iterator();
+			while(iterator.hasNext()){
+				String chatRoomName = iterator.next();
+				ChatRoom chatRoom = findChatRoom(chatRoomName);
 				if(!chatRoom.isPrivate())
 					publicChatRooms.add(chatRoomName);
 			}
 		}
-		else{
-			publicChatRooms.add("No public chatrooms created yet!");
+		else{
+			publicChatRooms.add("No public chatrooms created yet!");
+		}
+		if(publicChatRooms.isEmpty()) //Only private chatrooms..
+			publicChatRooms.add("No public chatrooms created yet!");
+	    return publicChatRooms.toArray(new String[publicChatRooms.size()]);
+	}
+	
+	
+	/**
+	 * Searches the public {@link i5.las2peer.services.chatService.ChatRoom}s by the beginning of their name.
+	 * The names are returned in alphabetical order, page by page. If more names match, the last entry is a
+	 * cursor (starting with "SEARCH:") that returns the next page when passed to the next call.
+	 * 
+	 * @param prefix the beginning of the names, an empty String matches all public chatrooms
+	 * @param maxResults the maximum number of names of this page
+	 * @param cursor the cursor returned with the previous page or an empty String for the first page
+	 * 
+	 * @return An array of Strings containing the names and possibly a cursor, empty if no name matches.
+	 * Or an array of size one with the error message.
+	 */
+	public String[] findChatRooms(String prefix, String maxResults, String cursor){
+		int limit;
+		try {
+			limit = Integer.parseInt(maxResults);
+		} catch (NumberFormatException e) {
+			limit = 0;
+		}
+		if(limit < 1){
+			return new String[] {"The page size has to be a positive number!"};
+		}
+		String after = null;
+		if(cursor != null && !cursor.isEmpty()){
+			if(!cursor.startsWith(SEARCH_PREFIX)){
+				return new String[] {"Invalid cursor!"};
+			}
+			after = cursor.substring(SEARCH_PREFIX.length());
+		}
+		if(prefix == null)
+			prefix = "";
+		if(roomNames.isRebuildDue(getConfiguration().getRoomIndexRefresh())){
+			ArrayList<String> chatRoomNames = getChatRoomNamesFromNetwork();
+			if(chatRoomNames != null){
+				for(String chatRoomName : roomNames.getUnclassified(chatRoomNames)){
+					ChatRoom chatRoom = findChatRoom(chatRoomName);
+					if(chatRoom != null)
+						roomNames.classify(chatRoomName, chatRoom.isPrivate());
+				}
+				roomNames.rebuild(chatRoomNames);
+			}
+		}
+		List<String> found = roomNames.find(prefix, after, limit);
+		if(found.size() > limit){
+			found = new ArrayList<String>(found.subList(0, limit));
+			found.add(SEARCH_PREFIX + found.get(limit - 1));
+		}
+		return found.toArray(new String[0]);
+	}
+	
+	
+	/**
+	 * Returns a list of all private {@link i5.las2peer.services.chatService.ChatRoom}s
+	 * the user has been invited to.
+	 * 
+	 * @return An array of Strings containing all private {@link i5.las2peer.services.chatService.ChatRoom}s.
+	 * Or an array of size one with the message, that no private chatrooms exist.
+	 */
+	public String[] getPrivateChatRooms(){
+		UserAgent requestingAgent = (UserAgent) getContext().getMainAgent();
+		ArrayList<String> chatRoomNames = getChatRoomNamesFromNetwork();
+		ArrayList<String> privateChatRooms = new ArrayList<String>();
+		if(chatRoomNames != null){
+			Iterator<String> iterator = chatRoomNames.iterator();
+			while(iterator.hasNext()){
+				String chatRoomName = iterator.next();
+				ChatRoom chatRoom = findChatRoom(chatRoomName);
+				if(chatRoom.isPrivate() && chatRoom.isInvited(requestingAgent)){
+					privateChatRooms.add(chatRoomName);
+				}
+			}
+		}
+		else{
+			privateChatRooms.add("You have no invites!"); //No chatRooms
+		}
+		if(privateChatRooms.isEmpty()) //No invites
+			privateChatRooms.add("You have no invites!");
+	    return privateChatRooms.toArray(new String[privateChatRooms.size()]);
+	}
+	
+	
+	/**
+	 * Stores the changes of a {@link i5.las2peer.services.chatService.ChatRoom}. If the operation log is enabled,
+	 * only the pending operations are appended to the log of the room and a complete snapshot is written
+	 * once the log is longer than "operationLogCompaction" operations. Otherwise, the complete room is stored.
+	 * With write-behind, the room is only queued, so success does not mean it is stored yet.
+	 * 
+	 * @param chatRoom the changed {@link i5.las2peer.services.chatService.ChatRoom}
+	 * 
+	 * @return True, if successful.
+	 */
+	private boolean updateChatRoom(ChatRoom chatRoom) {
+		ChatServiceConfiguration configuration = getConfiguration();
+		if(configuration.isWriteBehind() && !configuration.isOperationLog()){
+			try {
+				pendingWrites.put(chatRoom, configuration.getWriteBehindWindow());
+				scheduleFlush(configuration.getWriteBehindWindow());
+				return true;
+			} catch (IOException e) {
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error queueing chatroom " + chatRoom.getRoomName() + "! " + e);
+				//Write it directly instead
+			}
+		}
+		return storeChatRoom(chatRoom);
+	}
+	
+	
+	/**
+	 * Writes the chatrooms of the write-behind queue whose write window is over. Is invoked by the timer of the
+	 * queue at this node, so changes are written even if no user polls here. Only invoked by the service itself.
+	 * 
+	 * @return Success or error message.
+	 */
+	public String flushChatRooms() {
+		try {
+			if(getContext().getMainAgent().getId() != getAgent().getId()){
+				return "Only the service may flush chatrooms!";
+			}
+		} catch (AgentNotKnownException e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error flushing chatrooms! " + e);
+			return "Problems with flushing the chatrooms!";
+		}
+		flushPendingWrites();
+		return "Chatrooms flushed!";
+	}
+	
+	
+	/**
+	 * Writes the chatrooms of the write-behind queue whose write window is over. Runs with the polls and heartbeats
+	 * of the users and with the timer of the queue, since the storage can only be accessed while handling a request.
+	 */
+	private void flushPendingWrites() {
+		if(pendingWrites.isEmpty())
+			return;
+		ChatServiceConfiguration configuration = getConfiguration();
+		boolean failed = false;
+		for(WriteBehindQueue.DueWrite write : pendingWrites.takeDue()){
+			if(storeChatRoom(write.getChatRoom())){
+				pendingWrites.written(write);
+			}
+			else{
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Write-behind of chatroom " + write.getChatRoom().getRoomName()
+						+ " failed, retrying later!");
+				pendingWrites.failed(write, configuration.getWriteBehindRetryInterval());
+				failed = true;
+			}
+		}
+		if(!pendingWrites.isEmpty())
+			scheduleFlush(failed ? configuration.getWriteBehindRetryInterval() : configuration.getWriteBehindWindow());
+	}
+	
+	
+	private void scheduleFlush(long delay) {
+		try {
+			pendingWritesFlusher.schedule(delay, getContext().getLocalNode(), getAgent());
+		} catch (AgentNotKnownException e) {
+			//Written with the next poll or heartbeat at this node
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error scheduling write-behind! " + e);
+		}
+	}
+	
+	
+	private boolean storeChatRoom(ChatRoom chatRoom) {
+		ChatServiceEvents.RoomStore storeEvent = new ChatServiceEvents.RoomStore();
+		storeEvent.begin();
+		storeEvent.operations = chatRoom.getPendingOperations().length;
+		chatRoom.nextVersion();
+		boolean stored = writeChatRoom(chatRoom);
+		if(stored){
+			if(getConfiguration().getRoomCacheTTL() > 0)
+				roomStates.put(chatRoom);
+			notifyRoomChange(chatRoom);
+		}
+		else{
+			roomStates.remove(chatRoom.getRoomName()); //The stored state is not known
+		}
+		if(storeEvent.shouldCommit()){
+			storeEvent.room = chatRoom.getRoomName();
+			storeEvent.members = chatRoom.getSize();
+			storeEvent.success = stored;
+			storeEvent.commit();
+		}
+		return stored;
+	}
+	
+	
+	private boolean writeChatRoom(ChatRoom chatRoom) {
+		if(!getConfiguration().isOperationLog()){
+			return storeChatRoomSnapshot(chatRoom, false);
+		}
+		ChatRoomOperation[] operations = chatRoom.getPendingOperations();
+		if(!chatRoom.hasOperationLog() || operations.length == 0){
+			//Readers only look for logged operations if the snapshot tells them so, so the log has to exist before
+			if(!chatRoom.hasOperationLog() && findChatRoomOperations(chatRoom.getRoomName()) == null){
+				try {
+					storeInNetwork(getOperationLogEnvelopeId(chatRoom.getRoomName()), new ChatRoomOperation[0]);
+				} catch (Exception e) {
+					L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error creating operation log of chatroom " + chatRoom.getRoomName() + "! " + e);
+					return false;
+				}
+			}
+			return storeChatRoomSnapshot(chatRoom, true);
+		}
+		String chatRoomName = chatRoom.getRoomName();
+		synchronized(getWriteLock(getEnvelopeId(chatRoomName))){
+			ChatRoomOperation[] logged = findChatRoomOperations(chatRoomName);
+			if(logged == null){
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Operation log of chatroom " + chatRoomName + " not found!");
+				return false;
+			}
+			ChatRoomOperation[] appended = OperationLog.append(logged, operations, chatRoom.getLastOperation());
+			if(appended == null){
+				//Another node appended, so this change was based on an outdated state (only if the owner changed)
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Concurrent update of chatroom " + chatRoomName + "!");
+				return false;
+			}
+			long lastOperation = OperationLog.getLastSequence(appended);
+			try {
+				storeInNetwork(getOperationLogEnvelopeId(chatRoomName), appended);
+			} catch (Exception e) {
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error logging chatroom operation! " + e);
+				e.printStackTrace();
+				return false;
+			}
+			chatRoom.operationsStored(lastOperation, true);
+			L2pLogger.logEvent(Event.SERVICE_MESSAGE, "Logged operation " + lastOperation + " of chatroom " + chatRoomName);
+			if(appended.length > getConfiguration().getOperationLogCompaction() && storeChatRoomSnapshot(chatRoom, true)){
+				//Compaction: readers start replaying from here. The last operation stays, so the log still tells its end.
+				try {
+					storeInNetwork(getOperationLogEnvelopeId(chatRoomName), OperationLog.compact(appended));
+				} catch (Exception e) {
+					//Readers skip the operations contained in the snapshot, so this only makes reading a little longer
+					L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error compacting operation log of chatroom " + chatRoomName + "! " + e);
+				}
+			}
+		}
+		return true;
+	}
+	
+	
+	private boolean storeChatRoomSnapshot(ChatRoom chatRoom, boolean withOperationLog) {
+		try {
+			long randomLong = new Random().nextLong(); //To be able to match chatroom search and found pairs
+			L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_5, ""+randomLong);
+			Envelope chatRoomEnvelope = getContext().getStoredObject(ChatRoom[].class, getEnvelopeId (chatRoom.getRoomName()));
+			chatRoomEnvelope.open(getAgent());
+			L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_6, ""+randomLong);
+			chatRoom.operationsStored(chatRoom.getLastOperation(), withOperationLog);
+			ChatRoom[] chatRoomArray = new ChatRoom[1];
+			chatRoomArray[0] = chatRoom;
+			chatRoomEnvelope.updateContent ( chatRoomArray );
+			chatRoomEnvelope.addSignature(getAgent());
+			chatRoomEnvelope.store();
+			L2pLogger.logEvent(Event.SERVICE_MESSAGE, "Updated chatroom " + chatRoom.getRoomName());
+			return true;
+		} catch (Exception e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error updating chatroom! " + e);
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	
+	private ChatRoom findChatRoom(String chatRoomName) {
+		return findChatRoom(chatRoomName, true);
+	}
+	
+	
+	/**
+	 * Returns a {@link i5.las2peer.services.chatService.ChatRoom} from the shared storage.
+	 * 
+	 * @param chatRoomName the name of the room
+	 * @param useLookupCache determines, if rooms known not to exist are answered without asking the storage
+	 * 
+	 * @return The room or null, if it does not exist.
+	 */
+	private ChatRoom findChatRoom(String chatRoomName, boolean useLookupCache) {
+		ChatServiceEvents.RoomFetch fetchEvent = new ChatServiceEvents.RoomFetch();
+		fetchEvent.begin();
+		ChatRoom chatRoom = loadChatRoom(chatRoomName, useLookupCache, fetchEvent);
+		if(fetchEvent.shouldCommit()){
+			fetchEvent.room = chatRoomName;
+			fetchEvent.found = chatRoom != null;
+			fetchEvent.members = chatRoom != null ? chatRoom.getSize() : 0;
+			fetchEvent.commit();
+		}
+		return chatRoom;
+	}
+	
+	
+	private ChatRoom loadChatRoom(String chatRoomName, boolean useLookupCache, ChatServiceEvents.RoomFetch fetchEvent) {
+		ChatRoom chatRoom = pendingWrites.get(chatRoomName);
+		if(chatRoom != null){
+			fetchEvent.source = "pending";
+			return chatRoom; //Changed at this node, but not written yet
+		}
+		long roomCacheTTL = getConfiguration().getRoomCacheTTL();
+		if(roomCacheTTL > 0){
+			chatRoom = roomStates.get(chatRoomName, roomCacheTTL);
+			if(chatRoom != null){
+				fetchEvent.source = "memory";
+				return chatRoom;
+			}
+		}
+		long negativeLookupTTL = getConfiguration().getNegativeLookupTTL();
+		if(useLookupCache && negativeLookupTTL > 0 && roomLookups.isKnownMissing(chatRoomName, negativeLookupTTL)){
+			fetchEvent.source = "cache";
+			return null;
+		}
+		fetchEvent.source = "storage";
+		try {
+			long randomLong = new Random().nextLong(); //To be able to match chatroom search and found pairs
+			L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_5, ""+randomLong);
+			Envelope chatRoomEnvelope = getContext().getStoredObject(ChatRoom[].class, getEnvelopeId (chatRoomName));
+			chatRoomEnvelope.open(getAgent());
+			ChatRoom[] chatRoomArray = chatRoomEnvelope.getContent(ChatRoom[].class);
+			L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_6, ""+randomLong);
+			chatRoom = chatRoomArray[0];
+		} catch ( Exception e ) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "No chatroom with name " + chatRoomName + " exists!");
+			if(negativeLookupTTL > 0)
+				roomLookups.missed(chatRoomName);
+			return null;
+		}
+		//Replay the log tail following the snapshot, the log holds all operations up to its end
+		if(chatRoom.hasOperationLog()){
+			ChatRoomOperation[] operations = findChatRoomOperations(chatRoomName);
+			if(operations != null)
+				fetchEvent.operations += OperationLog.replay(chatRoom, operations);
+		}
+		if(roomCacheTTL > 0)
+			roomStates.put(chatRoom);
+		return chatRoom;
+	}
+	
+	
+	private ChatRoomOperation[] findChatRoomOperations(String chatRoomName) {
+		return fetchFromNetwork(ChatRoomOperation[].class, getOperationLogEnvelopeId(chatRoomName));
+	}
+	
+	
+	private boolean addChatRoomToNetwork(ChatRoom chatRoom) {
+		ChatRoom[] chatRoomArray = new ChatRoom[1];
+		chatRoomArray[0] = chatRoom;
+		try {
+			Envelope chatRoomEnvelope = Envelope.createClassIdEnvelope(new ChatRoom[0], getEnvelopeId(chatRoom.getRoomName()), getAgent());
+			chatRoomEnvelope.open(getAgent());
+			chatRoomEnvelope.updateContent ( chatRoomArray );
+			chatRoomEnvelope.addSignature(getAgent());
+			chatRoomEnvelope.store();
+			notifyRoomChange(chatRoom);
+			if(chatRoom.isPrivate())
+				L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_3, chatRoom.getRoomName());
+			else
+				L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_4, chatRoom.getRoomName());
+			return true;
+		} catch (Exception e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error storing chatroom! " + e);
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	
+	/**
+	 * Tells the other service nodes that a {@link i5.las2peer.services.chatService.ChatRoom} was stored, so they
+	 * drop their cached state of it. Does not wait for the other nodes.
+	 * 
+	 * @param chatRoom the stored room
+	 */
+	private void notifyRoomChange(ChatRoom chatRoom) {
+		//Without a cache at this node, the other nodes (configured alike) have none either
+		if(getConfiguration().getRoomCacheTTL() <= 0)
+			return;
+		RoomAffinity ring = getServiceRing(); //Looked up once per refresh interval, independent of room affinity
+		if(ring.getNodeCount() < 2)
+			return;
+		Object localNodeId = getContext().getLocalNode().getNodeId();
+		List<Object> otherNodes = new ArrayList<Object>();
+		for(Object nodeId : ring.getNodeIds()){
+			if(!nodeId.equals(localNodeId))
+				otherNodes.add(nodeId);
+		}
+		try {
+			roomChanges.notifyChange(chatRoom.getRoomName(), chatRoom.getVersion(), otherNodes.toArray(),
+					getContext().getLocalNode(), getAgent());
+		} catch (AgentNotKnownException e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error notifying change of chatroom " + chatRoom.getRoomName() + "! " + e);
+		}
+	}
+	
+	
+	private ArrayList<String> getChatRoomNamesFromNetwork(){
+		ArrayList<String> chatRooms = new ArrayList<String>();
+		try {
+			Envelope knownChatRoomsEnvelope = getContext().getStoredObject(ArrayList[].class, knownChatRoomsIdentifier);
+			knownChatRoomsEnvelope.open(getAgent());
+			@SuppressWarnings("unchecked")
+			ArrayList<String>[] chatRoomNamesArray = knownChatRoomsEnvelope.getContent(ArrayList[].class);
+			chatRooms = chatRoomNamesArray[0];
+			return chatRooms;
+		} catch (Exception e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Chatroomlist does not yet exist!");
+			return null;
+		}
+	}
+	
+	
+	private boolean addChatRoomNameToNetwork(String chatRoomName) {
+		ArrayList<String> chatRooms = getChatRoomNamesFromNetwork();
+		//Adding a new list to the network
+		if(chatRooms == null){
+			chatRooms = new ArrayList<String>();
+			chatRooms.add(chatRoomName);
+			@SuppressWarnings("unchecked")
+			ArrayList<String>[] chatRoomNamesArray = new ArrayList[1];
+			chatRoomNamesArray[0] = chatRooms;
+			L2pLogger.logEvent(Event.SERVICE_MESSAGE, "Adding new chatroomlist!");
+			try {
+				Envelope knownChatRoomsEnvelope = Envelope.createClassIdEnvelope(chatRoomNamesArray, knownChatRoomsIdentifier, getAgent());
+				knownChatRoomsEnvelope.open(getAgent());
+				knownChatRoomsEnvelope.addSignature(getAgent());
+				knownChatRoomsEnvelope.store();
+				L2pLogger.logEvent(Event.SERVICE_MESSAGE, "Stored new chatroomlist!");
+				return true;
+			} catch (Exception e) {
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error storing new chatroomlist! " + e);
+				e.printStackTrace();
+				return false;
+			}
+		}
+		//Update list with new name
+		else{
+			try {
+				Envelope knownChatRoomsEnvelope = getContext().getStoredObject(ArrayList[].class, knownChatRoomsIdentifier);
+				knownChatRoomsEnvelope.open(getAgent());
+				@SuppressWarnings("unchecked")
+				ArrayList<String>[] chatRoomNamesArray = knownChatRoomsEnvelope.getContent(ArrayList[].class);
+				chatRooms = chatRoomNamesArray[0];
+				//Not a complete solution for duplicate chatroom creation but better than nothing
+				//Removes duplicate entries
+				HashSet<String> h = new HashSet<String>(chatRooms);
+				chatRooms.clear();
+				chatRooms.addAll(h);
+				chatRooms.add(chatRoomName);
+				chatRoomNamesArray[0] = chatRooms;
+				knownChatRoomsEnvelope.updateContent ( chatRoomNamesArray );
+				knownChatRoomsEnvelope.addSignature(getAgent());
+				knownChatRoomsEnvelope.store();
+				L2pLogger.logEvent(Event.SERVICE_MESSAGE, "Updated chatroomlist!");
+				return true;
+			} catch (Exception e) {
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error updating chatroomlist! " + e);
+				e.printStackTrace();
+				return false;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Sends a {@link i5.las2peer.services.chatService.ChatRoomMessage} to the given members that did not receive it yet.
+	 * Up to "fanOutParallelism" messages are sent at the same time, this number is also the limit for all
+	 * messages in flight at this node. If this limit is reached, the message waits up to "sendQueueTimeout" in its
+	 * lane of the {@link i5.las2peer.services.chatService.SendScheduler}; private messages take precedence over the
+	 * fan-out of chatroom messages. If the time runs out, the sending stops and the
+	 * remaining members can be reached by resending the message.
+	 * 
+	 * @param sendingAgent the agent the message is sent from
+	 * @param memberIds the ids of the receiving members
+	 * @param delivery the message and the members it was already delivered to
+	 * 
+	 * @return True, if the message was sent to all members. False, if the node was busy.
+	 * 
+	 * @throws Exception if a message could not be created or sent
+	 */
+	private boolean sendToMembers(UserAgent sendingAgent, Long[] memberIds, PendingDelivery delivery) throws Exception {
+		ChatServiceConfiguration configuration = getConfiguration();
+		SendScheduler slots = sendSlots;
+		SendScheduler.Lane lane = delivery.message.isPrivate() ? SendScheduler.Lane.PRIORITY : SendScheduler.Lane.BULK;
+		List<Message> messages = new ArrayList<Message>();
+		List<MessageResultListener> listeners = new ArrayList<MessageResultListener>();
+		List<Long> recipients = new ArrayList<Long>();
+		List<ChatServiceEvents.RecipientSend> sendEvents = new ArrayList<ChatServiceEvents.RecipientSend>();
+		try {
+			for(int i = 0; i < memberIds.length; i++){
+				if(delivery.isDeliveredTo(memberIds[i]))
+					continue;
+				if(configuration.isDeferOfflineMembers() && !isOnline(memberIds[i])){
+					//No live delivery attempt for offline members, they get it when coming online
+					if(deferMessage(memberIds[i], delivery.message))
+						delivery.deliveredTo(memberIds[i]);
+					continue;
+				}
+				Agent receivingAgent = lookupAgent(memberIds[i]);
+				Message toSend = new Message(sendingAgent, receivingAgent, delivery.message);
+				toSend.setSendingNodeId(getContext().getLocalNode().getNodeId()); //For monitoring, otherwise sending node is not stored (Security/Privacy?)
+				if(!slots.tryAcquire(lane)){
+					//Wait for a turn in the lane, without holding the slots of the previous members
+					awaitAnswers(messages, listeners, recipients, sendEvents, delivery, slots, configuration.getSendTimeout());
+					if(!slots.acquire(lane, delivery.message.getInChatRoom(), configuration.getSendQueueTimeout()))
+						return false;
+				}
+				MessageResultListener listener = new MessageResultListener(configuration.getSendTimeout());
+				ChatServiceEvents.RecipientSend sendEvent = new ChatServiceEvents.RecipientSend();
+				sendEvent.begin();
+				messages.add(toSend);
+				listeners.add(listener);
+				recipients.add(memberIds[i]);
+				sendEvents.add(sendEvent);
+				getContext().getLocalNode().sendMessage(toSend, listener);
+				if(delivery.message.isPrivate())
+					L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_1, "" + toSend.getId());
+				else
+					L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_2, "" + toSend.getId());
+				if(listeners.size() == configuration.getFanOutParallelism())
+					awaitAnswers(messages, listeners, recipients, sendEvents, delivery, slots, configuration.getSendTimeout());
+			}
+			return true;
+		} finally {
+			awaitAnswers(messages, listeners, recipients, sendEvents, delivery, slots, configuration.getSendTimeout());
+		}
+	}
+	
+	
+	/**
+	 * Hands the message to the {@link i5.las2peer.services.chatService.RoomBatcher}, which delivers it together with
+	 * the other messages of the batching window. The message counts as delivered to a member once the member
+	 * acknowledged the batch, a resent message is only sent to the members that did not.
+	 * 
+	 * @param memberIds the ids of the receiving members
+	 * @param delivery the message and the members it was already delivered to
+	 * 
+	 * @throws AgentNotKnownException if the agent of this service is not known
+	 */
+	private void batchToMembers(Long[] memberIds, PendingDelivery delivery) throws AgentNotKnownException {
+		ChatServiceConfiguration configuration = getConfiguration();
+		List<Long> recipients = new ArrayList<Long>();
+		for(Long memberId : memberIds){
+			if(delivery.isDeliveredTo(memberId))
+				continue;
+			if(configuration.isDeferOfflineMembers() && !isOnline(memberId)){
+				//No live delivery attempt for offline members, they get it when coming online
+				if(deferMessage(memberId, delivery.message))
+					delivery.deliveredTo(memberId);
+				continue;
+			}
+			recipients.add(memberId);
+		}
+		if(recipients.isEmpty())
+			return;
+		roomBatcher.enqueue(delivery.message, recipients.toArray(new Long[0]), delivery, getContext().getLocalNode(),
+				getAgent(), configuration.getBatchWindow(), configuration.getSendTimeout(), sendSlots,
+				configuration.getSendQueueTimeout());
+	}
+	
+	
+	/**
+	 * Appends the message once to the shared log of its {@link i5.las2peer.services.chatService.ChatRoom} at this node.
+	 * A resent message is not appended again.
+	 * 
+	 * @param memberIds the ids of the current members
+	 * @param delivery the message and the members it was already delivered to
+	 */
+	private void appendToRoomLog(Long[] memberIds, PendingDelivery delivery) {
+		boolean appended = true;
+		for(Long memberId : memberIds){
+			if(!delivery.isDeliveredTo(memberId)){
+				delivery.deliveredTo(memberId);
+				appended = false;
+			}
+		}
+		if(appended)
+			return;
+		String chatRoomName = delivery.message.getInChatRoom();
+		RoomMessageLog log = roomLogs.get(chatRoomName);
+		if(log == null){
+			log = new RoomMessageLog(getConfiguration().getSharedLogSize());
+			RoomMessageLog existing = roomLogs.putIfAbsent(chatRoomName, log);
+			if(existing != null)
+				log = existing;
+		}
+		log.append(delivery.message, memberIds);
+	}
+	
+	
+	private void awaitAnswers(List<Message> messages, List<MessageResultListener> listeners, List<Long> recipients,
+			List<ChatServiceEvents.RecipientSend> sendEvents, PendingDelivery delivery, SendScheduler slots, long timeout) {
+		for(int i = 0; i < listeners.size(); i++){
+			ChatServiceEvents.RecipientSend sendEvent = sendEvents.get(i);
+			try {
+				listeners.get(i).waitForOneAnswer(timeout);
+				sendEvent.success = listeners.get(i).isSuccess();
+				if(!delivery.message.isPrivate())
+					L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_10, "" + messages.get(i).getId());
+				if(listeners.get(i).isSuccess()){
+					delivery.deliveredTo(recipients.get(i));
+					latency.record(delivery.message.getInChatRoom(), DeliveryLatency.Stage.ACK,
+							System.currentTimeMillis() - delivery.message.getEnqueuedAt());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				slots.release();
+				if(sendEvent.shouldCommit()){
+					sendEvent.room = delivery.message.getInChatRoom();
+					sendEvent.recipientId = recipients.get(i);
+					sendEvent.commit();
+				}
+			}
+		}
+		messages.clear();
+		listeners.clear();
+		recipients.clear();
+		sendEvents.clear();
+	}
+	
+	
+	/**
+	 * Queues a message for the persisted history of its {@link i5.las2peer.services.chatService.ChatRoom}. The queue
+	 * is written after "historyWriteWindow" by the owning node of each room, so the messages sent during the window
+	 * cost one write per room.
+	 * 
+	 * @param chatRoomMessage the message
+	 */
+	private void appendToHistory(ChatRoomMessage chatRoomMessage) {
+		pendingHistory.add(chatRoomMessage);
+		try {
+			pendingHistoryFlusher.schedule(getConfiguration().getHistoryWriteWindow(), getContext().getLocalNode(), getAgent());
+		} catch (AgentNotKnownException e) {
+			//Written with the next message queued at this node
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error scheduling history write! " + e);
+		}
+	}
+	
+	
+	/**
+	 * Compacts the histories of the {@link i5.las2peer.services.chatService.ChatRoom}s owned by this node whose
+	 * compaction is due, so retention also frees the segments of rooms without new messages. Is invoked by
+	 * a timer of this node, at least every "historyCompactionInterval". Only invoked by the service itself.
+	 * 
+	 * @return Success or error message.
+	 */
+	public String compactChatRoomHistories() {
+		try {
+			if(getContext().getMainAgent().getId() != getAgent().getId()){
+				return "Only the service may compact the history!";
+			}
+		} catch (AgentNotKnownException e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error compacting history! " + e);
+			return "Problems with compacting the history!";
+		}
+		ChatServiceConfiguration configuration = getConfiguration();
+		if(!historyRoomsLoaded && configuration.isRoomAffinity()){
+			//After a restart, the rooms without new messages are only known from the directory
+			historyRooms.addAll(getChatRoomNamesFromNetwork());
+			historyRoomsLoaded = true;
+		}
+		for(String chatRoomName : historyRooms.toArray(new String[0])){
+			if(!isLocalOwner(chatRoomName)){
+				historyRooms.remove(chatRoomName); //Compacted by its owner
+				continue;
+			}
+			synchronized(getWriteLock(getHistoryEnvelopeId(chatRoomName))){
+				ChatRoomHistory history = fetchHistory(chatRoomName);
+				if(history == null || history.getMessageCount() == 0){
+					historyRooms.remove(chatRoomName); //Added again with its next message
+					continue;
+				}
+				if(!history.isCompactionDue(configuration.getHistoryCompactionInterval()))
+					continue;
+				try {
+					compactHistory(chatRoomName, history);
+					storeInNetwork(getHistoryEnvelopeId(chatRoomName), new ChatRoomHistory[] {history});
+				} catch (Exception e) {
+					L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error compacting history of chatroom " + chatRoomName + "! " + e);
+				}
+			}
+		}
+		if(!historyRooms.isEmpty())
+			scheduleHistoryCompaction();
+		return "History compacted!";
+	}
+	
+	
+	private void scheduleHistoryCompaction() {
+		try {
+			historyCompactor.schedule(Math.max(getConfiguration().getHistoryCompactionInterval(), MIN_COMPACTION_DELAY),
+					getContext().getLocalNode(), getAgent());
+		} catch (AgentNotKnownException e) {
+			//Scheduled again with the next request at this node
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error scheduling history compaction! " + e);
+		}
+	}
+	
+	
+	/**
+	 * Writes the messages queued for the history of their {@link i5.las2peer.services.chatService.ChatRoom}s.
+	 * The messages of rooms owned by other nodes are handed to the owner. Is invoked by the timer of the queue
+	 * at this node. Only invoked by the service itself.
+	 * 
+	 * @return Success or error message.
+	 */
+	public String flushChatRoomHistory() {
+		try {
+			if(getContext().getMainAgent().getId() != getAgent().getId()){
+				return "Only the service may write the history!";
+			}
+		} catch (AgentNotKnownException e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error writing history! " + e);
+			return "Problems with writing the history!";
+		}
+		for(Map.Entry<String, List<ChatRoomMessage>> waiting : pendingHistory.takeAll().entrySet()){
+			String chatRoomName = waiting.getKey();
+			Object owner = getRoomOwner(chatRoomName);
+			if(owner != null && !owner.equals(getContext().getLocalNode().getNodeId())){
+				try {
+					invokeAtNode(owner, "appendChatRoomHistory", chatRoomName,
+							waiting.getValue().toArray(new ChatRoomMessage[0]));
+					continue;
+				} catch (Exception e) {
+					//Owner not reachable, the next refresh of the ring will drop it. Until then, write it here.
+					L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Handing history of chatroom " + chatRoomName + " to owner failed! " + e);
+					affinityRing = null;
+				}
+			}
+			writeHistory(chatRoomName, waiting.getValue());
+		}
+		return "History written!";
+	}
+	
+	
+	/**
+	 * Writes messages to the history of a {@link i5.las2peer.services.chatService.ChatRoom}. Is invoked at the
+	 * owning node of the room by {@link #flushChatRoomHistory()} of the other nodes and never forwards again.
+	 * Only invoked by the service itself.
+	 * 
+	 * @param chatRoomName the name of the {@link i5.las2peer.services.chatService.ChatRoom}
+	 * @param messages the messages, oldest first
+	 * 
+	 * @return Success or error message.
+	 */
+	public String appendChatRoomHistory(String chatRoomName, ChatRoomMessage[] messages) {
+		try {
+			if(getContext().getMainAgent().getId() != getAgent().getId()){
+				return "Only the service may write the history!";
+			}
+		} catch (AgentNotKnownException e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error writing history! " + e);
+			return "Problems with writing the history!";
+		}
+		writeHistory(chatRoomName, Arrays.asList(messages));
+		return "History written!";
+	}
+	
+	
+	/**
+	 * Appends messages to the persisted history of a {@link i5.las2peer.services.chatService.ChatRoom}. Each touched
+	 * segment and the index are written once. Errors are only logged, the messages were sent nevertheless.
+	 * 
+	 * @param chatRoomName the name of the {@link i5.las2peer.services.chatService.ChatRoom}
+	 * @param messages the messages, oldest first
+	 */
+	private void writeHistory(String chatRoomName, List<ChatRoomMessage> messages) {
+		ChatServiceConfiguration configuration = getConfiguration();
+		synchronized(getWriteLock(getHistoryEnvelopeId(chatRoomName))){
+			try {
+				ChatRoomHistory history = fetchHistory(chatRoomName);
+				if(history == null)
+					history = new ChatRoomHistory();
+				Map<Long, HistorySegment> segments = new LinkedHashMap<Long, HistorySegment>();
+				for(ChatRoomMessage chatRoomMessage : messages){
+					long segmentNumber = history.append(chatRoomMessage.getTimestamp().getTime(), configuration.getHistorySegmentSize());
+					HistorySegment segment = segments.get(segmentNumber);
+					if(segment == null){
+						segment = fetchHistorySegment(chatRoomName, segmentNumber);
+						if(segment == null || segment.isArchived())
+							segment = new HistorySegment();
+						segments.put(segmentNumber, segment);
+					}
+					segment.append(chatRoomMessage);
+				}
+				for(Map.Entry<Long, HistorySegment> segment : segments.entrySet())
+					storeInNetwork(getHistorySegmentEnvelopeId(chatRoomName, segment.getKey()), new HistorySegment[] {segment.getValue()});
+				storeInNetwork(getHistoryEnvelopeId(chatRoomName), new ChatRoomHistory[] {history});
+				historyRooms.add(chatRoomName); //Compacted by this node from now on
+			} catch (Exception e) {
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error persisting " + messages.size() + " messages of chatroom "
+						+ chatRoomName + "! " + e);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Checks that the calling user is a member of the {@link i5.las2peer.services.chatService.ChatRoom} a file
+	 * was shared in.
+	 * 
+	 * @param attachmentId the id of the file
+	 * @param attachment the description of the file
+	 * 
+	 * @return An error message or null, if the user is a member.
+	 */
+	private String checkAttachmentAccess(String attachmentId, AttachmentInfo attachment) {
+		String chatRoomName = attachment.getChatRoomName();
+		ChatRoom chatRoom = chatRoomName != null ? findChatRoom(chatRoomName) : null;
+		if(chatRoom == null || !chatRoom.isMember((UserAgent) getContext().getMainAgent())){
+			return "You have no access to attachment " + attachmentId + "!";
+		}
+		return null;
+	}
+	
+	
+	private AttachmentInfo findAttachment(String attachmentId) {
+		AttachmentInfo[] attachment = fetchFromNetwork(AttachmentInfo[].class, getAttachmentEnvelopeId(attachmentId));
+		if(attachment == null || attachment.length == 0)
+			return null;
+		return attachment[0];
+	}
+	
+	
+	private static String hash(byte[] content) {
+		try {
+			StringBuilder hex = new StringBuilder();
+			for(byte b : MessageDigest.getInstance("SHA-256").digest(content))
+				hex.append(String.format("%02x", b & 0xFF));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			//SHA-256 is available on every Java platform
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	
+	private ChatRoomHistory fetchHistory(String chatRoomName) {
+		ChatRoomHistory[] history = fetchFromNetwork(ChatRoomHistory[].class, getHistoryEnvelopeId(chatRoomName));
+		if(history == null || history.length == 0)
+			return null;
+		return history[0];
+	}
+	
+	
+	private HistorySegment fetchHistorySegment(String chatRoomName, long segmentNumber) {
+		HistorySegment[] segment = fetchFromNetwork(HistorySegment[].class, getHistorySegmentEnvelopeId(chatRoomName, segmentNumber));
+		if(segment == null || segment.length == 0)
+			return null;
+		return segment[0];
+	}
+	
+	
+	/**
+	 * Drops the segments expired under the retention policy of the room (or the defaults of the service) and
+	 * archives old segments, if enabled. Runs with the compaction timer of the owning node, at most once per
+	 * "historyCompactionInterval" and room.
+	 * 
+	 * @param chatRoomName the name of the {@link i5.las2peer.services.chatService.ChatRoom}
+	 * @param history the history of the room, changed but not stored by this method
+	 * 
+	 * @throws Exception if a segment could not be read or stored
+	 */
+	private void compactHistory(String chatRoomName, ChatRoomHistory history) throws Exception {
+		ChatServiceConfiguration configuration = getConfiguration();
+		long maxAge = history.getRetentionAge() > 0 ? history.getRetentionAge() : configuration.getHistoryMaxAge();
+		int maxMessages = history.getRetentionCount() > 0 ? history.getRetentionCount() : configuration.getHistoryMaxMessages();
+		long[] expired = history.expire(maxAge, maxMessages);
+		for(long segmentNumber : expired){
+			//Envelopes can not be deleted, so their content is dropped
+			storeInNetwork(getHistorySegmentEnvelopeId(chatRoomName, segmentNumber), new HistorySegment[0]);
+		}
+		int archived = 0;
+		if(configuration.isHistoryArchive()){
+			for(long segmentNumber : history.getArchivable(configuration.getHistoryArchiveAge())){
+				String segmentId = getHistorySegmentEnvelopeId(chatRoomName, segmentNumber);
+				HistorySegment segment = fetchHistorySegment(chatRoomName, segmentNumber);
+				if(segment != null){
+					segment.archive();
+					storeInNetwork(segmentId, new HistorySegment[] {segment});
+					archived++;
+				}
+				history.archived(segmentNumber);
+			}
+		}
+		history.compacted();
+		L2pLogger.logEvent(Event.SERVICE_MESSAGE, "Compacted history of chatroom " + chatRoomName + ": "
+				+ expired.length + " segments dropped, " + archived + " archived");
+	}
+	
+	
+	/**
+	 * Records activity of the given user and publishes the users online at this node, if due.
+	 * 
+	 * @param agentId the id of the user
+	 * 
+	 * @return True, if the user was offline at this node before.
+	 */
+	private boolean updatePresence(long agentId) {
+		ChatServiceConfiguration configuration = getConfiguration();
+		boolean cameOnline = presence.touch(agentId, configuration.getPresenceExpiry());
+		if(configuration.isHistoryPersistence())
+			scheduleHistoryCompaction(); //Keeps running after a restart, even if no messages are sent
+		if(presence.isPublishDue(configuration.getPresencePublishInterval())){
+			PresenceSnapshot[] snapshot = {presence.createSnapshot(configuration.getPresenceExpiry())};
+			try {
+				storeInNetwork(getPresenceEnvelopeId(getContext().getLocalNode().getNodeId()), snapshot);
+			} catch (Exception e) {
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error publishing presence! " + e);
+			}
+		}
+		return cameOnline;
+	}
+	
+	
+	/**
+	 * Determines, if the given user is online at this or any other node hosting the service.
+	 * The snapshots of the other nodes are fetched again after the publish interval.
+	 * 
+	 * @param agentId the id of the user
+	 * 
+	 * @return True or False.
+	 */
+	private boolean isOnline(long agentId) {
+		ChatServiceConfiguration configuration = getConfiguration();
+		if(presence.isFetchDue(configuration.getPresencePublishInterval())){
+			Object localNodeId = getContext().getLocalNode().getNodeId();
+			List<PresenceSnapshot> snapshots = new ArrayList<PresenceSnapshot>();
+			for(Object nodeId : getServiceRing().getNodeIds()){
+				if(nodeId.equals(localNodeId))
+					continue;
+				PresenceSnapshot[] snapshot = fetchFromNetwork(PresenceSnapshot[].class, getPresenceEnvelopeId(nodeId));
+				if(snapshot != null)
+					snapshots.add(snapshot[0]);
+			}
+			presence.setRemoteSnapshots(snapshots.toArray(new PresenceSnapshot[0]));
+		}
+		return presence.isOnline(agentId, configuration.getPresenceExpiry());
+	}
+	
+	
+	/**
+	 * Queues a message for the deferred mailbox of an offline user. The queue is written after
+	 * "deferredWriteWindow" by a timer, so the sending request does not access the storage. If the mailbox
+	 * is full, the oldest messages are dropped.
+	 * 
+	 * @param agentId the id of the user
+	 * @param chatRoomMessage the message
+	 * 
+	 * @return True, the message is kept until it is written.
+	 */
+	private boolean deferMessage(long agentId, ChatRoomMessage chatRoomMessage) {
+		pendingDeferrals.add(agentId, chatRoomMessage);
+		scheduleDeferredWrite(getConfiguration().getDeferredWriteWindow());
+		return true;
+	}
+	
+	
+	/**
+	 * Writes the messages queued for the deferred mailboxes of offline users, one write per user. Is invoked by
+	 * the timer of the queue at this node. Only invoked by the service itself.
+	 * 
+	 * @return Success or error message.
+	 */
+	public String flushDeferredMessages() {
+		try {
+			if(getContext().getMainAgent().getId() != getAgent().getId()){
+				return "Only the service may write deferred messages!";
+			}
+		} catch (AgentNotKnownException e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error writing deferred messages! " + e);
+			return "Problems with writing the deferred messages!";
+		}
+		boolean failed = false;
+		for(Map.Entry<Long, List<ChatRoomMessage>> waiting : pendingDeferrals.takeAll().entrySet()){
+			if(!deferMessages(waiting.getKey(), waiting.getValue())){
+				pendingDeferrals.addFirst(waiting.getKey(), waiting.getValue());
+				failed = true;
+			}
+		}
+		if(failed)
+			scheduleDeferredWrite(getConfiguration().getWriteBehindRetryInterval());
+		return "Deferred messages written!";
+	}
+	
+	
+	private void scheduleDeferredWrite(long delay) {
+		try {
+			pendingDeferralsFlusher.schedule(delay, getContext().getLocalNode(), getAgent());
+		} catch (AgentNotKnownException e) {
+			//Written with the next message deferred at this node
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error scheduling deferred messages! " + e);
+		}
+	}
+	
+	
+	private boolean deferMessages(long agentId, List<ChatRoomMessage> chatRoomMessages) {
+		Object localNodeId = getContext().getLocalNode().getNodeId();
+		synchronized(getWriteLock(getDeferredEnvelopeId(agentId, localNodeId))){
+			//Only this node writes its mailbox of the user, the readers only store up to where they read
+			DeferredMailbox[] stored = fetchFromNetwork(DeferredMailbox[].class, getDeferredEnvelopeId(agentId, localNodeId));
+			Long[] readUpTo = fetchFromNetwork(Long[].class, getDeferredReadEnvelopeId(agentId, localNodeId));
+			DeferredMailbox mailbox = stored != null ? stored[0] : new DeferredMailbox();
+			mailbox = mailbox.append(chatRoomMessages, readUpTo != null ? readUpTo[0] : 0,
+					getConfiguration().getDeferredMailboxSize());
+			try {
+				storeInNetwork(getDeferredEnvelopeId(agentId, localNodeId), new DeferredMailbox[] {mailbox});
+				return true;
+			} catch (Exception e) {
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error deferring message! " + e);
+				return false;
+			}
 		}
-		if(publicChatRooms.isEmpty()) //Only private chatrooms..
-			publicChatRooms.add("No public chatrooms created yet!");
-	    return publicChatRooms.toArray(new String[publicChatRooms.size()]);
 	}
 	
 	
 	/**
-	 * Returns a list of all private {@link i5.las2peer.services.chatService.ChatRoom}s
-	 * the user has been invited to.
+	 * Takes the deferred messages of a user, if a check of the mailboxes is due. With "deferOfflineMembers", the
+	 * mailboxes of all service nodes are checked when the user comes online and after each publish interval.
+	 * Otherwise, only the mailbox of this node is checked, and only if this node moved messages of the user there.
 	 * 
-	 * @return An array of Strings containing all private {@link i5.las2peer.services.chatService.ChatRoom}s.
-	 * Or an array of size one with the message, that no private chatrooms exist.
+	 * @param agentId the id of the user
+	 * @param cameOnline determines, if the user just came online
+	 * 
+	 * @return The deferred messages, empty if no check was due.
 	 */
-	public String[] getPrivateChatRooms(){
-		UserAgent requestingAgent = (UserAgent) getContext().getMainAgent();
-		ArrayList<String> chatRoomNames = getChatRoomNamesFromNetwork();
-		ArrayList<String> privateChatRooms = new ArrayList<String>();
-		if(chatRoomNames != null){
-			Iterator<String> iterator = chatRoomNames.iterator();
-			while(iterator.hasNext()){
-				String chatRoomName = iterator.next();
-				ChatRoom chatRoom = findChatRoom(chatRoomName);
-				if(chatRoom.isPrivate() && chatRoom.isInvited(requestingAgent)){
-					privateChatRooms.add(chatRoomName);
-				}
-			}
+	private ChatRoomMessage[] checkDeferredMessages(long agentId, boolean cameOnline) {
+		ChatServiceConfiguration configuration = getConfiguration();
+		boolean spilled = spilledAgents.remove(agentId);
+		if(configuration.isDeferOfflineMembers()
+				&& presence.isMailboxCheckDue(agentId, cameOnline, configuration.getPresencePublishInterval()))
+			return takeDeferredMessages(agentId, getServiceRing().getNodeIds());
+		if(spilled)
+			return takeDeferredMessages(agentId, new Object[0]);
+		return new ChatRoomMessage[0];
+	}
+	
+	
+	/**
+	 * Returns the unread messages of the deferred mailboxes of a user and marks them as read.
+	 * 
+	 * @param agentId the id of the user
+	 * @param nodeIds the nodes whose mailboxes are read, the mailbox of this node is always read
+	 * 
+	 * @return The deferred messages, in the order they were sent by each node.
+	 */
+	private ChatRoomMessage[] takeDeferredMessages(long agentId, Object[] nodeIds) {
+		Object localNodeId = getContext().getLocalNode().getNodeId();
+		List<Object> mailboxNodes = new ArrayList<Object>();
+		mailboxNodes.add(localNodeId);
+		for(Object nodeId : nodeIds){
+			if(!nodeId.equals(localNodeId))
+				mailboxNodes.add(nodeId);
 		}
-		else{
-			privateChatRooms.add("You have no invites!"); //No chatRooms
+		List<ChatRoomMessage> deferred = new ArrayList<ChatRoomMessage>();
+		for(Object nodeId : mailboxNodes){
+			DeferredMailbox[] mailbox = fetchFromNetwork(DeferredMailbox[].class, getDeferredEnvelopeId(agentId, nodeId));
+			if(mailbox == null)
+				continue;
+			Long[] readUpTo = fetchFromNetwork(Long[].class, getDeferredReadEnvelopeId(agentId, nodeId));
+			ChatRoomMessage[] unread = mailbox[0].getUnread(readUpTo != null ? readUpTo[0] : 0);
+			if(unread.length == 0)
+				continue;
+			deferred.addAll(Arrays.asList(unread));
+			try {
+				storeInNetwork(getDeferredReadEnvelopeId(agentId, nodeId), new Long[] {mailbox[0].getNextSequence()});
+			} catch (Exception e) {
+				//Not marked, they will be dropped as duplicates with the next check
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error marking deferred messages as read! " + e);
+			}
 		}
-		if(privateChatRooms.isEmpty()) //No invites
-			privateChatRooms.add("You have no invites!");
-	    return privateChatRooms.toArray(new String[privateChatRooms.size()]);
+		deferred.addAll(pendingDeferrals.take(agentId)); //Deferred at this node, but not written yet
+		return deferred.toArray(new ChatRoomMessage[0]);
 	}
 	
 	
-	private boolean updateChatRoom(ChatRoom chatRoom) {
+	/**
+	 * Stores the given content under the given identifier, replacing the content stored before.
+	 * 
+	 * @param identifier the identifier of the envelope
+	 * @param content the content, an array like all content stored by this service
+	 * 
+	 * @throws Exception if the content could not be stored
+	 */
+	private void storeInNetwork(String identifier, Object[] content) throws Exception {
+		Envelope envelope;
 		try {
-			long randomLong = new Random().nextLong(); //To be able to match chatroom search and found pairs
-			L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_5, ""+randomLong);
-			Envelope chatRoomEnvelope = getContext().getStoredObject(ChatRoom[].class, getEnvelopeId (chatRoom.getRoomName()));
-			chatRoomEnvelope.open(getAgent());
-			L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_6, ""+randomLong);
-			ChatRoom[] chatRoomArray = new ChatRoom[1];
-			chatRoomArray[0] = chatRoom;
-			chatRoomEnvelope.updateContent ( chatRoomArray );
-			chatRoomEnvelope.addSignature(getAgent());
-			chatRoomEnvelope.store();
-			L2pLogger.logEvent(Event.SERVICE_MESSAGE, "Updated chatroom " + chatRoom.getRoomName());
-			return true;
+			envelope = getContext().getStoredObject(content.getClass(), identifier);
 		} catch (Exception e) {
-			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error updating chatroom! " + e);
-			e.printStackTrace();
-			return false;
+			//Not stored yet
+			envelope = Envelope.createClassIdEnvelope(content, identifier, getAgent());
 		}
+		envelope.open(getAgent());
+		envelope.updateContent ( content );
+		envelope.addSignature(getAgent());
+		envelope.store();
 	}
 	
 	
-	private ChatRoom findChatRoom(String chatRoomName) {
+	/**
+	 * Fetches the content stored under the given identifier.
+	 * 
+	 * @param type the class of the content
+	 * @param identifier the identifier of the envelope
+	 * 
+	 * @return The content or null, if nothing is stored under this identifier.
+	 */
+	private <T> T fetchFromNetwork(Class<T> type, String identifier) {
 		try {
-			long randomLong = new Random().nextLong(); //To be able to match chatroom search and found pairs
-			L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_5, ""+randomLong);
-			Envelope chatRoomEnvelope = getContext().getStoredObject(ChatRoom[].class, getEnvelopeId (chatRoomName));
-			chatRoomEnvelope.open(getAgent());
-			ChatRoom[] chatRoomArray = chatRoomEnvelope.getContent(ChatRoom[].class);
-			L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_6, ""+randomLong);
-			return chatRoomArray[0];
-		} catch ( Exception e ) {
-			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "No chatroom with name " + chatRoomName + " exists!");
+			Envelope envelope = getContext().getStoredObject(type, identifier);
+			envelope.open(getAgent());
+			return envelope.getContent(type);
+		} catch (Exception e) {
 			return null;
 		}
 	}
 	
 	
-	private boolean addChatRoomToNetwork(ChatRoom chatRoom) {
-		ChatRoom[] chatRoomArray = new ChatRoom[1];
-		chatRoomArray[0] = chatRoom;
-		try {
-			Envelope chatRoomEnvelope = Envelope.createClassIdEnvelope(new ChatRoom[0], getEnvelopeId(chatRoom.getRoomName()), getAgent());
-			chatRoomEnvelope.open(getAgent());
-			chatRoomEnvelope.updateContent ( chatRoomArray );
-			chatRoomEnvelope.addSignature(getAgent());
-			chatRoomEnvelope.store();
-			if(chatRoom.isPrivate())
-				L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_3, chatRoom.getRoomName());
-			else
-				L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_4, chatRoom.getRoomName());
-			return true;
-		} catch (Exception e) {
-			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error storing chatroom! " + e);
-			e.printStackTrace();
-			return false;
+	/**
+	 * Returns the current configuration. The property file is read again once the configuration
+	 * is older than "configurationReloadInterval", so values can be changed without a restart.
+	 * 
+	 * @return The configuration.
+	 */
+	private ChatServiceConfiguration getConfiguration() {
+		ChatServiceConfiguration current = configuration;
+		if(current.isOutdated()){
+			synchronized(this){
+				if(configuration == current)
+					loadConfiguration();
+			}
+			current = configuration;
 		}
+		return current;
 	}
 	
 	
-	private ArrayList<String> getChatRoomNamesFromNetwork(){
-		ArrayList<String> chatRooms = new ArrayList<String>();
+	private synchronized void loadConfiguration() {
+		ChatServiceConfiguration loaded;
 		try {
-			Envelope knownChatRoomsEnvelope = getContext().getStoredObject(ArrayList[].class, knownChatRoomsIdentifier);
-			knownChatRoomsEnvelope.open(getAgent());
-			@SuppressWarnings("unchecked")
-			ArrayList<String>[] chatRoomNamesArray = knownChatRoomsEnvelope.getContent(ArrayList[].class);
-			chatRooms = chatRoomNamesArray[0];
-			return chatRooms;
-		} catch (Exception e) {
-			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Chatroomlist does not yet exist!");
-			return null;
+			loaded = ChatServiceConfiguration.read(new File(CONFIGURATION_FILE));
+		} catch (IOException e) {
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error reading property file! " + e);
+			//Keeps the current values until the next reload interval
+			loaded = configuration != null ? configuration.renew() : new ChatServiceConfiguration(new Properties());
+		}
+		String invalidValues = loaded.getInvalidValues();
+		if(!invalidValues.isEmpty())
+			L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Invalid values in property file, using defaults for: " + invalidValues);
+		
+		if(sentMessages == null){
+			sentMessages = new DeduplicationCache<PendingDelivery>(loaded.getDeduplicationWindow(), loaded.getDeduplicationCacheSize());
+		}
+		else{
+			sentMessages.setLimits(loaded.getDeduplicationWindow(), loaded.getDeduplicationCacheSize());
+			for(DeduplicationCache<Boolean> received : receivedMessages.values())
+				received.setLimits(loaded.getDeduplicationWindow(), loaded.getDeduplicationCacheSize());
+		}
+		//Messages still in flight release their slot at the old scheduler
+		if(configuration == null || configuration.getFanOutParallelism() != loaded.getFanOutParallelism()
+				|| configuration.getPriorityLaneWeight() != loaded.getPriorityLaneWeight())
+			sendSlots = new SendScheduler(loaded.getFanOutParallelism(), loaded.getPriorityLaneWeight());
+		if(compression == null)
+			compression = new PayloadCompression(loaded.getCompressionThreshold());
+		else{
+			L2pLogger.logEvent(Event.SERVICE_MESSAGE, compression.getStatistics());
+			compression.setThreshold(loaded.getCompressionThreshold());
 		}
+		configuration = loaded;
 	}
 	
 	
-	private boolean addChatRoomNameToNetwork(String chatRoomName) {
-		ArrayList<String> chatRooms = getChatRoomNamesFromNetwork();
-		//Adding a new list to the network
-		if(chatRooms == null){
-			chatRooms = new ArrayList<String>();
-			chatRooms.add(chatRoomName);
-			@SuppressWarnings("unchecked")
-			ArrayList<String>[] chatRoomNamesArray = new ArrayList[1];
-			chatRoomNamesArray[0] = chatRooms;
-			L2pLogger.logEvent(Event.SERVICE_MESSAGE, "Adding new chatroomlist!");
+	private String changeViaOwner(String method, String chatRoomName, String... parameters) {
+		Object owner = getRoomOwner(chatRoomName);
+		if(owner != null && !owner.equals(getContext().getLocalNode().getNodeId())){
+			Serializable[] invocationParameters = new Serializable[parameters.length + 1];
+			invocationParameters[0] = chatRoomName;
+			System.arraycopy(parameters, 0, invocationParameters, 1, parameters.length);
 			try {
-				Envelope knownChatRoomsEnvelope = Envelope.createClassIdEnvelope(chatRoomNamesArray, knownChatRoomsIdentifier, getAgent());
-				knownChatRoomsEnvelope.open(getAgent());
-				knownChatRoomsEnvelope.addSignature(getAgent());
-				knownChatRoomsEnvelope.store();
-				L2pLogger.logEvent(Event.SERVICE_MESSAGE, "Stored new chatroomlist!");
-				return true;
+				return (String) invokeAtNode(owner, method, invocationParameters);
 			} catch (Exception e) {
-				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error storing new chatroomlist! " + e);
-				e.printStackTrace();
-				return false;
+				//Owner not reachable, the next refresh of the ring will drop it. Until then, change it here.
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Forwarding change to owner of chatroom " + chatRoomName + " failed! " + e);
+				affinityRing = null;
 			}
 		}
-		//Update list with new name
-		else{
+		return null;
+	}
+	
+	
+	//Serializes the writes of an envelope (a chatroom, its history or a mailbox) at this node
+	private Object getWriteLock(String identifier) {
+		Object lock = writeLocks.get(identifier);
+		if(lock == null){
+			Object created = new Object();
+			lock = writeLocks.putIfAbsent(identifier, created);
+			if(lock == null)
+				lock = created;
+		}
+		return lock;
+	}
+	
+	
+	/**
+	 * Remembers that a user received a message and tells, if it was received before. Only messages with an id
+	 * supplied by the client can be resent, all others are never treated as resent and not remembered.
+	 * 
+	 * @param agentId the id of the receiving user
+	 * @param chatRoomMessage the received message
+	 * 
+	 * @return True, if the user did not receive the message before.
+	 */
+	private boolean isFirstReceipt(long agentId, ChatRoomMessage chatRoomMessage) {
+		if(!chatRoomMessage.hasClientMessageId())
+			return true;
+		DeduplicationCache<Boolean> received = receivedMessages.get(agentId);
+		if(received == null){
+			ChatServiceConfiguration configuration = getConfiguration();
+			DeduplicationCache<Boolean> created = new DeduplicationCache<Boolean>(configuration.getDeduplicationWindow(),
+					configuration.getDeduplicationCacheSize());
+			received = receivedMessages.putIfAbsent(agentId, created);
+			if(received == null)
+				received = created;
+		}
+		return received.markSeen(chatRoomMessage.getSendById() + ":" + chatRoomMessage.getInChatRoom() + ":"
+				+ chatRoomMessage.getMessageId(), Boolean.TRUE);
+	}
+	
+	
+	private boolean isLocalOwner(String chatRoomName) {
+		Object owner = getRoomOwner(chatRoomName);
+		return owner == null || owner.equals(getContext().getLocalNode().getNodeId());
+	}
+	
+	
+	/**
+	 * Returns the node owning the given {@link i5.las2peer.services.chatService.ChatRoom}.
+	 * 
+	 * @param chatRoomName the name of the {@link i5.las2peer.services.chatService.ChatRoom}
+	 * 
+	 * @return A node id or null, if room affinity is disabled or no other service node is known.
+	 */
+	private Object getRoomOwner(String chatRoomName) {
+		if(!getConfiguration().isRoomAffinity())
+			return null;
+		RoomAffinity ring = getServiceRing();
+		if(ring.getNodeCount() < 2)
+			return null;
+		return ring.getOwner(getEnvelopeId(chatRoomName));
+	}
+	
+	
+	/**
+	 * Returns the ring of all nodes hosting this service.
+	 * The ring is rebuilt after the configured refresh interval.
+	 * 
+	 * @return The ring, empty if the nodes could not be looked up.
+	 */
+	private RoomAffinity getServiceRing() {
+		ChatServiceConfiguration configuration = getConfiguration();
+		RoomAffinity ring = affinityRing;
+		if(ring == null || ring.isOlderThan(configuration.getServiceNodeRefreshInterval())){
 			try {
-				Envelope knownChatRoomsEnvelope = getContext().getStoredObject(ArrayList[].class, knownChatRoomsIdentifier);
-				knownChatRoomsEnvelope.open(getAgent());
-				@SuppressWarnings("unchecked")
-				ArrayList<String>[] chatRoomNamesArray = knownChatRoomsEnvelope.getContent(ArrayList[].class);
-				chatRooms = chatRoomNamesArray[0];
-				//Not a complete solution for duplicate chatroom creation but better than nothing
-				//Removes duplicate entries
-				HashSet<String> h = new HashSet<String>(chatRooms);
-				chatRooms.clear();
-				chatRooms.addAll(h);
-				chatRooms.add(chatRoomName);
-				chatRoomNamesArray[0] = chatRooms;
-				knownChatRoomsEnvelope.updateContent ( chatRoomNamesArray );
-				knownChatRoomsEnvelope.addSignature(getAgent());
-				knownChatRoomsEnvelope.store();
-				L2pLogger.logEvent(Event.SERVICE_MESSAGE, "Updated chatroomlist!");
-				return true;
+				ring = new RoomAffinity(getContext().getLocalNode().findRegisteredAgent(getAgent().getId(),
+						configuration.getExpectedServiceNodes()));
 			} catch (Exception e) {
-				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error updating chatroomlist! " + e);
-				e.printStackTrace();
-				return false;
+				L2pLogger.logEvent(this, Event.SERVICE_ERROR, "Error looking up service nodes! " + e);
+				ring = new RoomAffinity(new Object[0]);
 			}
+			affinityRing = ring;
 		}
+		return ring;
+	}
+	
+	
+	/**
+	 * Invokes a method of this service at the given node, on behalf of the calling user.
+	 * 
+	 * @param nodeId the node the method will be invoked at
+	 * @param method the name of the service method
+	 * @param parameters the parameters of the method
+	 * 
+	 * @return The result of the invocation.
+	 * 
+	 * @throws Exception if the node could not be reached or the invocation failed
+	 */
+	private Serializable invokeAtNode(Object nodeId, String method, Serializable... parameters) throws Exception {
+		return getContext().getLocalNode().invokeGlobally(getContext().getMainAgent(), getAgent().getId(), nodeId,
+				ChatService.class.getName(), method, parameters);
 	}
 	
 	
 	private String getEnvelopeId(String roomName) {
 		return "ChatService-"+roomName;
 	}
-}
\ No newline at end of file
+	
+	
+	private String getOperationLogEnvelopeId(String roomName) {
+		return getEnvelopeId(roomName) + "-operations";
+	}
+	
+	
+	private String getHistoryEnvelopeId(String roomName) {
+		return getEnvelopeId(roomName) + "-history";
+	}
+	
+	
+	private String getHistorySegmentEnvelopeId(String roomName, long segment) {
+		return getEnvelopeId(roomName) + "-history-" + segment;
+	}
+	
+	
+	private String getAttachmentEnvelopeId(String id) {
+		return "ChatService-attachment-" + id;
+	}
+	
+	
+	private String getAttachmentSizeEnvelopeId(String chunkId) {
+		return getAttachmentEnvelopeId(chunkId) + "-size";
+	}
+	
+	
+	private String getPresenceEnvelopeId(Object nodeId) {
+		return "ChatService-presence-" + RoomAffinity.getNodeKey(nodeId);
+	}
+	
+	
+	private String getDeferredEnvelopeId(long agentId, Object nodeId) {
+		return "ChatService-deferred-" + agentId + "-" + RoomAffinity.getNodeKey(nodeId);
+	}
+	
+	
+	private String getDeferredReadEnvelopeId(long agentId, Object nodeId) {
+		return getDeferredEnvelopeId(agentId, nodeId) + "-read";
+	}
+	
+	
+	/**
+	 * A message together with the members it was already delivered to, kept to complete the
+	 * delivery when the message is resent.
+	 */
+	private static class PendingDelivery implements RoomBatcher.DeliveryListener {
+		private final ChatRoomMessage message;
+		private final Set<Long> delivered = new HashSet<Long>();
+		private boolean persisted = false;
+		
+		private PendingDelivery(ChatRoomMessage message) {
+			this.message = message;
+		}
+		
+		private synchronized boolean isDeliveredTo(long agentId) {
+			return delivered.contains(agentId);
+		}
+		
+		@Override
+		public synchronized void deliveredTo(long agentId) {
+			delivered.add(agentId);
+		}
+		
+		private synchronized boolean markPersisted() {
+			if(persisted)
+				return false;
+			persisted = true;
+			return true;
+		}
+	}
+}
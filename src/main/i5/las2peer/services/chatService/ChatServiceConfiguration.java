@@ -0,0 +1,681 @@
+package i5.las2peer.services.chatService;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+
+/**
+ *
+ * <p>Typed and validated view on the tuning values of the {@link i5.las2peer.services.chatService.ChatService}.<br>
+ * The values are read from the property file each time it is (re)loaded, values that make no sense are replaced
+ * by their defaults. An instance is immutable, so a request always works with one consistent set of values,
+ * even if the configuration is reloaded in the meantime. The meaning of each value is described in
+ * etc/i5.las2peer.services.chatService.ChatService.properties.
+ *
+ */
+public class ChatServiceConfiguration {
+
+	private final long sendTimeout;
+	private final int fanOutParallelism;
+	private final int maxDrainPerPoll;
+	private final long deduplicationWindow;
+	private final int deduplicationCacheSize;
+	private final boolean roomAffinity;
+	private final long serviceNodeRefreshInterval;
+	private final int expectedServiceNodes;
+	private final boolean operationLog;
+	private final int operationLogCompaction;
+	private final long presenceExpiry;
+	private final long presencePublishInterval;
+	private final boolean deferOfflineMembers;
+	private final int deferredMailboxSize;
+	private final long deferredWriteWindow;
+	private final long configurationReloadInterval;
+	private final boolean adaptiveFanOut;
+	private final int hotRoomMessageRate;
+	private final int hotRoomMemberCount;
+	private final long batchWindow;
+	private final boolean sharedLog;
+	private final int sharedLogSize;
+	private final boolean historyPersistence;
+	private final int historySegmentSize;
+	private final long historyMaxAge;
+	private final int historyMaxMessages;
+	private final long historyCompactionInterval;
+	private final boolean historyArchive;
+	private final long historyArchiveAge;
+	private final long historyWriteWindow;
+	private final int compressionThreshold;
+	private final int attachmentChunkSize;
+	private final long attachmentMaxSize;
+	private final int attachmentMaxRange;
+	private final boolean writeBehind;
+	private final long writeBehindWindow;
+	private final long writeBehindRetryInterval;
+	private final long mediatorIdleTimeout;
+	private final boolean spillMediatorBacklog;
+	private final long negativeLookupTTL;
+	private final long roomIndexRefresh;
+	private final long eventLifetime;
+	private final int priorityLaneWeight;
+	private final long sendQueueTimeout;
+	private final long roomCacheTTL;
+
+	private final Properties properties;
+	private final String invalidValues;
+	private final long loadedAt = System.currentTimeMillis();
+
+
+	/**
+	 * Constructor for a {@link i5.las2peer.services.chatService.ChatServiceConfiguration}.
+	 *
+	 * @param properties the values by their names, missing values are replaced by their defaults
+	 *
+	 */
+	public ChatServiceConfiguration(Properties properties){
+		this.properties = properties;
+		StringBuilder problems = new StringBuilder();
+		//roomAffinity is read first, the logs depend on it
+		roomAffinity = readBoolean(properties, "roomAffinity", false, problems);
+		sendTimeout = readLong(properties, "sendTimeout", 2000, 1, problems);
+		fanOutParallelism = readInt(properties, "fanOutParallelism", 1, 1, problems);
+		maxDrainPerPoll = readInt(properties, "maxDrainPerPoll", 0, 0, problems);
+		deduplicationWindow = readLong(properties, "deduplicationWindow", 300000, 0, problems);
+		deduplicationCacheSize = readInt(properties, "deduplicationCacheSize", 10000, 1, problems);
+		serviceNodeRefreshInterval = readLong(properties, "serviceNodeRefreshInterval", 30000, 0, problems);
+		expectedServiceNodes = readInt(properties, "expectedServiceNodes", 10, 1, problems);
+		operationLog = readBoolean(properties, "operationLog", false, problems)
+				&& requiresRoomAffinity("operationLog", problems);
+		operationLogCompaction = readInt(properties, "operationLogCompaction", 50, 1, problems);
+		presenceExpiry = readLong(properties, "presenceExpiry", 60000, 1, problems);
+		presencePublishInterval = readLong(properties, "presencePublishInterval", 10000, 1, problems);
+		deferOfflineMembers = readBoolean(properties, "deferOfflineMembers", false, problems);
+		deferredMailboxSize = readInt(properties, "deferredMailboxSize", 500, 1, problems);
+		deferredWriteWindow = readLong(properties, "deferredWriteWindow", 1000, 1, problems);
+		configurationReloadInterval = readLong(properties, "configurationReloadInterval", 60000, 0, problems);
+		adaptiveFanOut = readBoolean(properties, "adaptiveFanOut", false, problems);
+		hotRoomMessageRate = readInt(properties, "hotRoomMessageRate", 5, 1, problems);
+		hotRoomMemberCount = readInt(properties, "hotRoomMemberCount", 100, 1, problems);
+		batchWindow = readLong(properties, "batchWindow", 500, 1, problems);
+		sharedLog = readBoolean(properties, "sharedLog", false, problems)
+				&& requiresRoomAffinity("sharedLog", problems);
+		sharedLogSize = readInt(properties, "sharedLogSize", 1000, 1, problems);
+		historyPersistence = readBoolean(properties, "historyPersistence", false, problems);
+		historySegmentSize = readInt(properties, "historySegmentSize", 100, 1, problems);
+		historyMaxAge = readLong(properties, "historyMaxAge", 0, 0, problems);
+		historyMaxMessages = readInt(properties, "historyMaxMessages", 10000, 0, problems);
+		historyCompactionInterval = readLong(properties, "historyCompactionInterval", 600000, 0, problems);
+		historyArchive = readBoolean(properties, "historyArchive", false, problems);
+		historyArchiveAge = readLong(properties, "historyArchiveAge", 86400000, 0, problems);
+		historyWriteWindow = readLong(properties, "historyWriteWindow", 1000, 1, problems);
+		compressionThreshold = readInt(properties, "compressionThreshold", 0, 0, problems);
+		attachmentChunkSize = readInt(properties, "attachmentChunkSize", 262144, 1, problems);
+		attachmentMaxSize = readLong(properties, "attachmentMaxSize", 52428800, 1, problems);
+		attachmentMaxRange = readInt(properties, "attachmentMaxRange", 1048576, 1, problems);
+		writeBehind = readBoolean(properties, "writeBehind", false, problems);
+		writeBehindWindow = readLong(properties, "writeBehindWindow", 1000, 0, problems);
+		writeBehindRetryInterval = readLong(properties, "writeBehindRetryInterval", 5000, 1, problems);
+		mediatorIdleTimeout = readLong(properties, "mediatorIdleTimeout", 0, 0, problems);
+		spillMediatorBacklog = readBoolean(properties, "spillMediatorBacklog", false, problems);
+		negativeLookupTTL = readLong(properties, "negativeLookupTTL", 0, 0, problems);
+		roomIndexRefresh = readLong(properties, "roomIndexRefresh", 30000, 0, problems);
+		eventLifetime = readLong(properties, "eventLifetime", 10000, 1, problems);
+		priorityLaneWeight = readInt(properties, "priorityLaneWeight", 4, 1, problems);
+		sendQueueTimeout = readLong(properties, "sendQueueTimeout", 1000, 0, problems);
+		roomCacheTTL = readLong(properties, "roomCacheTTL", 0, 0, problems);
+		invalidValues = problems.toString().trim();
+	}
+
+
+	/**
+	 * Reads the configuration from a property file.
+	 *
+	 * @param file the property file, if it does not exist all values are defaults
+	 *
+	 * @return The configuration.
+	 *
+	 * @throws IOException if the file exists, but could not be read
+	 */
+	public static ChatServiceConfiguration read(File file) throws IOException {
+		Properties properties = new Properties();
+		if(file.exists()){
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return new ChatServiceConfiguration(properties);
+	}
+
+
+	/**
+	 * Returns a configuration with the same values that counts as loaded now. Used if the property file could not
+	 * be read again, so it is not read with every request until the next reload interval.
+	 *
+	 * @return The configuration.
+	 */
+	public ChatServiceConfiguration renew(){
+		return new ChatServiceConfiguration(properties);
+	}
+
+
+	/**
+	 * Returns the names of the values that made no sense and were replaced by their defaults.
+	 *
+	 * @return The names separated by spaces, empty if all values were valid.
+	 */
+	public String getInvalidValues(){
+		return invalidValues;
+	}
+
+
+	private static boolean readBoolean(Properties properties, String name, boolean defaultValue, StringBuilder problems){
+		String value = properties.getProperty(name);
+		if(value == null)
+			return defaultValue;
+		value = value.trim();
+		if(value.equalsIgnoreCase("true"))
+			return true;
+		if(value.equalsIgnoreCase("false"))
+			return false;
+		problems.append(name).append(' ');
+		return defaultValue;
+	}
+
+
+	private static int readInt(Properties properties, String name, int defaultValue, int min, StringBuilder problems){
+		return (int) readLong(properties, name, defaultValue, min, Integer.MAX_VALUE, problems);
+	}
+
+
+	private static long readLong(Properties properties, String name, long defaultValue, long min, StringBuilder problems){
+		return readLong(properties, name, defaultValue, min, Long.MAX_VALUE, problems);
+	}
+
+
+	private static long readLong(Properties properties, String name, long defaultValue, long min, long max,
+			StringBuilder problems){
+		String value = properties.getProperty(name);
+		if(value == null)
+			return defaultValue;
+		try {
+			long parsed = Long.parseLong(value.trim());
+			if(parsed >= min && parsed <= max)
+				return parsed;
+		} catch (NumberFormatException e) {
+			//Reported below
+		}
+		problems.append(name).append(' ');
+		return defaultValue;
+	}
+
+
+	private boolean requiresRoomAffinity(String name, StringBuilder problems){
+		//Only the owning node may append to the log of a chatroom, otherwise two nodes could append at the same
+		//time or members polling at other nodes would not get the messages
+		if(!roomAffinity)
+			problems.append(name).append(' ');
+		return roomAffinity;
+	}
+
+
+	/**
+	 * Returns the time to wait for the answer to a sent message.
+	 *
+	 * @return The timeout in milliseconds.
+	 */
+	public long getSendTimeout() {
+		return sendTimeout;
+	}
+
+
+	/**
+	 * Returns the number of messages the node sends at the same time.
+	 *
+	 * @return A number of at least one.
+	 */
+	public int getFanOutParallelism() {
+		return fanOutParallelism;
+	}
+
+
+	/**
+	 * Returns the maximum number of messages taken from the mailbox of a user per poll.
+	 *
+	 * @return A number, 0 if unlimited.
+	 */
+	public int getMaxDrainPerPoll() {
+		return maxDrainPerPoll;
+	}
+
+
+	/**
+	 * Returns the time resent messages are recognized.
+	 *
+	 * @return The window in milliseconds.
+	 */
+	public long getDeduplicationWindow() {
+		return deduplicationWindow;
+	}
+
+
+	/**
+	 * Returns the maximum number of messages remembered for deduplication, of the messages sent at this node
+	 * and of the messages received by each user.
+	 *
+	 * @return A number.
+	 */
+	public int getDeduplicationCacheSize() {
+		return deduplicationCacheSize;
+	}
+
+
+	/**
+	 * Determines, if messages are sent by the node owning the {@link i5.las2peer.services.chatService.ChatRoom}.
+	 *
+	 * @return True or False.
+	 */
+	public boolean isRoomAffinity() {
+		return roomAffinity;
+	}
+
+
+	/**
+	 * Returns the time after which the nodes hosting the service are looked up again.
+	 *
+	 * @return The interval in milliseconds.
+	 */
+	public long getServiceNodeRefreshInterval() {
+		return serviceNodeRefreshInterval;
+	}
+
+
+	/**
+	 * Returns the expected number of nodes hosting the service, used as hint for looking them up.
+	 *
+	 * @return A number.
+	 */
+	public int getExpectedServiceNodes() {
+		return expectedServiceNodes;
+	}
+
+
+	/**
+	 * Determines, if changes of a {@link i5.las2peer.services.chatService.ChatRoom} are appended to an operation log.
+	 * Only enabled together with room affinity, so the owning node is the only one appending.
+	 *
+	 * @return True or False.
+	 */
+	public boolean isOperationLog() {
+		return operationLog;
+	}
+
+
+	/**
+	 * Returns the number of logged operations after which a snapshot is written.
+	 *
+	 * @return A number.
+	 */
+	public int getOperationLogCompaction() {
+		return operationLogCompaction;
+	}
+
+
+	/**
+	 * Returns the time after which a user without poll or heartbeat counts as offline.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	public long getPresenceExpiry() {
+		return presenceExpiry;
+	}
+
+
+	/**
+	 * Returns the interval in which the users online at a node are published to the other nodes.
+	 *
+	 * @return The interval in milliseconds.
+	 */
+	public long getPresencePublishInterval() {
+		return presencePublishInterval;
+	}
+
+
+	/**
+	 * Determines, if messages for offline members are stored in their deferred mailbox instead of being sent.
+	 *
+	 * @return True or False.
+	 */
+	public boolean isDeferOfflineMembers() {
+		return deferOfflineMembers;
+	}
+
+
+	/**
+	 * Returns the maximum number of messages kept in the deferred mailbox of a user.
+	 *
+	 * @return A number.
+	 */
+	public int getDeferredMailboxSize() {
+		return deferredMailboxSize;
+	}
+
+
+	/**
+	 * Returns the time the messages deferred for offline users are collected before they are written to the
+	 * deferred mailboxes, one write per user.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	public long getDeferredWriteWindow() {
+		return deferredWriteWindow;
+	}
+
+
+	/**
+	 * Determines, if the messages of hot {@link i5.las2peer.services.chatService.ChatRoom}s are delivered in batches.
+	 *
+	 * @return True or False.
+	 */
+	public boolean isAdaptiveFanOut() {
+		return adaptiveFanOut;
+	}
+
+
+	/**
+	 * Returns the message rate from which on a room is hot.
+	 *
+	 * @return Messages per second.
+	 */
+	public int getHotRoomMessageRate() {
+		return hotRoomMessageRate;
+	}
+
+
+	/**
+	 * Returns the number of members from which on a room is hot.
+	 *
+	 * @return A number.
+	 */
+	public int getHotRoomMemberCount() {
+		return hotRoomMemberCount;
+	}
+
+
+	/**
+	 * Returns the time the messages of a hot room are collected before they are delivered.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	public long getBatchWindow() {
+		return batchWindow;
+	}
+
+
+	/**
+	 * Determines, if the messages of a {@link i5.las2peer.services.chatService.ChatRoom} are appended to a shared log
+	 * instead of being sent to each member.
+	 *
+	 * @return True or False.
+	 */
+	public boolean isSharedLog() {
+		return sharedLog;
+	}
+
+
+	/**
+	 * Returns the number of messages kept in the shared log of a room.
+	 *
+	 * @return A number.
+	 */
+	public int getSharedLogSize() {
+		return sharedLogSize;
+	}
+
+
+	/**
+	 * Determines, if the messages of a {@link i5.las2peer.services.chatService.ChatRoom} are persisted as its history.
+	 *
+	 * @return True or False.
+	 */
+	public boolean isHistoryPersistence() {
+		return historyPersistence;
+	}
+
+
+	/**
+	 * Returns the number of messages per history segment.
+	 *
+	 * @return A number.
+	 */
+	public int getHistorySegmentSize() {
+		return historySegmentSize;
+	}
+
+
+	/**
+	 * Returns the maximum age of persisted messages, for rooms without an own retention policy.
+	 *
+	 * @return The age in milliseconds, 0 if unlimited.
+	 */
+	public long getHistoryMaxAge() {
+		return historyMaxAge;
+	}
+
+
+	/**
+	 * Returns the maximum number of persisted messages per room, for rooms without an own retention policy.
+	 *
+	 * @return A number, 0 if unlimited.
+	 */
+	public int getHistoryMaxMessages() {
+		return historyMaxMessages;
+	}
+
+
+	/**
+	 * Returns the minimum time between two compactions of the history of a room.
+	 *
+	 * @return The interval in milliseconds.
+	 */
+	public long getHistoryCompactionInterval() {
+		return historyCompactionInterval;
+	}
+
+
+	/**
+	 * Determines, if old history segments are compressed.
+	 *
+	 * @return True or False.
+	 */
+	public boolean isHistoryArchive() {
+		return historyArchive;
+	}
+
+
+	/**
+	 * Returns the age after which a history segment is compressed.
+	 *
+	 * @return The age in milliseconds.
+	 */
+	public long getHistoryArchiveAge() {
+		return historyArchiveAge;
+	}
+
+
+	/**
+	 * Returns the time the messages of a {@link i5.las2peer.services.chatService.ChatRoom} are collected
+	 * before they are written to its history together.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	public long getHistoryWriteWindow() {
+		return historyWriteWindow;
+	}
+
+
+	/**
+	 * Returns the message length from which on the content of a message is compressed.
+	 *
+	 * @return The length in characters, 0 if compression is disabled.
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+
+	/**
+	 * Returns the maximum size of an uploaded chunk of a file.
+	 *
+	 * @return The size in bytes.
+	 */
+	public int getAttachmentChunkSize() {
+		return attachmentChunkSize;
+	}
+
+
+	/**
+	 * Returns the maximum size of a shared file.
+	 *
+	 * @return The size in bytes.
+	 */
+	public long getAttachmentMaxSize() {
+		return attachmentMaxSize;
+	}
+
+
+	/**
+	 * Returns the maximum number of bytes downloaded with one request.
+	 *
+	 * @return The length in bytes.
+	 */
+	public int getAttachmentMaxRange() {
+		return attachmentMaxRange;
+	}
+
+
+	/**
+	 * Determines, if changed {@link i5.las2peer.services.chatService.ChatRoom}s are written to the storage
+	 * after the request instead of during it. Changes not written yet are lost if the node stops.
+	 *
+	 * @return True or False.
+	 */
+	public boolean isWriteBehind() {
+		return writeBehind;
+	}
+
+
+	/**
+	 * Returns the time changes of a room are collected before they are written.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	public long getWriteBehindWindow() {
+		return writeBehindWindow;
+	}
+
+
+	/**
+	 * Returns the time after which a failed write is retried.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	public long getWriteBehindRetryInterval() {
+		return writeBehindRetryInterval;
+	}
+
+
+	/**
+	 * Returns the time after which the mediator of a user that did not poll is unregistered.
+	 *
+	 * @return The time in milliseconds, 0 if mediators are never unregistered.
+	 */
+	public long getMediatorIdleTimeout() {
+		return mediatorIdleTimeout;
+	}
+
+
+	/**
+	 * Determines, if the waiting messages of an unregistered mediator are moved to the deferred mailbox of its user.
+	 *
+	 * @return True or False.
+	 */
+	public boolean isSpillMediatorBacklog() {
+		return spillMediatorBacklog;
+	}
+
+
+	/**
+	 * Returns the time lookups of chatrooms that do not exist are answered without asking the storage.
+	 *
+	 * @return The time in milliseconds, 0 if the storage is always asked.
+	 */
+	public long getNegativeLookupTTL() {
+		return negativeLookupTTL;
+	}
+
+
+	/**
+	 * Returns the time after which the index used to search chatrooms is built again from the room directory.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	public long getRoomIndexRefresh() {
+		return roomIndexRefresh;
+	}
+
+
+	/**
+	 * Returns the time ephemeral events, like typing indicators, are kept.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	public long getEventLifetime() {
+		return eventLifetime;
+	}
+
+
+	/**
+	 * Returns the number of send slots the priority lane gets for each slot of the bulk lane while both are waiting.
+	 *
+	 * @return A number.
+	 */
+	public int getPriorityLaneWeight() {
+		return priorityLaneWeight;
+	}
+
+
+	/**
+	 * Returns the time a message waits for a send slot before the node reports to be busy.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	public long getSendQueueTimeout() {
+		return sendQueueTimeout;
+	}
+
+
+	/**
+	 * Returns the time the state of a chatroom is kept in memory. Changes at other nodes drop it earlier.
+	 *
+	 * @return The time in milliseconds, 0 if chatrooms are always fetched from the storage.
+	 */
+	public long getRoomCacheTTL() {
+		return roomCacheTTL;
+	}
+
+
+	/**
+	 * Determines, if the property file should be read again.
+	 *
+	 * @return True or False.
+	 */
+	public boolean isOutdated() {
+		return configurationReloadInterval > 0 && System.currentTimeMillis() - loadedAt > configurationReloadInterval;
+	}
+}
@@ -0,0 +1,368 @@
+package i5.las2peer.services.chatService;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ *
+ * <p>Java Flight Recorder events emitted by the {@link i5.las2peer.services.chatService.ChatService}.<br>
+ * Each event measures the duration of one operation and carries its sizes, so a recording shows which path of
+ * the service is hot. Whether an event type is enabled in a running recording is checked at most once per second,
+ * so events that are not enabled cost next to nothing and are always emitted.<br>
+ * The flight recorder API is only available since Java 11 (and late updates of Java 8), so the event types are
+ * defined at runtime through reflection. On a JVM without it, all events do nothing.
+ *
+ */
+public final class ChatServiceEvents {
+
+	private static final String[] CATEGORY = {"las2peer", "Chat Service"};
+	private static final long ENABLEMENT_CHECK_INTERVAL = 1000; //A recording started since is picked up after this time
+
+	private static Method createFactory;
+	private static Method newEvent;
+	private static Method getEventType;
+	private static Method isEnabled;
+	private static Method begin;
+	private static Method shouldCommit;
+	private static Method set;
+	private static Method commit;
+	private static Constructor<?> annotationElement;
+	private static Constructor<?> valueDescriptor;
+	private static Class<? extends Annotation> nameAnnotation;
+	private static Class<? extends Annotation> labelAnnotation;
+	private static Class<? extends Annotation> descriptionAnnotation;
+	private static Class<? extends Annotation> categoryAnnotation;
+	private static boolean available;
+
+	static {
+		try {
+			Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+			createFactory = factoryClass.getMethod("create", List.class, List.class);
+			newEvent = factoryClass.getMethod("newEvent");
+			getEventType = factoryClass.getMethod("getEventType");
+			isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+			begin = eventClass.getMethod("begin");
+			shouldCommit = eventClass.getMethod("shouldCommit");
+			set = eventClass.getMethod("set", int.class, Object.class);
+			commit = eventClass.getMethod("commit");
+			annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+			valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+			nameAnnotation = Class.forName("jdk.jfr.Name").asSubclass(Annotation.class);
+			labelAnnotation = Class.forName("jdk.jfr.Label").asSubclass(Annotation.class);
+			descriptionAnnotation = Class.forName("jdk.jfr.Description").asSubclass(Annotation.class);
+			categoryAnnotation = Class.forName("jdk.jfr.Category").asSubclass(Annotation.class);
+			available = true;
+		} catch (Exception | LinkageError e) {
+			available = false; //No flight recorder, events are not emitted
+		}
+	}
+
+	private ChatServiceEvents() {
+	}
+
+
+	/**
+	 * A {@link i5.las2peer.services.chatService.ChatRoom} was looked up.
+	 */
+	public static class RoomFetch extends FlightEvent {
+		private static final EventType TYPE = new EventType("i5.las2peer.chatService.RoomFetch", "Chatroom Fetch",
+				"Lookup of a chatroom, including the replay of its logged operations",
+				new Field(String.class, "room", "Chatroom", null),
+				new Field(boolean.class, "found", "Found", null),
+				new Field(String.class, "source", "Source", "Where the chatroom was found: pending, cache or storage"),
+				new Field(int.class, "members", "Members", null),
+				new Field(int.class, "operations", "Replayed Operations", null));
+
+		String room;
+		boolean found;
+		String source;
+		int members;
+		int operations;
+
+		/**
+		 * Creates the event, it starts with {@link #begin()}.
+		 */
+		public RoomFetch() {
+			super(TYPE);
+		}
+
+		@Override
+		Object[] getValues() {
+			return new Object[] {room, found, source, members, operations};
+		}
+	}
+
+
+	/**
+	 * A changed {@link i5.las2peer.services.chatService.ChatRoom} was written to the storage.
+	 */
+	public static class RoomStore extends FlightEvent {
+		private static final EventType TYPE = new EventType("i5.las2peer.chatService.RoomStore", "Chatroom Store",
+				"Write of a chatroom snapshot or logged operation to the storage",
+				new Field(String.class, "room", "Chatroom", null),
+				new Field(int.class, "members", "Members", null),
+				new Field(int.class, "operations", "Pending Operations", null),
+				new Field(boolean.class, "success", "Success", null));
+
+		String room;
+		int members;
+		int operations;
+		boolean success;
+
+		/**
+		 * Creates the event, it starts with {@link #begin()}.
+		 */
+		public RoomStore() {
+			super(TYPE);
+		}
+
+		@Override
+		Object[] getValues() {
+			return new Object[] {room, members, operations, success};
+		}
+	}
+
+
+	/**
+	 * A message was handed to the members of its {@link i5.las2peer.services.chatService.ChatRoom}.
+	 */
+	public static class FanOut extends FlightEvent {
+		private static final EventType TYPE = new EventType("i5.las2peer.chatService.FanOut", "Fan-Out",
+				"Delivery of a chatroom message to its members, from start to end",
+				new Field(String.class, "room", "Chatroom", null),
+				new Field(int.class, "members", "Members", null),
+				new Field(String.class, "mode", "Mode", "DIRECT, BATCHED or LOG"),
+				new Field(boolean.class, "complete", "Complete", "False, if the node was busy and the message has to be resent"));
+
+		String room;
+		int members;
+		String mode;
+		boolean complete;
+
+		/**
+		 * Creates the event, it starts with {@link #begin()}.
+		 */
+		public FanOut() {
+			super(TYPE);
+		}
+
+		@Override
+		Object[] getValues() {
+			return new Object[] {room, members, mode, complete};
+		}
+	}
+
+
+	/**
+	 * A message was sent to one recipient and answered.
+	 */
+	public static class RecipientSend extends FlightEvent {
+		private static final EventType TYPE = new EventType("i5.las2peer.chatService.RecipientSend", "Recipient Send",
+				"Send of a message to one recipient, until its acknowledgement or timeout",
+				new Field(String.class, "room", "Chatroom", null),
+				new Field(long.class, "recipientId", "Recipient", null),
+				new Field(boolean.class, "success", "Acknowledged", null));
+
+		String room;
+		long recipientId;
+		boolean success;
+
+		/**
+		 * Creates the event, it starts with {@link #begin()}.
+		 */
+		public RecipientSend() {
+			super(TYPE);
+		}
+
+		@Override
+		Object[] getValues() {
+			return new Object[] {room, recipientId, success};
+		}
+	}
+
+
+	/**
+	 * Messages were taken from the mediator of a polling user.
+	 */
+	public static class MediatorDrain extends FlightEvent {
+		private static final EventType TYPE = new EventType("i5.las2peer.chatService.MediatorDrain", "Mediator Drain",
+				"Messages taken from the mediator of a polling user",
+				new Field(long.class, "agentId", "User", null),
+				new Field(int.class, "drained", "Drained Messages", null),
+				new Field(int.class, "remaining", "Remaining Messages", null));
+
+		long agentId;
+		int drained;
+		int remaining;
+
+		/**
+		 * Creates the event, it starts with {@link #begin()}.
+		 */
+		public MediatorDrain() {
+			super(TYPE);
+		}
+
+		@Override
+		Object[] getValues() {
+			return new Object[] {agentId, drained, remaining};
+		}
+	}
+
+
+	/**
+	 * An agent was looked up at the node.
+	 */
+	public static class AgentLookup extends FlightEvent {
+		private static final EventType TYPE = new EventType("i5.las2peer.chatService.AgentLookup", "Agent Lookup",
+				"Lookup of a user agent at the node",
+				new Field(long.class, "agentId", "Agent", null),
+				new Field(boolean.class, "found", "Found", null));
+
+		long agentId;
+		boolean found;
+
+		/**
+		 * Creates the event, it starts with {@link #begin()}.
+		 */
+		public AgentLookup() {
+			super(TYPE);
+		}
+
+		@Override
+		Object[] getValues() {
+			return new Object[] {agentId, found};
+		}
+	}
+
+
+	/**
+	 * Base of the events. Wraps a flight recorder event of the given type, or nothing if the flight recorder
+	 * is not available.
+	 */
+	public abstract static class FlightEvent {
+		private final Object event;
+
+		FlightEvent(EventType type) {
+			event = type.isEnabled() ? type.newEvent() : null;
+		}
+
+		/**
+		 * Starts the measurement of the event.
+		 */
+		public void begin() {
+			if(event != null)
+				invoke(begin);
+		}
+
+		/**
+		 * Determines, if the event would be recorded, so its values are only collected if needed.
+		 *
+		 * @return True, if the event is enabled in a running recording.
+		 */
+		public boolean shouldCommit() {
+			return event != null && Boolean.TRUE.equals(invoke(shouldCommit));
+		}
+
+		/**
+		 * Ends the measurement and records the event with its current values, if it is enabled. Callers check
+		 * {@link #shouldCommit()} first, so it is not checked again.
+		 */
+		public void commit() {
+			if(event == null)
+				return;
+			Object[] values = getValues();
+			for(int i = 0; i < values.length; i++)
+				invoke(set, i, values[i]);
+			invoke(commit);
+		}
+
+		abstract Object[] getValues(); //In the order of the fields of the type
+
+		private Object invoke(Method method, Object... parameters) {
+			try {
+				return method.invoke(event, parameters);
+			} catch (Exception e) {
+				return null; //Recording is best effort
+			}
+		}
+	}
+
+
+	private static class EventType {
+		private final Object factory;
+		private final Object type;
+		private volatile boolean enabled = false;
+		private volatile long checkedAt = 0;
+
+		private EventType(String typeName, String typeLabel, String typeDescription, Field... fields) {
+			factory = available ? createFactory(typeName, typeLabel, typeDescription, fields) : null;
+			type = factory == null ? null : invoke(getEventType, factory);
+		}
+
+		private boolean isEnabled() {
+			if(type == null)
+				return false;
+			long now = System.currentTimeMillis();
+			if(now - checkedAt > ENABLEMENT_CHECK_INTERVAL){
+				enabled = Boolean.TRUE.equals(invoke(isEnabled, type));
+				checkedAt = now;
+			}
+			return enabled;
+		}
+
+		private Object newEvent() {
+			return invoke(newEvent, factory);
+		}
+
+		private static Object invoke(Method method, Object target) {
+			try {
+				return method.invoke(target);
+			} catch (Exception e) {
+				return null;
+			}
+		}
+
+		private static Object createFactory(String typeName, String typeLabel, String typeDescription, Field[] fields) {
+			try {
+				List<Object> annotations = new ArrayList<Object>();
+				annotations.add(annotationElement.newInstance(nameAnnotation, typeName));
+				annotations.add(annotationElement.newInstance(labelAnnotation, typeLabel));
+				annotations.add(annotationElement.newInstance(categoryAnnotation, CATEGORY));
+				annotations.add(annotationElement.newInstance(descriptionAnnotation, typeDescription));
+				List<Object> values = new ArrayList<Object>();
+				for(Field field : fields){
+					List<Object> fieldAnnotations = new ArrayList<Object>();
+					fieldAnnotations.add(annotationElement.newInstance(labelAnnotation, field.label));
+					if(field.description != null)
+						fieldAnnotations.add(annotationElement.newInstance(descriptionAnnotation, field.description));
+					values.add(valueDescriptor.newInstance(field.type, field.name, fieldAnnotations));
+				}
+				return createFactory.invoke(null, annotations, values);
+			} catch (Exception | LinkageError e) {
+				return null; //The events of this type are not emitted
+			}
+		}
+	}
+
+
+	private static class Field {
+		private final Class<?> type;
+		private final String name;
+		private final String label;
+		private final String description;
+
+		private Field(Class<?> type, String name, String label, String description) {
+			this.type = type;
+			this.name = name;
+			this.label = label;
+			this.description = description;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package i5.las2peer.services.chatService;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ *
+ * <p>Bounded, time-windowed cache that is used by the {@link i5.las2peer.services.chatService.ChatService} to
+ * recognize messages it has already seen.<br>
+ * Entries are kept in insertion order and dropped once they are older than the window or once the cache
+ * exceeds its maximum size, so memory use is bounded no matter how many messages pass the node.
+ *
+ * @param <V> the type of the values stored for each key
+ *
+ */
+public class DeduplicationCache<V> {
+
+	private long window;
+	private int maxSize;
+	private final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<String, Entry<V>>();
+
+
+	/**
+	 * Constructor for a {@link i5.las2peer.services.chatService.DeduplicationCache}.
+	 *
+	 * @param window the time in milliseconds an entry is kept
+	 * @param maxSize the maximum number of entries
+	 *
+	 */
+	public DeduplicationCache(long window, int maxSize){
+		this.window = window;
+		this.maxSize = maxSize;
+	}
+
+
+	/**
+	 * Changes the window and the maximum size of this cache. Entries exceeding the new limits are dropped
+	 * with the next access.
+	 *
+	 * @param window the time in milliseconds an entry is kept
+	 * @param maxSize the maximum number of entries
+	 *
+	 */
+	public synchronized void setLimits(long window, int maxSize){
+		this.window = window;
+		this.maxSize = maxSize;
+	}
+
+
+	/**
+	 * Returns the value stored for the given key.
+	 *
+	 * @param key the key
+	 *
+	 * @return The value or null, if the key was not seen within the window.
+	 */
+	public synchronized V get(String key){
+		expire();
+		Entry<V> entry = entries.get(key);
+		if(entry == null)
+			return null;
+		return entry.value;
+	}
+
+
+	/**
+	 * Stores a value for the given key, if the key was not seen within the window.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 *
+	 * @return The value that was already stored for the key or null, if the given value was stored.
+	 */
+	public synchronized V putIfAbsent(String key, V value){
+		expire();
+		Entry<V> entry = entries.get(key);
+		if(entry != null)
+			return entry.value;
+		entries.put(key, new Entry<V>(value));
+		Iterator<String> oldest = entries.keySet().iterator();
+		while(entries.size() > maxSize){
+			oldest.next();
+			oldest.remove();
+		}
+		return null;
+	}
+
+
+	/**
+	 * Marks the given key as seen.
+	 *
+	 * @param key the key
+	 * @param value the value stored with the key, must not be null
+	 *
+	 * @return True, if the key was not seen within the window before.
+	 */
+	public boolean markSeen(String key, V value){
+		return putIfAbsent(key, value) == null;
+	}
+
+
+	private void expire(){
+		long oldest = System.currentTimeMillis() - window;
+		Iterator<Map.Entry<String, Entry<V>>> iterator = entries.entrySet().iterator();
+		while(iterator.hasNext() && iterator.next().getValue().created < oldest)
+			iterator.remove();
+	}
+
+
+	private static class Entry<V> {
+		private final V value;
+		private final long created = System.currentTimeMillis();
+
+		private Entry(V value) {
+			this.value = value;
+		}
+	}
+}
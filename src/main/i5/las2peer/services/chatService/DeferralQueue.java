@@ -0,0 +1,91 @@
+package i5.las2peer.services.chatService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ *
+ * <p>Collects the messages the {@link i5.las2peer.services.chatService.ChatService} defers for offline users, so
+ * sending to a mostly offline room does not access the storage for every member. The messages of a user are
+ * appended to the deferred mailbox of this node together, once per write window.<br>
+ * The messages are only kept in memory until they are written, so they are lost if the node stops.
+ *
+ */
+public class DeferralQueue {
+
+	private Map<Long, List<ChatRoomMessage>> messages = new LinkedHashMap<Long, List<ChatRoomMessage>>();
+
+
+	/**
+	 * Adds a message to the messages waiting for the given user.
+	 *
+	 * @param agentId the id of the user
+	 * @param chatRoomMessage the message
+	 *
+	 */
+	public synchronized void add(long agentId, ChatRoomMessage chatRoomMessage) {
+		List<ChatRoomMessage> waiting = messages.get(agentId);
+		if(waiting == null){
+			waiting = new ArrayList<ChatRoomMessage>();
+			messages.put(agentId, waiting);
+		}
+		waiting.add(chatRoomMessage);
+	}
+
+
+	/**
+	 * Puts messages that could not be written back in front of the messages waiting for the given user.
+	 *
+	 * @param agentId the id of the user
+	 * @param chatRoomMessages the messages, oldest first
+	 *
+	 */
+	public synchronized void addFirst(long agentId, List<ChatRoomMessage> chatRoomMessages) {
+		List<ChatRoomMessage> waiting = new ArrayList<ChatRoomMessage>(chatRoomMessages);
+		List<ChatRoomMessage> queued = messages.remove(agentId);
+		if(queued != null)
+			waiting.addAll(queued);
+		messages.put(agentId, waiting);
+	}
+
+
+	/**
+	 * Removes and returns the messages waiting for the given user.
+	 *
+	 * @param agentId the id of the user
+	 *
+	 * @return The messages, oldest first.
+	 */
+	public synchronized List<ChatRoomMessage> take(long agentId) {
+		List<ChatRoomMessage> taken = messages.remove(agentId);
+		if(taken == null)
+			return Collections.emptyList();
+		return taken;
+	}
+
+
+	/**
+	 * Removes and returns all waiting messages.
+	 *
+	 * @return The messages by the id of their user, oldest first.
+	 */
+	public synchronized Map<Long, List<ChatRoomMessage>> takeAll() {
+		Map<Long, List<ChatRoomMessage>> taken = messages;
+		messages = new LinkedHashMap<Long, List<ChatRoomMessage>>();
+		return taken;
+	}
+
+
+	/**
+	 * Determines, if no messages are waiting.
+	 *
+	 * @return True or False.
+	 */
+	public synchronized boolean isEmpty() {
+		return messages.isEmpty();
+	}
+}
@@ -0,0 +1,86 @@
+package i5.las2peer.services.chatService;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ *
+ * <p>Data class that is used by the {@link i5.las2peer.services.chatService.ChatService} to store the messages
+ * deferred by one node for one user.<br>
+ * Each node only writes its own mailboxes, and readers do not clear them but store the sequence number up to which
+ * they read. The node drops the read messages with its next write, so a message deferred while a reader takes
+ * the mailbox is never overwritten.
+ *
+ */
+public class DeferredMailbox implements Serializable{
+
+	private static final long serialVersionUID = 6287304191846115420L;
+
+	private long firstSequence; //Sequence number of the first message
+	private ChatRoomMessage[] messages;
+
+
+	/**
+	 * Constructor for an empty {@link i5.las2peer.services.chatService.DeferredMailbox}.
+	 */
+	public DeferredMailbox(){
+		this(0, new ChatRoomMessage[0]);
+	}
+
+
+	private DeferredMailbox(long firstSequence, ChatRoomMessage[] messages){
+		this.firstSequence = firstSequence;
+		this.messages = messages;
+	}
+
+
+	/**
+	 * Returns a mailbox with the given messages appended. Messages that were read are dropped, and the oldest
+	 * messages if the mailbox is full.
+	 *
+	 * @param added the messages to be appended
+	 * @param readUpTo the sequence number up to which the mailbox was read
+	 * @param maxSize the maximum number of messages kept
+	 *
+	 * @return The new mailbox.
+	 */
+	public DeferredMailbox append(List<ChatRoomMessage> added, long readUpTo, int maxSize){
+		ChatRoomMessage[] unread = getUnread(readUpTo);
+		long nextSequence = getNextSequence();
+		ChatRoomMessage[] appended = Arrays.copyOf(unread, unread.length + added.size());
+		for(int i = 0; i < added.size(); i++)
+			appended[unread.length + i] = added.get(i);
+		if(appended.length > maxSize)
+			appended = Arrays.copyOfRange(appended, appended.length - maxSize, appended.length);
+		return new DeferredMailbox(nextSequence + added.size() - appended.length, appended);
+	}
+
+
+	/**
+	 * Returns the messages that were not read yet.
+	 *
+	 * @param readUpTo the sequence number up to which the mailbox was read
+	 *
+	 * @return An array of messages, in the order they were deferred.
+	 */
+	public ChatRoomMessage[] getUnread(long readUpTo){
+		if(readUpTo <= firstSequence)
+			return messages;
+		if(readUpTo >= getNextSequence())
+			return new ChatRoomMessage[0];
+		return Arrays.copyOfRange(messages, (int) (readUpTo - firstSequence), messages.length);
+	}
+
+
+	/**
+	 * Returns the sequence number the next appended message gets, which is the sequence number up to which
+	 * a reader taking all messages has read.
+	 *
+	 * @return A number.
+	 */
+	public long getNextSequence(){
+		return firstSequence + messages.length;
+	}
+}
@@ -0,0 +1,122 @@
+package i5.las2peer.services.chatService;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ *
+ * <p>Collects the latency distributions of the {@link i5.las2peer.services.chatService.ChatRoomMessage}s of each
+ * {@link i5.las2peer.services.chatService.ChatRoom}, measured by the {@link i5.las2peer.services.chatService.ChatService}
+ * from the trace stamps the messages carry.<br>
+ * Each stage is recorded in a histogram with buckets doubling in size, so recording costs a few atomic
+ * increments and the memory per room is constant. Percentiles are reported as the upper bound of their bucket.
+ *
+ */
+public class DeliveryLatency {
+
+	/**
+	 * The measured stages of a delivery.
+	 */
+	public enum Stage {
+		/**
+		 * From the creation of the message to the start of its fan-out, at the sending node.
+		 */
+		QUEUE,
+
+		/**
+		 * From the start of the fan-out to the acknowledgement of a recipient, at the sending node.
+		 */
+		ACK,
+
+		/**
+		 * From the creation of the message to its reading by a recipient, at the reading node.
+		 */
+		READ
+	}
+
+	private static final int BUCKETS = 24; //Up to about 2.3 hours, the last bucket takes everything longer
+
+	private final ConcurrentHashMap<String, Histogram[]> rooms = new ConcurrentHashMap<String, Histogram[]>();
+
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param chatRoomName the name of the room
+	 * @param stage the measured stage
+	 * @param latency the latency in milliseconds
+	 *
+	 */
+	public void record(String chatRoomName, Stage stage, long latency){
+		Histogram[] histograms = rooms.get(chatRoomName);
+		if(histograms == null){
+			histograms = new Histogram[Stage.values().length];
+			for(int i = 0; i < histograms.length; i++)
+				histograms[i] = new Histogram();
+			Histogram[] previous = rooms.putIfAbsent(chatRoomName, histograms);
+			if(previous != null)
+				histograms = previous;
+		}
+		histograms[stage.ordinal()].record(Math.max(0, latency)); //Clocks of different nodes may differ
+	}
+
+
+	/**
+	 * Describes the latency distributions of a room.
+	 *
+	 * @param chatRoomName the name of the room
+	 *
+	 * @return One line per stage with the number of measurements, the median, 90th and 99th percentile and
+	 * the maximum, empty if nothing was measured for the room.
+	 */
+	public String[] describe(String chatRoomName){
+		Histogram[] histograms = rooms.get(chatRoomName);
+		if(histograms == null)
+			return new String[0];
+		String[] lines = new String[histograms.length];
+		for(Stage stage : Stage.values()){
+			Histogram histogram = histograms[stage.ordinal()];
+			lines[stage.ordinal()] = stage.name().toLowerCase() + ": count=" + histogram.getCount()
+					+ " p50<=" + histogram.getPercentile(0.5) + "ms p90<=" + histogram.getPercentile(0.9)
+					+ "ms p99<=" + histogram.getPercentile(0.99) + "ms max=" + histogram.max.get() + "ms";
+		}
+		return lines;
+	}
+
+
+	private static class Histogram {
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong max = new AtomicLong();
+
+		//Bucket i holds latencies up to 2^i milliseconds
+		private void record(long latency){
+			int bucket = latency <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(latency - 1);
+			counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+			long previous;
+			while(latency > (previous = max.get()) && !max.compareAndSet(previous, latency));
+		}
+
+		private long getCount(){
+			long count = 0;
+			for(int i = 0; i < BUCKETS; i++)
+				count += counts.get(i);
+			return count;
+		}
+
+		private long getPercentile(double fraction){
+			long count = getCount();
+			if(count == 0)
+				return 0;
+			long rank = (long) Math.ceil(count * fraction);
+			long seen = 0;
+			for(int i = 0; i < BUCKETS - 1; i++){
+				seen += counts.get(i);
+				if(seen >= rank)
+					return 1L << i;
+			}
+			return max.get();
+		}
+	}
+}
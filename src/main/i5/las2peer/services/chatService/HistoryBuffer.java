@@ -0,0 +1,57 @@
+package i5.las2peer.services.chatService;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ *
+ * <p>Collects the messages the {@link i5.las2peer.services.chatService.ChatService} persists in the history of
+ * their {@link i5.las2peer.services.chatService.ChatRoom}s, so they are written in batches instead of with every send.<br>
+ * The messages are only kept in memory until they are written, so they are lost if the node stops.
+ *
+ */
+public class HistoryBuffer {
+
+	private Map<String, List<ChatRoomMessage>> messages = new LinkedHashMap<String, List<ChatRoomMessage>>();
+
+
+	/**
+	 * Adds a message to the messages waiting for its room.
+	 *
+	 * @param chatRoomMessage the message
+	 *
+	 */
+	public synchronized void add(ChatRoomMessage chatRoomMessage) {
+		List<ChatRoomMessage> waiting = messages.get(chatRoomMessage.getInChatRoom());
+		if(waiting == null){
+			waiting = new ArrayList<ChatRoomMessage>();
+			messages.put(chatRoomMessage.getInChatRoom(), waiting);
+		}
+		waiting.add(chatRoomMessage);
+	}
+
+
+	/**
+	 * Removes and returns all waiting messages.
+	 *
+	 * @return The messages by the name of their room, in the order they were added.
+	 */
+	public synchronized Map<String, List<ChatRoomMessage>> takeAll() {
+		Map<String, List<ChatRoomMessage>> taken = messages;
+		messages = new LinkedHashMap<String, List<ChatRoomMessage>>();
+		return taken;
+	}
+
+
+	/**
+	 * Determines, if no messages are waiting.
+	 *
+	 * @return True or False.
+	 */
+	public synchronized boolean isEmpty() {
+		return messages.isEmpty();
+	}
+}
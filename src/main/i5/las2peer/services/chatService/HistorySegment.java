@@ -0,0 +1,93 @@
+package i5.las2peer.services.chatService;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ *
+ * <p>Data class that is used by the {@link i5.las2peer.services.chatService.ChatService} to store a part of the
+ * history of a {@link i5.las2peer.services.chatService.ChatRoom}.<br>
+ * Recent segments keep their messages as they are, so reading the recent history is fast. Old segments can be
+ * archived, which keeps their messages gzip compressed until they are read again.
+ *
+ */
+public class HistorySegment implements Serializable {
+
+	private static final long serialVersionUID = -6013952850442371869L;
+
+	private ChatRoomMessage[] messages = new ChatRoomMessage[0];
+	private byte[] archive = null;
+
+
+	/**
+	 * Returns the messages of this segment, decompressing them if the segment is archived.
+	 *
+	 * @return An array of messages, oldest first.
+	 *
+	 * @throws IOException if the archive could not be read
+	 * @throws ClassNotFoundException if the archive contains unknown classes
+	 */
+	public ChatRoomMessage[] getMessages() throws IOException, ClassNotFoundException {
+		if(archive == null)
+			return messages;
+		ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(archive)));
+		try {
+			return (ChatRoomMessage[]) in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+
+	/**
+	 * Appends a message to this segment.
+	 *
+	 * @param chatRoomMessage the message
+	 *
+	 * @throws IllegalStateException if this segment is archived
+	 */
+	public void append(ChatRoomMessage chatRoomMessage) {
+		if(archive != null)
+			throw new IllegalStateException("Archived segments can not be changed!");
+		messages = Arrays.copyOf(messages, messages.length + 1);
+		messages[messages.length - 1] = chatRoomMessage;
+	}
+
+
+	/**
+	 * Compresses the messages of this segment.
+	 *
+	 * @throws IOException if the messages could not be compressed
+	 */
+	public void archive() throws IOException {
+		if(archive != null)
+			return;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(bytes));
+		try {
+			out.writeObject(messages);
+		} finally {
+			out.close();
+		}
+		archive = bytes.toByteArray();
+		messages = null;
+	}
+
+
+	/**
+	 * Determines, if this segment is archived.
+	 *
+	 * @return True or False.
+	 */
+	public boolean isArchived() {
+		return archive != null;
+	}
+}
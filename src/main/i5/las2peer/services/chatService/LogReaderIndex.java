@@ -0,0 +1,80 @@
+package i5.las2peer.services.chatService;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ *
+ * <p>Remembers for the users polling at this node, which other service nodes keep shared logs they read from.<br>
+ * In shared log mode, the log of a {@link i5.las2peer.services.chatService.ChatRoom} is kept by its owning node,
+ * so polling all rooms at once would have to ask every node. Instead, all nodes are only asked when a user comes
+ * online and after each refresh interval, the polls in between only ask the nodes that had logs of the user.
+ *
+ */
+public class LogReaderIndex {
+
+	private final Map<Long, Entry> readers = new ConcurrentHashMap<Long, Entry>();
+
+
+	/**
+	 * Determines, if all nodes have to be asked for the logs of the given user again.
+	 *
+	 * @param agentId the id of the user
+	 * @param interval the time in milliseconds after which the nodes are asked again
+	 *
+	 * @return True, if the user was not asked for yet or the last time is longer ago than the interval.
+	 */
+	public boolean isDiscoveryDue(long agentId, long interval) {
+		Entry entry = readers.get(agentId);
+		return entry == null || System.currentTimeMillis() - entry.discoveredAt > interval;
+	}
+
+
+	/**
+	 * Returns the nodes that kept logs of the given user when all nodes were asked the last time.
+	 *
+	 * @param agentId the id of the user
+	 *
+	 * @return An array of node ids, empty if the user is not known.
+	 */
+	public Object[] getNodes(long agentId) {
+		Entry entry = readers.get(agentId);
+		return entry == null ? new Object[0] : entry.nodeIds;
+	}
+
+
+	/**
+	 * Records the nodes that keep logs of the given user, after all nodes were asked.
+	 *
+	 * @param agentId the id of the user
+	 * @param nodeIds the ids of the nodes
+	 *
+	 */
+	public void discovered(long agentId, Collection<Object> nodeIds) {
+		readers.put(agentId, new Entry(nodeIds.toArray()));
+	}
+
+
+	/**
+	 * Forgets the nodes of the given user, so all nodes are asked with the next poll. Used when the user joins
+	 * a {@link i5.las2peer.services.chatService.ChatRoom} or its mediator is unregistered.
+	 *
+	 * @param agentId the id of the user
+	 *
+	 */
+	public void forget(long agentId) {
+		readers.remove(agentId);
+	}
+
+
+	private static class Entry {
+		private final Object[] nodeIds;
+		private final long discoveredAt = System.currentTimeMillis();
+
+		private Entry(Object[] nodeIds) {
+			this.nodeIds = nodeIds;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package i5.las2peer.services.chatService;
+
+import i5.las2peer.security.Mediator;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ *
+ * <p>Keeps track of the {@link i5.las2peer.security.Mediator}s the {@link i5.las2peer.services.chatService.ChatService}
+ * registered at its node and of the last time each one was used.<br>
+ * The node keeps a registered mediator (and all messages queued in it) until it is unregistered, so mediators
+ * of users that stopped polling are handed out for eviction once they were idle for the configured time.
+ *
+ */
+public class MediatorRegistry {
+
+	private final Map<Long, Entry> mediators = new ConcurrentHashMap<Long, Entry>();
+	private volatile long lastSweep = System.currentTimeMillis();
+
+
+	/**
+	 * Records the use of a mediator.
+	 *
+	 * @param mediator the mediator of the polling user
+	 *
+	 */
+	public void touch(Mediator mediator){
+		Entry entry = mediators.get(mediator.getResponsibleForAgentId());
+		if(entry == null || entry.mediator != mediator){
+			entry = new Entry(mediator);
+			mediators.put(mediator.getResponsibleForAgentId(), entry);
+		}
+		entry.lastAccess = System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Determines, if idle mediators should be looked for. This is the case ten times per idle timeout.
+	 *
+	 * @param idleTimeout the time in milliseconds after which an unused mediator is idle
+	 *
+	 * @return True or False.
+	 */
+	public boolean isSweepDue(long idleTimeout){
+		return System.currentTimeMillis() - lastSweep > idleTimeout / 10;
+	}
+
+
+	/**
+	 * Removes the idle mediators from this registry.
+	 *
+	 * @param idleTimeout the time in milliseconds after which an unused mediator is idle
+	 *
+	 * @return The removed mediators, to be unregistered at the node.
+	 */
+	public List<Mediator> takeIdle(long idleTimeout){
+		long now = System.currentTimeMillis();
+		lastSweep = now;
+		List<Mediator> idle = new ArrayList<Mediator>();
+		Iterator<Entry> iterator = mediators.values().iterator();
+		while(iterator.hasNext()){
+			Entry entry = iterator.next();
+			if(now - entry.lastAccess > idleTimeout){
+				iterator.remove();
+				idle.add(entry.mediator);
+			}
+		}
+		return idle;
+	}
+
+
+	/**
+	 * Returns the number of mediators in this registry.
+	 *
+	 * @return A number.
+	 */
+	public int size(){
+		return mediators.size();
+	}
+
+
+	private static class Entry {
+		private final Mediator mediator;
+		private volatile long lastAccess;
+
+		private Entry(Mediator mediator) {
+			this.mediator = mediator;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package i5.las2peer.services.chatService;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ *
+ * <p>Keeps the member array of each {@link i5.las2peer.services.chatService.ChatRoom} at the node of the
+ * {@link i5.las2peer.services.chatService.ChatService}.<br>
+ * Every request works on its own copy of a room, so the array cached by the copy is lost after the request. The
+ * copies of a room are compared with the kept array instead, which only reads their ids, and a new array is only
+ * built when the members changed.
+ *
+ */
+public class MemberArrayCache {
+
+	private final Map<String, Long[]> arrays = new ConcurrentHashMap<String, Long[]>();
+
+
+	/**
+	 * Returns the members of a room.
+	 *
+	 * @param chatRoom the room
+	 *
+	 * @return An array of ids, in the order the members joined. It is shared and must not be modified.
+	 */
+	public Long[] getMemberIds(ChatRoom chatRoom){
+		Long[] kept = arrays.get(chatRoom.getRoomName());
+		Long[] memberIds = chatRoom.getMemberIdList(kept);
+		if(memberIds != kept)
+			arrays.put(chatRoom.getRoomName(), memberIds);
+		return memberIds;
+	}
+}
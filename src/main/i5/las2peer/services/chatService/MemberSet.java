@@ -0,0 +1,161 @@
+package i5.las2peer.services.chatService;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+
+/**
+ *
+ * <p>Set of agent ids that is used by the {@link i5.las2peer.services.chatService.ChatRoom} for its members and
+ * invited agents.<br>
+ * The ids are kept as primitives, once in the order they were added and once sorted, so lookups are a binary search
+ * without boxing. The array returned by {@link #toArray()} is cached and only rebuilt after a change, so sending a
+ * message to all members does not allocate a new recipient list each time.
+ *
+ */
+public class MemberSet implements Serializable {
+
+	private static final long serialVersionUID = 4120658315946702839L;
+
+	private long[] ids = new long[4]; //In the order they were added
+	private long[] sorted = new long[4];
+	private int size = 0;
+	private transient volatile Long[] snapshot;
+
+
+	/**
+	 * Determines, if the given id is contained in this set.
+	 *
+	 * @param agentId the id to be checked
+	 *
+	 * @return True or False.
+	 */
+	public boolean contains(long agentId){
+		return Arrays.binarySearch(sorted, 0, size, agentId) >= 0;
+	}
+
+
+	/**
+	 * Adds an id to this set.
+	 *
+	 * @param agentId the id to be added
+	 *
+	 * @return True, if the id was not contained before.
+	 */
+	public boolean add(long agentId){
+		int position = Arrays.binarySearch(sorted, 0, size, agentId);
+		if(position >= 0)
+			return false;
+		position = -position - 1;
+		if(size == ids.length){
+			ids = Arrays.copyOf(ids, size * 2);
+			sorted = Arrays.copyOf(sorted, size * 2);
+		}
+		System.arraycopy(sorted, position, sorted, position + 1, size - position);
+		sorted[position] = agentId;
+		ids[size++] = agentId;
+		snapshot = null;
+		return true;
+	}
+
+
+	/**
+	 * Removes an id from this set.
+	 *
+	 * @param agentId the id to be removed
+	 *
+	 * @return True, if the id was contained before.
+	 */
+	public boolean remove(long agentId){
+		int position = Arrays.binarySearch(sorted, 0, size, agentId);
+		if(position < 0)
+			return false;
+		System.arraycopy(sorted, position + 1, sorted, position, size - position - 1);
+		for(int i = 0; i < size; i++){
+			if(ids[i] == agentId){
+				System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+				break;
+			}
+		}
+		size--;
+		snapshot = null;
+		return true;
+	}
+
+
+	/**
+	 * Returns the number of ids in this set.
+	 *
+	 * @return A number.
+	 */
+	public int size(){
+		return size;
+	}
+
+
+	/**
+	 * Returns the ids of this set in the order they were added. The array is shared between all
+	 * callers until the set changes, so it must not be modified.
+	 *
+	 * @return An array of ids.
+	 */
+	public Long[] toArray(){
+		Long[] current = snapshot;
+		if(current == null){
+			current = new Long[size];
+			for(int i = 0; i < size; i++)
+				current[i] = ids[i];
+			snapshot = current;
+		}
+		return current;
+	}
+
+
+	/**
+	 * Returns the ids of this set in the order they were added, reusing the given array if it holds the same ids.
+	 * Sets deserialized from the same state can share one array this way.
+	 *
+	 * @param previous an array returned by an earlier call for this set, may be null
+	 *
+	 * @return The given array, if it is still up to date. Otherwise the array of {@link #toArray()}.
+	 */
+	public Long[] toArray(Long[] previous){
+		Long[] current = snapshot;
+		if(current != null || previous == null || previous.length != size)
+			return toArray();
+		for(int i = 0; i < size; i++){
+			if(previous[i].longValue() != ids[i])
+				return toArray();
+		}
+		snapshot = previous;
+		return previous;
+	}
+
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		//Only the used ids are written, the sorted copy is rebuilt when reading
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("ids", Arrays.copyOf(ids, size));
+		fields.put("sorted", null);
+		fields.put("size", size);
+		out.writeFields();
+	}
+
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		size = fields.get("size", 0);
+		ids = (long[]) fields.get("ids", null);
+		sorted = (long[]) fields.get("sorted", null);
+		if(ids.length == 0){
+			ids = new long[4];
+		}
+		if(sorted == null){
+			sorted = Arrays.copyOf(ids, ids.length);
+			Arrays.sort(sorted, 0, size);
+		}
+	}
+}
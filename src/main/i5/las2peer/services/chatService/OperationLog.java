@@ -0,0 +1,87 @@
+package i5.las2peer.services.chatService;
+
+import java.util.Arrays;
+
+
+/**
+ *
+ * <p>Rules of the operation log that is used by the {@link i5.las2peer.services.chatService.ChatService} to store
+ * the changes of a {@link i5.las2peer.services.chatService.ChatRoom} instead of the complete room.<br>
+ * The log is stored as one array of {@link i5.las2peer.services.chatService.ChatRoomOperation}s, numbered without
+ * gaps. A snapshot of the room tells the number of the last operation it contains, so readers replay only the
+ * operations following it. After compaction, the log only keeps its last operation, so it still tells its end.
+ *
+ */
+public final class OperationLog {
+
+	private OperationLog() {
+		//Only static methods
+	}
+
+
+	/**
+	 * Returns the sequence number of the last operation in the log.
+	 *
+	 * @param logged the stored log
+	 *
+	 * @return The sequence number, 0 if the log is empty.
+	 */
+	public static long getLastSequence(ChatRoomOperation[] logged) {
+		return logged.length > 0 ? logged[logged.length - 1].getSequenceNumber() : 0;
+	}
+
+
+	/**
+	 * Numbers the given operations following the log and appends them.
+	 *
+	 * @param logged the stored log
+	 * @param operations the operations to be appended, in the order they were made
+	 * @param lastOperation the sequence number of the last operation the changed room contains
+	 *
+	 * @return The new log or null, if another node appended operations the room does not contain.
+	 */
+	public static ChatRoomOperation[] append(ChatRoomOperation[] logged, ChatRoomOperation[] operations,
+			long lastOperation) {
+		long sequence = getLastSequence(logged);
+		if(sequence > lastOperation)
+			return null;
+		ChatRoomOperation[] appended = Arrays.copyOf(logged, logged.length + operations.length);
+		for(int i = 0; i < operations.length; i++){
+			operations[i].setSequenceNumber(++sequence);
+			appended[logged.length + i] = operations[i];
+		}
+		return appended;
+	}
+
+
+	/**
+	 * Returns the log that is stored once a snapshot containing all its operations was written.
+	 *
+	 * @param logged the stored log, not empty
+	 *
+	 * @return A log holding only the last operation.
+	 */
+	public static ChatRoomOperation[] compact(ChatRoomOperation[] logged) {
+		return new ChatRoomOperation[] {logged[logged.length - 1]};
+	}
+
+
+	/**
+	 * Applies the operations following the snapshot to the given room.
+	 *
+	 * @param chatRoom the snapshot of the room
+	 * @param logged the stored log
+	 *
+	 * @return The number of applied operations.
+	 */
+	public static int replay(ChatRoom chatRoom, ChatRoomOperation[] logged) {
+		int applied = 0;
+		for(ChatRoomOperation operation : logged){
+			if(operation.getSequenceNumber() > chatRoom.getLastOperation()){
+				chatRoom.applyOperation(operation, operation.getSequenceNumber());
+				applied++;
+			}
+		}
+		return applied;
+	}
+}
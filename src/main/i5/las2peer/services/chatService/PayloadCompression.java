@@ -0,0 +1,142 @@
+package i5.las2peer.services.chatService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ *
+ * <p>Deflate compression for large payloads, used when the content of a
+ * {@link i5.las2peer.services.chatService.ChatRoomMessage} is serialized, be it for a sent message, a batch
+ * or a stored mailbox or history segment.<br>
+ * Payloads below the threshold are left as they are, since compressing them costs more time than it saves bytes.
+ * Each {@link i5.las2peer.services.chatService.ChatService} has its own instance, which counts the bytes saved
+ * and the time spent compressing the payloads of that service.
+ *
+ */
+public class PayloadCompression {
+
+	/**
+	 * The largest payload (in bytes) {@link #decompress(byte[])} restores, so a small corrupted or crafted
+	 * payload cannot inflate into an arbitrary amount of memory.
+	 */
+	public static final int MAX_DECOMPRESSED_SIZE = 16777216;
+
+	private volatile int threshold;
+
+	private final AtomicLong compressedPayloads = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+	private final AtomicLong nanosSpent = new AtomicLong();
+
+
+	/**
+	 * Constructor for a {@link i5.las2peer.services.chatService.PayloadCompression}.
+	 *
+	 * @param threshold the size in bytes from which on payloads are compressed, 0 to disable compression
+	 *
+	 */
+	public PayloadCompression(int threshold){
+		this.threshold = threshold;
+	}
+
+
+	/**
+	 * Sets the size from which on payloads are compressed.
+	 *
+	 * @param bytes the threshold in bytes, 0 to disable compression
+	 *
+	 */
+	public void setThreshold(int bytes){
+		threshold = bytes;
+	}
+
+
+	/**
+	 * Determines, if a payload of the given size should be compressed.
+	 *
+	 * @param size the size of the payload in bytes
+	 *
+	 * @return True or False.
+	 */
+	public boolean isWorthCompressing(int size){
+		int current = threshold;
+		return current > 0 && size >= current;
+	}
+
+
+	/**
+	 * Compresses a payload.
+	 *
+	 * @param payload the payload
+	 *
+	 * @return The compressed payload or null, if compressing did not make it smaller.
+	 */
+	public byte[] compress(byte[] payload){
+		long start = System.nanoTime();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(payload);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2);
+			byte[] buffer = new byte[4096];
+			while(!deflater.finished() && out.size() < payload.length)
+				out.write(buffer, 0, deflater.deflate(buffer));
+			if(!deflater.finished() || out.size() >= payload.length)
+				return null;
+			compressedPayloads.incrementAndGet();
+			bytesSaved.addAndGet(payload.length - out.size());
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+			nanosSpent.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+
+	/**
+	 * Decompresses a payload compressed by {@link #compress(byte[])}. Is called while a
+	 * {@link i5.las2peer.services.chatService.ChatRoomMessage} is deserialized, so the time is not counted.
+	 *
+	 * @param compressed the compressed payload
+	 *
+	 * @return The original payload.
+	 *
+	 * @throws IOException if the payload is corrupted or would exceed {@link #MAX_DECOMPRESSED_SIZE}
+	 */
+	public static byte[] decompress(byte[] compressed) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(compressed.length * 4, MAX_DECOMPRESSED_SIZE));
+			byte[] buffer = new byte[4096];
+			while(!inflater.finished()){
+				int length = inflater.inflate(buffer);
+				if(length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Compressed payload is truncated!");
+				if(out.size() + length > MAX_DECOMPRESSED_SIZE)
+					throw new IOException("Compressed payload exceeds " + MAX_DECOMPRESSED_SIZE + " bytes!");
+				out.write(buffer, 0, length);
+			}
+			return out.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException("Compressed payload is corrupted!", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+
+	/**
+	 * Returns the statistics of this service.
+	 *
+	 * @return A String containing the number of compressed payloads, the bytes saved and the time spent.
+	 */
+	public String getStatistics(){
+		return "Compressed payloads: " + compressedPayloads.get() + ", bytes saved: " + bytesSaved.get()
+				+ ", time spent compressing: " + nanosSpent.get() / 1000000 + " ms";
+	}
+}
@@ -0,0 +1,56 @@
+package i5.las2peer.services.chatService;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+
+/**
+ *
+ * <p>Data class that is used by the {@link i5.las2peer.services.chatService.ChatService} to share the users
+ * that are online at one node with the other nodes hosting the service.<br>
+ * It only contains the sorted ids of these users and the time it was taken, so it stays small even
+ * for many users.
+ *
+ */
+public class PresenceSnapshot implements Serializable{
+
+	private static final long serialVersionUID = -1502893465529836114L;
+
+	private long[] agentIds;
+	private long createdAt;
+
+
+	/**
+	 * Constructor for a {@link i5.las2peer.services.chatService.PresenceSnapshot}.
+	 *
+	 * @param agentIds the ids of all users that are online at the node
+	 *
+	 */
+	public PresenceSnapshot(long[] agentIds){
+		this.agentIds = agentIds.clone();
+		Arrays.sort(this.agentIds);
+		this.createdAt = System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Determines, if the given user was online when this snapshot was taken.
+	 *
+	 * @param agentId the id of the user
+	 *
+	 * @return True or False.
+	 */
+	public boolean contains(long agentId){
+		return Arrays.binarySearch(agentIds, agentId) >= 0;
+	}
+
+
+	/**
+	 * Gets the time this {@link i5.las2peer.services.chatService.PresenceSnapshot} was taken.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	public long getCreatedAt(){
+		return createdAt;
+	}
+}
@@ -0,0 +1,146 @@
+package i5.las2peer.services.chatService;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ *
+ * <p>Node-local table of the users that are online, used by the {@link i5.las2peer.services.chatService.ChatService}.
+ * <br>
+ * A user counts as online as long as the last poll or heartbeat is not older than the expiry time. The users
+ * online at other nodes are known from their last published {@link i5.las2peer.services.chatService.PresenceSnapshot}s.
+ *
+ */
+public class PresenceTable {
+
+	private final Map<Long, Long> lastSeen = new ConcurrentHashMap<Long, Long>();
+	private final Map<Long, Long> lastMailboxCheck = new ConcurrentHashMap<Long, Long>();
+	private volatile PresenceSnapshot[] remoteSnapshots = new PresenceSnapshot[0];
+	private volatile long remoteSnapshotsFetchedAt = 0;
+	private volatile long publishedAt = 0;
+
+
+	/**
+	 * Records activity of the given user.
+	 *
+	 * @param agentId the id of the user
+	 * @param expiry the time in milliseconds after which a user without activity is offline
+	 *
+	 * @return True, if the user was offline at this node before.
+	 */
+	public boolean touch(long agentId, long expiry){
+		long now = System.currentTimeMillis();
+		Long previous = lastSeen.put(agentId, now);
+		return previous == null || now - previous > expiry;
+	}
+
+
+	/**
+	 * Determines, if the given user is online at this node or was online at another node when it published
+	 * its last snapshot.
+	 *
+	 * @param agentId the id of the user
+	 * @param expiry the time in milliseconds after which a user without activity is offline
+	 *
+	 * @return True or False.
+	 */
+	public boolean isOnline(long agentId, long expiry){
+		long now = System.currentTimeMillis();
+		Long seen = lastSeen.get(agentId);
+		if(seen != null && now - seen <= expiry)
+			return true;
+		for(PresenceSnapshot snapshot : remoteSnapshots){
+			if(now - snapshot.getCreatedAt() <= expiry && snapshot.contains(agentId))
+				return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Takes a snapshot of the users online at this node and drops the expired ones from the table.
+	 *
+	 * @param expiry the time in milliseconds after which a user without activity is offline
+	 *
+	 * @return The snapshot.
+	 */
+	public PresenceSnapshot createSnapshot(long expiry){
+		long now = System.currentTimeMillis();
+		long[] online = new long[lastSeen.size()];
+		int count = 0;
+		Iterator<Map.Entry<Long, Long>> iterator = lastSeen.entrySet().iterator();
+		while(iterator.hasNext()){
+			Map.Entry<Long, Long> entry = iterator.next();
+			if(now - entry.getValue() > expiry){
+				iterator.remove();
+				lastMailboxCheck.remove(entry.getKey());
+			}
+			else if(count < online.length)
+				online[count++] = entry.getKey();
+		}
+		long[] agentIds = new long[count];
+		System.arraycopy(online, 0, agentIds, 0, count);
+		publishedAt = now;
+		return new PresenceSnapshot(agentIds);
+	}
+
+
+	/**
+	 * Determines, if the own snapshot should be published again.
+	 *
+	 * @param interval the publish interval in milliseconds
+	 *
+	 * @return True or False.
+	 */
+	public boolean isPublishDue(long interval){
+		return System.currentTimeMillis() - publishedAt > interval;
+	}
+
+
+	/**
+	 * Replaces the snapshots of the other nodes.
+	 *
+	 * @param snapshots the last published snapshots of all other nodes
+	 *
+	 */
+	public void setRemoteSnapshots(PresenceSnapshot[] snapshots){
+		remoteSnapshots = snapshots;
+		remoteSnapshotsFetchedAt = System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Determines, if the snapshots of the other nodes should be fetched again.
+	 *
+	 * @param interval the publish interval in milliseconds
+	 *
+	 * @return True or False.
+	 */
+	public boolean isFetchDue(long interval){
+		return System.currentTimeMillis() - remoteSnapshotsFetchedAt > interval;
+	}
+
+
+	/**
+	 * Determines, if the deferred mailbox of the given user should be checked and records the check.
+	 * This is the case when the user comes online and after each interval while online, since messages
+	 * may have been deferred before the other nodes learned that the user is online.
+	 *
+	 * @param agentId the id of the user
+	 * @param cameOnline determines, if the user just came online
+	 * @param interval the check interval in milliseconds
+	 *
+	 * @return True or False.
+	 */
+	public boolean isMailboxCheckDue(long agentId, boolean cameOnline, long interval){
+		long now = System.currentTimeMillis();
+		Long lastCheck = lastMailboxCheck.get(agentId);
+		if(cameOnline || lastCheck == null || now - lastCheck > interval){
+			lastMailboxCheck.put(agentId, now);
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,120 @@
+package i5.las2peer.services.chatService;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ *
+ * <p>Keeps track of the message rate and size of each {@link i5.las2peer.services.chatService.ChatRoom} and decides,
+ * how the {@link i5.las2peer.services.chatService.ChatService} delivers its messages.<br>
+ * Small and quiet rooms get each message sent directly to every member, which has the lowest latency. Once
+ * a room gets hot, meaning its message rate or member count reaches the configured thresholds, its messages
+ * are collected and delivered in batches. A room only cools down again when its rate fell below half of the
+ * threshold and its member count below the threshold, so it does not flip between the modes.
+ *
+ */
+public class RoomActivityTracker {
+
+	/**
+	 * The ways a message can be delivered to the members of a room.
+	 */
+	public enum DeliveryMode {DIRECT, BATCHED}
+
+	private static final long RATE_INTERVAL = 1000;
+	private static final double RATE_WEIGHT = 0.5; //Weight of the last interval for the message rate
+	private static final long IDLE_TIME = 600000; //Rooms without messages for this time are forgotten
+
+	private final ConcurrentHashMap<String, RoomActivity> rooms = new ConcurrentHashMap<String, RoomActivity>();
+
+
+	/**
+	 * Records a message sent in the given room and returns how it should be delivered.
+	 *
+	 * @param chatRoomName the name of the {@link i5.las2peer.services.chatService.ChatRoom}
+	 * @param memberCount the current number of members
+	 * @param hotMessageRate messages per second from which on a room is hot
+	 * @param hotMemberCount number of members from which on a room is hot
+	 *
+	 * @return The delivery mode of the room.
+	 */
+	public DeliveryMode recordMessage(String chatRoomName, int memberCount, double hotMessageRate, int hotMemberCount){
+		RoomActivity activity = rooms.get(chatRoomName);
+		if(activity == null){
+			forgetIdleRooms();
+			activity = new RoomActivity();
+			RoomActivity existing = rooms.putIfAbsent(chatRoomName, activity);
+			if(existing != null)
+				activity = existing;
+		}
+		return activity.record(memberCount, hotMessageRate, hotMemberCount);
+	}
+
+
+	/**
+	 * Returns the current delivery mode of the given room.
+	 *
+	 * @param chatRoomName the name of the {@link i5.las2peer.services.chatService.ChatRoom}
+	 *
+	 * @return The delivery mode, {@link DeliveryMode#DIRECT} for unknown rooms.
+	 */
+	public DeliveryMode getDeliveryMode(String chatRoomName){
+		RoomActivity activity = rooms.get(chatRoomName);
+		if(activity == null)
+			return DeliveryMode.DIRECT;
+		return activity.mode;
+	}
+
+
+	/**
+	 * Returns the current message rate of the given room.
+	 *
+	 * @param chatRoomName the name of the {@link i5.las2peer.services.chatService.ChatRoom}
+	 *
+	 * @return Messages per second.
+	 */
+	public double getMessageRate(String chatRoomName){
+		RoomActivity activity = rooms.get(chatRoomName);
+		if(activity == null)
+			return 0;
+		return activity.rate;
+	}
+
+
+	private void forgetIdleRooms(){
+		long now = System.currentTimeMillis();
+		Iterator<RoomActivity> iterator = rooms.values().iterator();
+		while(iterator.hasNext()){
+			if(now - iterator.next().lastMessage > IDLE_TIME)
+				iterator.remove();
+		}
+	}
+
+
+	private static class RoomActivity {
+		private volatile DeliveryMode mode = DeliveryMode.DIRECT;
+		private volatile double rate = 0;
+		private long intervalStart = System.currentTimeMillis();
+		private int intervalCount = 0;
+		private volatile long lastMessage = System.currentTimeMillis();
+
+		private synchronized DeliveryMode record(int memberCount, double hotMessageRate, int hotMemberCount) {
+			long now = System.currentTimeMillis();
+			intervalCount++;
+			long elapsed = now - intervalStart;
+			if(elapsed >= RATE_INTERVAL){
+				//Quiet intervals in between count as zero
+				double intervalRate = intervalCount * 1000.0 / elapsed;
+				rate = RATE_WEIGHT * intervalRate + (1 - RATE_WEIGHT) * rate * Math.pow(1 - RATE_WEIGHT, elapsed / RATE_INTERVAL - 1);
+				intervalStart = now;
+				intervalCount = 0;
+			}
+			lastMessage = now;
+			if(mode == DeliveryMode.DIRECT && (rate >= hotMessageRate || memberCount >= hotMemberCount))
+				mode = DeliveryMode.BATCHED;
+			else if(mode == DeliveryMode.BATCHED && rate < hotMessageRate / 2 && memberCount < hotMemberCount)
+				mode = DeliveryMode.DIRECT;
+			return mode;
+		}
+	}
+}
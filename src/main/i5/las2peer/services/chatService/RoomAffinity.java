@@ -0,0 +1,119 @@
+package i5.las2peer.services.chatService;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+
+/**
+ *
+ * <p>Consistent hashing ring that is used by the {@link i5.las2peer.services.chatService.ChatService} to assign
+ * each {@link i5.las2peer.services.chatService.ChatRoom} to one of the nodes hosting the service.<br>
+ * Each node is placed on the ring several times (virtual nodes), a room is owned by the first node following
+ * the hash of its envelope id. When a node joins or leaves the network, only the rooms of its ring
+ * segments move to another node.
+ *
+ */
+public class RoomAffinity {
+
+	private static final int VIRTUAL_NODES = 64;
+
+	private final SortedMap<Long, Object> ring = new TreeMap<Long, Object>();
+	private final long createdAt = System.currentTimeMillis();
+
+
+	/**
+	 * Constructor for a {@link i5.las2peer.services.chatService.RoomAffinity}.
+	 *
+	 * @param nodeIds the ids of all nodes currently hosting the service
+	 *
+	 */
+	public RoomAffinity(Object[] nodeIds){
+		for(Object nodeId : nodeIds){
+			for(int i = 0; i < VIRTUAL_NODES; i++){
+				ring.put(hash(nodeId.toString() + "#" + i), nodeId);
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the node owning the given envelope id.
+	 *
+	 * @param envelopeId the envelope id of a {@link i5.las2peer.services.chatService.ChatRoom}
+	 *
+	 * @return The node id or null, if no node is known.
+	 */
+	public Object getOwner(String envelopeId){
+		if(ring.isEmpty())
+			return null;
+		SortedMap<Long, Object> tail = ring.tailMap(hash(envelopeId));
+		if(tail.isEmpty())
+			return ring.get(ring.firstKey());
+		return tail.get(tail.firstKey());
+	}
+
+
+	/**
+	 * Returns the number of distinct nodes on this ring.
+	 *
+	 * @return A number.
+	 */
+	public int getNodeCount(){
+		return ring.size() / VIRTUAL_NODES;
+	}
+
+
+	/**
+	 * Determines, if this ring was built longer ago than the given interval.
+	 *
+	 * @param interval the interval in milliseconds
+	 *
+	 * @return True or False.
+	 */
+	public boolean isOlderThan(long interval){
+		return System.currentTimeMillis() - createdAt > interval;
+	}
+
+
+	/**
+	 * Returns all nodes of this ring, each node only once.
+	 *
+	 * @return An array of node ids.
+	 */
+	public Object[] getNodeIds(){
+		Map<String, Object> nodes = new TreeMap<String, Object>();
+		for(Object nodeId : ring.values())
+			nodes.put(nodeId.toString(), nodeId);
+		return nodes.values().toArray();
+	}
+
+
+	/**
+	 * Returns a short key for the given node that can be used in envelope ids.
+	 *
+	 * @param nodeId the id of a node
+	 *
+	 * @return A String containing the key.
+	 */
+	public static String getNodeKey(Object nodeId){
+		return Long.toHexString(hash(nodeId.toString()));
+	}
+
+
+	private static long hash(String key){
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			long hash = 0;
+			for(int i = 0; i < 8; i++)
+				hash = (hash << 8) | (digest[i] & 0xFF);
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			//MD5 is available on every Java platform
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package i5.las2peer.services.chatService;
+
+import i5.las2peer.communication.Message;
+import i5.las2peer.logging.L2pLogger;
+import i5.las2peer.logging.NodeObserver.Event;
+import i5.las2peer.p2p.MessageResultListener;
+import i5.las2peer.p2p.Node;
+import i5.las2peer.security.Agent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ *
+ * <p>Collects the messages of hot {@link i5.las2peer.services.chatService.ChatRoom}s and delivers them in batches.
+ * <br>
+ * The first message of a batch starts the batching window of its room. When the window is over, each member
+ * gets one message containing all {@link i5.las2peer.services.chatService.ChatRoomMessage}s of the window. This
+ * trades a little latency for far fewer messages in rooms with many members or a high message rate.<br>
+ * Batches are sent by a small pool of background threads, one room at a time per thread, so a large or slow room
+ * does not delay the batches of the others. They are signed by the service agent instead of the sending users.
+ * They take their slots in the bulk lane of the {@link i5.las2peer.services.chatService.SendScheduler} like any
+ * other fan-out, and a message only counts as delivered to a member once the member acknowledged its batch.
+ *
+ */
+public class RoomBatcher {
+
+	/**
+	 * Is told about the members a batched message was delivered to.
+	 */
+	public interface DeliveryListener {
+		/**
+		 * Called once a member acknowledged the batch containing the message.
+		 *
+		 * @param agentId the id of the member
+		 */
+		void deliveredTo(long agentId);
+	}
+
+	private static final int FLUSH_THREADS = 4; //Rooms sent at the same time, so a slow room does not hold up the others
+
+	private final Map<String, Batch> batches = new HashMap<String, Batch>();
+	private final Set<String> flushing = new HashSet<String>(); //Rooms whose previous batch is still sent
+	private final ThreadFactory threads = new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "ChatService-RoomBatcher");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(threads);
+	private final ExecutorService senders = Executors.newFixedThreadPool(FLUSH_THREADS, threads);
+
+
+	/**
+	 * Adds a message to the current batch of its room. A message that is in the batch already (because its
+	 * sender retried) is not added again.
+	 *
+	 * @param chatRoomMessage the message
+	 * @param memberIds the ids of the current members of the room
+	 * @param listener told about the members the message was delivered to
+	 * @param node the node sending the batch
+	 * @param serviceAgent the agent of the service, used to sign the batch
+	 * @param window the batching window in milliseconds, used if this message starts a new batch
+	 * @param sendTimeout the time to wait for the answer to a sent batch
+	 * @param slots the scheduler handing out the slots for the sent batches
+	 * @param queueTimeout the time to wait at most for a slot
+	 *
+	 */
+	public void enqueue(ChatRoomMessage chatRoomMessage, Long[] memberIds, DeliveryListener listener, Node node,
+			Agent serviceAgent, long window, long sendTimeout, SendScheduler slots, long queueTimeout){
+		final String chatRoomName = chatRoomMessage.getInChatRoom();
+		synchronized(batches){
+			Batch batch = batches.get(chatRoomName);
+			if(batch == null){
+				batch = new Batch(node, serviceAgent, sendTimeout, slots, queueTimeout);
+				batches.put(chatRoomName, batch);
+				scheduleFlush(chatRoomName, window);
+			}
+			if(!batch.listeners.contains(listener)){
+				batch.messages.add(chatRoomMessage);
+				batch.listeners.add(listener);
+			}
+			batch.memberIds = memberIds; //Members at the time of the last message
+		}
+	}
+
+
+	//The timer only hands the batch to a sender, which may wait for slots and answers
+	private void scheduleFlush(final String chatRoomName, final long window){
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				final Batch batch;
+				synchronized(batches){
+					if(flushing.contains(chatRoomName)){
+						//Keeps the order of the batches of a room
+						scheduleFlush(chatRoomName, window);
+						return;
+					}
+					batch = batches.remove(chatRoomName);
+					if(batch == null)
+						return;
+					flushing.add(chatRoomName);
+				}
+				senders.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							flush(chatRoomName, batch);
+						} finally {
+							synchronized(batches){
+								flushing.remove(chatRoomName);
+							}
+						}
+					}
+				});
+			}
+		}, window, TimeUnit.MILLISECONDS);
+	}
+
+
+	private void flush(String chatRoomName, Batch batch){
+		ChatRoomMessage[] content = batch.messages.toArray(new ChatRoomMessage[0]);
+		List<MessageResultListener> resultListeners = new ArrayList<MessageResultListener>();
+		List<Long> recipients = new ArrayList<Long>();
+		try {
+			for(Long memberId : batch.memberIds){
+				try {
+					Agent receivingAgent = batch.node.getAgent(memberId);
+					Message toSend = new Message(batch.serviceAgent, receivingAgent, content);
+					toSend.setSendingNodeId(batch.node.getNodeId()); //For monitoring, otherwise sending node is not stored (Security/Privacy?)
+					if(!batch.slots.tryAcquire(SendScheduler.Lane.BULK)){
+						//Wait for a turn in the lane, without holding the slots of the previous members
+						awaitAnswers(batch, resultListeners, recipients);
+						if(!batch.slots.acquire(SendScheduler.Lane.BULK, chatRoomName, batch.queueTimeout)){
+							//Not delivered to the remaining members, a retry of the senders sends to them again
+							L2pLogger.logEvent(Event.SERVICE_ERROR, "Node busy, batch of chatroom " + chatRoomName
+									+ " not sent to all members!");
+							return;
+						}
+					}
+					MessageResultListener resultListener = new MessageResultListener(batch.sendTimeout);
+					try {
+						batch.node.sendMessage(toSend, resultListener);
+					} catch (RuntimeException e) {
+						batch.slots.release();
+						throw e;
+					}
+					L2pLogger.logEvent(Event.SERVICE_CUSTOM_MESSAGE_2, "" + toSend.getId());
+					resultListeners.add(resultListener);
+					recipients.add(memberId);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} catch (Exception e) {
+					L2pLogger.logEvent(Event.SERVICE_ERROR, "Error sending batch of chatroom " + chatRoomName + "! " + e);
+				}
+			}
+		} finally {
+			awaitAnswers(batch, resultListeners, recipients);
+		}
+	}
+
+
+	//Reports the acknowledged members and releases the slots of all sent batches
+	private void awaitAnswers(Batch batch, List<MessageResultListener> resultListeners, List<Long> recipients){
+		for(int i = 0; i < resultListeners.size(); i++){
+			try {
+				resultListeners.get(i).waitForOneAnswer(batch.sendTimeout);
+				if(resultListeners.get(i).isSuccess()){
+					for(DeliveryListener listener : batch.listeners)
+						listener.deliveredTo(recipients.get(i));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				batch.slots.release();
+			}
+		}
+		resultListeners.clear();
+		recipients.clear();
+	}
+
+
+	private static class Batch {
+		private final List<ChatRoomMessage> messages = new ArrayList<ChatRoomMessage>();
+		private final List<DeliveryListener> listeners = new ArrayList<DeliveryListener>();
+		private Long[] memberIds;
+		private final Node node;
+		private final Agent serviceAgent;
+		private final long sendTimeout;
+		private final SendScheduler slots;
+		private final long queueTimeout;
+
+		private Batch(Node node, Agent serviceAgent, long sendTimeout, SendScheduler slots, long queueTimeout) {
+			this.node = node;
+			this.serviceAgent = serviceAgent;
+			this.sendTimeout = sendTimeout;
+			this.slots = slots;
+			this.queueTimeout = queueTimeout;
+		}
+	}
+}
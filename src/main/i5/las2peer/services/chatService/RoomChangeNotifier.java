@@ -0,0 +1,64 @@
+package i5.las2peer.services.chatService;
+
+import i5.las2peer.logging.L2pLogger;
+import i5.las2peer.logging.NodeObserver.Event;
+import i5.las2peer.p2p.Node;
+import i5.las2peer.security.Agent;
+
+import java.io.Serializable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ *
+ * <p>Tells the other nodes hosting the {@link i5.las2peer.services.chatService.ChatService} that a
+ * {@link i5.las2peer.services.chatService.ChatRoom} was stored, so they drop their cached state of it.<br>
+ * Notifications are sent by a background thread, so storing a room does not wait for the other nodes. They are
+ * signed by the service agent, so only the service itself can invalidate the caches.
+ *
+ */
+public class RoomChangeNotifier {
+
+	private final ExecutorService sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "ChatService-RoomChangeNotifier");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+
+	/**
+	 * Sends the new version of a room to the given nodes.
+	 *
+	 * @param chatRoomName the name of the changed room
+	 * @param version the version of the stored state
+	 * @param nodeIds the nodes to be notified
+	 * @param node the node sending the notifications
+	 * @param serviceAgent the agent of the service, used to sign the notifications
+	 *
+	 */
+	public void notifyChange(final String chatRoomName, final long version, final Object[] nodeIds, final Node node,
+			final Agent serviceAgent){
+		if(nodeIds.length == 0)
+			return;
+		sender.execute(new Runnable() {
+			@Override
+			public void run() {
+				for(Object nodeId : nodeIds){
+					try {
+						node.invokeGlobally(serviceAgent, serviceAgent.getId(), nodeId, ChatService.class.getName(),
+								"invalidateChatRoom", new Serializable[] {chatRoomName, Long.toString(version)});
+					} catch (Exception e) {
+						//The cache of that node expires the room in time
+						L2pLogger.logEvent(Event.SERVICE_ERROR, "Error notifying node " + nodeId + " of a change of chatroom "
+								+ chatRoomName + "! " + e);
+					}
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,202 @@
+package i5.las2peer.services.chatService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *
+ * <p>Holds the ephemeral events (like typing indicators) of the {@link i5.las2peer.services.chatService.ChatRoom}s
+ * at the node owning them.<br>
+ * Events are neither persisted nor acknowledged and expire after a short lifetime. Only the latest event of each
+ * type per user is kept, so a user sending many events only replaces the previous one and readers see the
+ * current state instead of the whole sequence.<br>
+ * The events of a room are posted and read under the lock of the room, so a reader never gets a cursor past an event
+ * that was numbered, but not put into the room yet.
+ *
+ */
+public class RoomEventBoard {
+
+	private final AtomicLong sequence = new AtomicLong();
+	private final ConcurrentHashMap<String, Map<String, RoomEvent>> rooms = new ConcurrentHashMap<String, Map<String, RoomEvent>>();
+	private final Map<String, Long> verifiedMembers = new ConcurrentHashMap<String, Long>(); //Room and user -> time
+	private volatile long lastSweep = System.currentTimeMillis();
+
+
+	/**
+	 * Posts an event, replacing the previous event of the same type by the same user.
+	 *
+	 * @param chatRoomName the name of the room
+	 * @param senderId the id of the sending user
+	 * @param senderLogin the login name of the sending user
+	 * @param type the type of the event, for example "typing"
+	 * @param value the state the event signals
+	 *
+	 */
+	public void post(String chatRoomName, long senderId, String senderLogin, String type, String value){
+		while(true){
+			Map<String, RoomEvent> events = rooms.get(chatRoomName);
+			if(events == null){
+				events = new ConcurrentHashMap<String, RoomEvent>();
+				Map<String, RoomEvent> previous = rooms.putIfAbsent(chatRoomName, events);
+				if(previous != null)
+					events = previous;
+			}
+			synchronized(events){
+				if(rooms.get(chatRoomName) != events)
+					continue; //Removed by the sweep in the meantime
+				events.put(senderId + ":" + type, new RoomEvent(sequence.incrementAndGet(), senderId, senderLogin, type, value));
+				return;
+			}
+		}
+	}
+
+
+	/**
+	 * Adds the events of a room that were posted after the given sequence number and did not expire to the given
+	 * list. Expired events are removed.
+	 *
+	 * @param chatRoomName the name of the room
+	 * @param after the sequence number returned with the previous read, 0 for all events. A number this node did
+	 * not hand out yet (the events were kept by a node that owned the room before) reads all events.
+	 * @param readerId the id of the reading user, whose own events are left out
+	 * @param lifetime the time in milliseconds an event is kept
+	 * @param found the list the events are added to, in the order they were posted
+	 *
+	 * @return The sequence number to read after with the next call.
+	 */
+	public long read(String chatRoomName, long after, long readerId, long lifetime, List<RoomEvent> found){
+		long cursor = sequence.get(); //Taken before looking up the room, so an event of a new room is not skipped
+		Map<String, RoomEvent> events = rooms.get(chatRoomName);
+		if(events == null)
+			return cursor;
+		synchronized(events){
+			cursor = sequence.get();
+			if(after > cursor)
+				after = 0;
+			long now = System.currentTimeMillis();
+			Iterator<RoomEvent> iterator = events.values().iterator();
+			while(iterator.hasNext()){
+				RoomEvent event = iterator.next();
+				if(now - event.timestamp > lifetime)
+					iterator.remove();
+				else if(event.sequenceNumber > after && event.senderId != readerId)
+					found.add(event);
+			}
+		}
+		Collections.sort(found, new Comparator<RoomEvent>() {
+			@Override
+			public int compare(RoomEvent first, RoomEvent second) {
+				return Long.compare(first.sequenceNumber, second.sequenceNumber);
+			}
+		});
+		return cursor;
+	}
+
+
+	/**
+	 * Determines, if the membership of a user was checked recently, so the room does not have to be fetched
+	 * for every event.
+	 *
+	 * @param chatRoomName the name of the room
+	 * @param agentId the id of the user
+	 * @param lifetime the time in milliseconds a check is trusted
+	 *
+	 * @return True or False.
+	 */
+	public boolean isVerifiedMember(String chatRoomName, long agentId, long lifetime){
+		Long verified = verifiedMembers.get(agentId + ":" + chatRoomName);
+		return verified != null && System.currentTimeMillis() - verified <= lifetime;
+	}
+
+
+	/**
+	 * Records a successful membership check.
+	 *
+	 * @param chatRoomName the name of the room
+	 * @param agentId the id of the user
+	 *
+	 */
+	public void verifiedMember(String chatRoomName, long agentId){
+		verifiedMembers.put(agentId + ":" + chatRoomName, System.currentTimeMillis());
+	}
+
+
+	/**
+	 * Determines, if expired events should be removed from all rooms. This is the case once per lifetime.
+	 *
+	 * @param lifetime the time in milliseconds events are kept
+	 *
+	 * @return True or False.
+	 */
+	public boolean isSweepDue(long lifetime){
+		return System.currentTimeMillis() - lastSweep > lifetime;
+	}
+
+
+	/**
+	 * Removes the expired events and membership checks of all rooms.
+	 *
+	 * @param lifetime the time in milliseconds events and checks are kept
+	 *
+	 */
+	public void expire(long lifetime){
+		long now = System.currentTimeMillis();
+		lastSweep = now;
+		Iterator<Map<String, RoomEvent>> roomIterator = rooms.values().iterator();
+		while(roomIterator.hasNext()){
+			Map<String, RoomEvent> events = roomIterator.next();
+			synchronized(events){
+				Iterator<RoomEvent> iterator = events.values().iterator();
+				while(iterator.hasNext()){
+					if(now - iterator.next().timestamp > lifetime)
+						iterator.remove();
+				}
+				if(events.isEmpty())
+					roomIterator.remove();
+			}
+		}
+		Iterator<Long> verifiedIterator = verifiedMembers.values().iterator();
+		while(verifiedIterator.hasNext()){
+			if(now - verifiedIterator.next() > lifetime)
+				verifiedIterator.remove();
+		}
+	}
+
+
+	/**
+	 * An ephemeral event.
+	 */
+	public static class RoomEvent {
+		private final long sequenceNumber;
+		private final long senderId;
+		private final String senderLogin;
+		private final String type;
+		private final String value;
+		private final long timestamp = System.currentTimeMillis();
+
+		private RoomEvent(long sequenceNumber, long senderId, String senderLogin, String type, String value) {
+			this.sequenceNumber = sequenceNumber;
+			this.senderId = senderId;
+			this.senderLogin = senderLogin;
+			this.type = type;
+			this.value = value;
+		}
+
+		/**
+		 * Formats this event for the client.
+		 *
+		 * @return A String of the form "type:login:value".
+		 */
+		@Override
+		public String toString() {
+			return type + ":" + senderLogin + ":" + value;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package i5.las2peer.services.chatService;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ *
+ * <p>Answers lookups of {@link i5.las2peer.services.chatService.ChatRoom}s that do not exist without asking the
+ * storage.<br>
+ * Only names the storage did not find are remembered, for the given time to live, so a room created at another
+ * node is found at most that much later. The room directory is not used, since it may lose names under
+ * concurrent updates and a room missing from it would never be found.
+ *
+ */
+public class RoomLookupCache {
+
+	private final Map<String, Long> misses = new ConcurrentHashMap<String, Long>(); //Name -> time of the miss
+	private volatile long lastExpiry = System.currentTimeMillis();
+
+
+	/**
+	 * Determines, if the storage recently did not find a room.
+	 *
+	 * @param chatRoomName the name of the room
+	 * @param ttl the time in milliseconds a miss is trusted
+	 *
+	 * @return True, if the room does not exist. False, if the storage has to be asked.
+	 */
+	public boolean isKnownMissing(String chatRoomName, long ttl){
+		long now = System.currentTimeMillis();
+		if(now - lastExpiry > ttl)
+			expire(ttl);
+		Long missed = misses.get(chatRoomName);
+		if(missed == null)
+			return false;
+		if(now - missed <= ttl)
+			return true;
+		misses.remove(chatRoomName, missed);
+		return false;
+	}
+
+
+	/**
+	 * Remembers that the storage did not find a room.
+	 *
+	 * @param chatRoomName the name of the room
+	 *
+	 */
+	public void missed(String chatRoomName){
+		misses.put(chatRoomName, System.currentTimeMillis());
+	}
+
+
+	/**
+	 * Forgets a miss of a room that was created since.
+	 *
+	 * @param chatRoomName the name of the room
+	 *
+	 */
+	public void added(String chatRoomName){
+		misses.remove(chatRoomName);
+	}
+
+
+	//Misses of names that are not looked up again would otherwise be kept forever
+	private void expire(long ttl){
+		long now = System.currentTimeMillis();
+		lastExpiry = now;
+		Iterator<Long> iterator = misses.values().iterator();
+		while(iterator.hasNext()){
+			if(now - iterator.next() > ttl)
+				iterator.remove();
+		}
+	}
+}
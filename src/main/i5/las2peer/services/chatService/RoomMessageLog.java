@@ -0,0 +1,151 @@
+package i5.las2peer.services.chatService;
+
+import i5.las2peer.logging.L2pLogger;
+import i5.las2peer.logging.NodeObserver.Event;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+
+/**
+ *
+ * <p>Ring buffer holding the latest {@link i5.las2peer.services.chatService.ChatRoomMessage}s of one
+ * {@link i5.las2peer.services.chatService.ChatRoom}, used by the {@link i5.las2peer.services.chatService.ChatService}
+ * in shared log mode.<br>
+ * Each message is stored once, no matter how many members the room has, together with the members of the room at
+ * that time. The member array is shared by all messages appended while the members do not change, so appending
+ * does not depend on the size of the room. Every member has a read cursor that points to the next message it has
+ * not received yet and that only changes when the member reads. A member that does not poll for so long that the
+ * buffer wrapped around its cursor misses the overwritten messages, which is logged when it reads again.
+ *
+ */
+public class RoomMessageLog {
+
+	private final ChatRoomMessage[] buffer;
+	private final long[][] recipients; //Sorted ids of the members at the time each message was appended
+	private long nextSequence = 0; //Sequence number of the next appended message
+	private final Map<Long, Long> cursors = new HashMap<Long, Long>();
+	private Long[] lastMemberIds; //Members of the last appended message, as given
+	private long[] lastRecipients = new long[0]; //The same members, sorted
+
+
+	/**
+	 * Constructor for a {@link i5.las2peer.services.chatService.RoomMessageLog}.
+	 *
+	 * @param capacity the number of messages kept
+	 *
+	 */
+	public RoomMessageLog(int capacity){
+		buffer = new ChatRoomMessage[capacity];
+		recipients = new long[capacity][];
+	}
+
+
+	/**
+	 * Appends a message to the log. The members are only copied if they changed since the last message,
+	 * which is detected by the identity of the array.
+	 *
+	 * @param chatRoomMessage the message
+	 * @param memberIds the ids of the members that should receive the message, must not be modified afterwards
+	 *
+	 */
+	public synchronized void append(ChatRoomMessage chatRoomMessage, Long[] memberIds){
+		if(memberIds != lastMemberIds){
+			long[] sorted = new long[memberIds.length];
+			for(int i = 0; i < sorted.length; i++)
+				sorted[i] = memberIds[i];
+			Arrays.sort(sorted);
+			lastMemberIds = memberIds;
+			lastRecipients = sorted;
+		}
+		int position = (int) (nextSequence % buffer.length);
+		buffer[position] = chatRoomMessage;
+		recipients[position] = lastRecipients;
+		nextSequence++;
+		if(position == buffer.length - 1)
+			dropStaleCursors();
+	}
+
+
+	/**
+	 * Returns the messages the given member has not received yet and advances its cursor behind them.
+	 * A member reading for the first time gets all kept messages that were appended while it was a member.
+	 *
+	 * @param memberId the id of the member
+	 * @param limit the maximum number of messages returned, 0 for unlimited
+	 *
+	 * @return An array of messages, oldest first.
+	 */
+	public synchronized ChatRoomMessage[] read(long memberId, int limit){
+		long oldest = getOldestSequence();
+		Long cursor = cursors.get(memberId);
+		long sequence = oldest;
+		if(cursor != null){
+			if(cursor < oldest)
+				L2pLogger.logEvent(Event.SERVICE_ERROR, "Member " + memberId + " of chatroom " + buffer[(int) (oldest
+						% buffer.length)].getInChatRoom() + " may have missed up to " + (oldest - cursor) + " messages of the shared log!");
+			else
+				sequence = cursor;
+		}
+		ChatRoomMessage[] messages = new ChatRoomMessage[(int) (nextSequence - sequence)];
+		int found = 0;
+		for(; sequence < nextSequence && (limit <= 0 || found < limit); sequence++){
+			int position = (int) (sequence % buffer.length);
+			if(Arrays.binarySearch(recipients[position], memberId) >= 0)
+				messages[found++] = buffer[position];
+		}
+		cursors.put(memberId, sequence);
+		return Arrays.copyOf(messages, found);
+	}
+
+
+	/**
+	 * Determines, if the given user reads from this log, meaning it has read before or was a member when the
+	 * last message was appended.
+	 *
+	 * @param memberId the id of the user
+	 *
+	 * @return True or False.
+	 */
+	public synchronized boolean isReader(long memberId){
+		return cursors.containsKey(memberId) || Arrays.binarySearch(lastRecipients, memberId) >= 0;
+	}
+
+
+	/**
+	 * Returns the number of messages the given member has not received yet.
+	 *
+	 * @param memberId the id of the member
+	 *
+	 * @return A number.
+	 */
+	public synchronized int getUnread(long memberId){
+		Long cursor = cursors.get(memberId);
+		long sequence = cursor == null ? getOldestSequence() : Math.max(cursor, getOldestSequence());
+		int unread = 0;
+		for(; sequence < nextSequence; sequence++){
+			if(Arrays.binarySearch(recipients[(int) (sequence % buffer.length)], memberId) >= 0)
+				unread++;
+		}
+		return unread;
+	}
+
+
+	private long getOldestSequence(){
+		return Math.max(0, nextSequence - buffer.length);
+	}
+
+
+	//Once per round of the buffer, the cursors of users that left the room and have nothing left to read are dropped
+	private void dropStaleCursors(){
+		long oldest = getOldestSequence();
+		Iterator<Map.Entry<Long, Long>> iterator = cursors.entrySet().iterator();
+		while(iterator.hasNext()){
+			Map.Entry<Long, Long> cursor = iterator.next();
+			if(cursor.getValue() <= oldest && Arrays.binarySearch(lastRecipients, cursor.getKey()) < 0)
+				iterator.remove();
+		}
+	}
+}
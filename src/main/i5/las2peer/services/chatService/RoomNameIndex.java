@@ -0,0 +1,139 @@
+package i5.las2peer.services.chatService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ *
+ * <p>Sorted index of the names of the public {@link i5.las2peer.services.chatService.ChatRoom}s, used by the
+ * {@link i5.las2peer.services.chatService.ChatService} to search rooms by a prefix of their name.<br>
+ * The index is built from the room directory. Whether a room is private never changes, so each room is only
+ * fetched once to find out; rebuilding the index afterwards only sorts the known public names.
+ *
+ */
+public class RoomNameIndex {
+
+	private final Map<String, Boolean> privateRooms = new ConcurrentHashMap<String, Boolean>();
+	private volatile String[] publicNames = new String[0]; //Sorted
+	private volatile long built = 0;
+
+
+	/**
+	 * Determines, if the index has to be built again from the room directory.
+	 *
+	 * @param interval the time in milliseconds after which the index is rebuilt
+	 *
+	 * @return True or False.
+	 */
+	public boolean isRebuildDue(long interval){
+		return System.currentTimeMillis() - built > interval;
+	}
+
+
+	/**
+	 * Returns the names of the rooms whose privacy is not known yet.
+	 *
+	 * @param chatRoomNames the names of all rooms
+	 *
+	 * @return A list of names.
+	 */
+	public List<String> getUnclassified(Collection<String> chatRoomNames){
+		List<String> unclassified = new ArrayList<String>();
+		for(String chatRoomName : chatRoomNames){
+			if(!privateRooms.containsKey(chatRoomName))
+				unclassified.add(chatRoomName);
+		}
+		return unclassified;
+	}
+
+
+	/**
+	 * Records whether a room is private.
+	 *
+	 * @param chatRoomName the name of the room
+	 * @param isPrivate the privacy of the room
+	 *
+	 */
+	public void classify(String chatRoomName, boolean isPrivate){
+		privateRooms.put(chatRoomName, isPrivate);
+	}
+
+
+	/**
+	 * Builds the index from the room directory. Rooms whose privacy is not known are left out.
+	 *
+	 * @param chatRoomNames the names of all rooms
+	 *
+	 */
+	public void rebuild(Collection<String> chatRoomNames){
+		List<String> names = new ArrayList<String>();
+		for(String chatRoomName : chatRoomNames){
+			if(Boolean.FALSE.equals(privateRooms.get(chatRoomName)))
+				names.add(chatRoomName);
+		}
+		String[] sorted = names.toArray(new String[0]);
+		Arrays.sort(sorted);
+		synchronized(this){
+			publicNames = sorted;
+			built = System.currentTimeMillis();
+		}
+	}
+
+
+	/**
+	 * Adds a room that was created at this node, so it is found before the index is built again.
+	 *
+	 * @param chatRoomName the name of the room
+	 * @param isPrivate the privacy of the room
+	 *
+	 */
+	public synchronized void added(String chatRoomName, boolean isPrivate){
+		classify(chatRoomName, isPrivate);
+		if(isPrivate)
+			return;
+		String[] names = publicNames;
+		int position = Arrays.binarySearch(names, chatRoomName);
+		if(position >= 0)
+			return;
+		position = -position - 1;
+		String[] extended = new String[names.length + 1];
+		System.arraycopy(names, 0, extended, 0, position);
+		extended[position] = chatRoomName;
+		System.arraycopy(names, position, extended, position + 1, names.length - position);
+		publicNames = extended;
+	}
+
+
+	/**
+	 * Returns the public rooms whose name starts with the given prefix, in alphabetical order.
+	 *
+	 * @param prefix the beginning of the names
+	 * @param after the last name of the previous page or null for the first page
+	 * @param limit the maximum number of names
+	 *
+	 * @return A list of up to limit + 1 names, the last one only showing that more names follow.
+	 */
+	public List<String> find(String prefix, String after, int limit){
+		String[] names = publicNames;
+		int start = lowerBound(names, prefix);
+		if(after != null && after.compareTo(prefix) >= 0){
+			int position = Arrays.binarySearch(names, after);
+			start = Math.max(start, position >= 0 ? position + 1 : -position - 1);
+		}
+		List<String> found = new ArrayList<String>();
+		for(int i = start; i < names.length && found.size() <= limit && names[i].startsWith(prefix); i++)
+			found.add(names[i]);
+		return found;
+	}
+
+
+	private static int lowerBound(String[] names, String key){
+		int position = Arrays.binarySearch(names, key);
+		return position >= 0 ? position : -position - 1;
+	}
+}
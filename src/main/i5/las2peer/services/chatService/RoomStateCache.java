@@ -0,0 +1,94 @@
+package i5.las2peer.services.chatService;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ *
+ * <p>Keeps the state of {@link i5.las2peer.services.chatService.ChatRoom}s in memory, so the
+ * {@link i5.las2peer.services.chatService.ChatService} does not fetch a room from the storage on every request.<br>
+ * When a node stores a room, it notifies the other service nodes with the new version of the room, and they drop
+ * their copy unless it is newer. Notifications may get lost, so a copy is only trusted for a limited time.
+ *
+ */
+public class RoomStateCache {
+
+	private final Map<String, CachedRoom> rooms = new ConcurrentHashMap<String, CachedRoom>();
+
+
+	/**
+	 * Returns a copy of the cached state of a room.
+	 *
+	 * @param chatRoomName the name of the room
+	 * @param ttl the time in milliseconds a cached state is trusted
+	 *
+	 * @return The room or null, if it is not cached or its state is too old.
+	 */
+	public ChatRoom get(String chatRoomName, long ttl){
+		CachedRoom cached = rooms.get(chatRoomName);
+		if(cached == null)
+			return null;
+		if(System.currentTimeMillis() - cached.cachedAt > ttl){
+			rooms.remove(chatRoomName, cached);
+			return null;
+		}
+		return WriteBehindQueue.deserialize(cached.state);
+	}
+
+
+	/**
+	 * Caches the state of a room that was fetched from or written to the storage.
+	 *
+	 * @param chatRoom the room
+	 *
+	 */
+	public void put(ChatRoom chatRoom){
+		try {
+			rooms.put(chatRoom.getRoomName(), new CachedRoom(WriteBehindQueue.serialize(chatRoom), chatRoom.getVersion()));
+		} catch (IOException e) {
+			//Not cached, the room is fetched from the storage again
+			rooms.remove(chatRoom.getRoomName());
+		}
+	}
+
+
+	/**
+	 * Drops the cached state of a room, unless it is newer than the changed one.
+	 *
+	 * @param chatRoomName the name of the room
+	 * @param version the version of the room that was stored by another node
+	 *
+	 * @return True, if a cached state was dropped.
+	 */
+	public boolean invalidate(String chatRoomName, long version){
+		CachedRoom cached = rooms.get(chatRoomName);
+		if(cached == null || cached.version > version)
+			return false;
+		return rooms.remove(chatRoomName, cached);
+	}
+
+
+	/**
+	 * Drops the cached state of a room.
+	 *
+	 * @param chatRoomName the name of the room
+	 *
+	 */
+	public void remove(String chatRoomName){
+		rooms.remove(chatRoomName);
+	}
+
+
+	private static class CachedRoom {
+		private final byte[] state; //Serialized, so every reader gets its own copy
+		private final long version;
+		private final long cachedAt = System.currentTimeMillis();
+
+		private CachedRoom(byte[] state, long version) {
+			this.state = state;
+			this.version = version;
+		}
+	}
+}
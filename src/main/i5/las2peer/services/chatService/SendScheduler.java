@@ -0,0 +1,170 @@
+package i5.las2peer.services.chatService;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ *
+ * <p>Hands out the slots for messages in flight at the node of the {@link i5.las2peer.services.chatService.ChatService}.
+ * <br>
+ * Sends are queued in two lanes: The priority lane for latency-sensitive messages (like private messages) and the
+ * bulk lane for the fan-out of chatroom messages. While both lanes are waiting, the priority lane gets "weight"
+ * slots for each slot of the bulk lane, so a burst in a big room can not hold up a private message, but is not
+ * starved either. Within the bulk lane, the chatrooms take turns, so one busy room does not delay all others.
+ *
+ */
+public class SendScheduler {
+
+	/**
+	 * The lanes of the scheduler.
+	 */
+	public enum Lane {
+		/**
+		 * Latency-sensitive messages.
+		 */
+		PRIORITY,
+
+		/**
+		 * Fan-out of chatroom messages.
+		 */
+		BULK
+	}
+
+	private final int capacity;
+	private final int weight;
+	private int inUse = 0;
+	private int priorityGrants = 0; //Priority slots handed out since the last bulk slot
+	private final Deque<Waiter> priorityQueue = new ArrayDeque<Waiter>();
+	private final Map<String, Deque<Waiter>> bulkQueues = new LinkedHashMap<String, Deque<Waiter>>(); //In turn order
+
+
+	/**
+	 * Constructor for a {@link i5.las2peer.services.chatService.SendScheduler}.
+	 *
+	 * @param capacity the number of messages that may be in flight at the same time
+	 * @param weight the number of slots the priority lane gets for each slot of the bulk lane
+	 *
+	 */
+	public SendScheduler(int capacity, int weight){
+		this.capacity = capacity;
+		this.weight = weight;
+	}
+
+
+	/**
+	 * Takes a slot, if one is free and nobody of the same lane is waiting for it.
+	 *
+	 * @param lane the lane of the message
+	 *
+	 * @return True, if a slot was taken.
+	 */
+	public synchronized boolean tryAcquire(Lane lane){
+		if(inUse >= capacity)
+			return false;
+		if(lane == Lane.BULK && (!bulkQueues.isEmpty() || !priorityQueue.isEmpty()))
+			return false;
+		if(lane == Lane.PRIORITY && !priorityQueue.isEmpty())
+			return false;
+		inUse++;
+		return true;
+	}
+
+
+	/**
+	 * Waits in its lane for a slot. The caller must not hold slots while waiting, otherwise senders could wait
+	 * for each other.
+	 *
+	 * @param lane the lane of the message
+	 * @param chatRoomName the chatroom of the message, the turn of the bulk lane is taken per chatroom
+	 * @param maxWait the time in milliseconds to wait at most
+	 *
+	 * @return True, if a slot was taken. False, if the time ran out.
+	 *
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public synchronized boolean acquire(Lane lane, String chatRoomName, long maxWait) throws InterruptedException {
+		Waiter waiter = new Waiter();
+		Deque<Waiter> queue;
+		if(lane == Lane.PRIORITY){
+			queue = priorityQueue;
+		}
+		else{
+			queue = bulkQueues.get(chatRoomName);
+			if(queue == null){
+				queue = new ArrayDeque<Waiter>();
+				bulkQueues.put(chatRoomName, queue);
+			}
+		}
+		queue.addLast(waiter);
+		dispatch();
+		long deadline = System.currentTimeMillis() + maxWait;
+		try {
+			while(!waiter.granted){
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0)
+					break;
+				wait(remaining);
+			}
+		} catch (InterruptedException e) {
+			if(!waiter.granted)
+				throw e;
+			Thread.currentThread().interrupt(); //The slot is taken already, the caller has to release it
+		} finally {
+			if(!waiter.granted){
+				queue.remove(waiter);
+				if(queue.isEmpty() && lane == Lane.BULK && bulkQueues.get(chatRoomName) == queue)
+					bulkQueues.remove(chatRoomName);
+			}
+		}
+		return waiter.granted;
+	}
+
+
+	/**
+	 * Returns a slot and hands it to the next waiting sender.
+	 */
+	public synchronized void release(){
+		inUse--;
+		dispatch();
+	}
+
+
+	private void dispatch(){
+		boolean granted = false;
+		while(inUse < capacity){
+			Waiter next = null;
+			boolean bulkWaiting = !bulkQueues.isEmpty();
+			if(!priorityQueue.isEmpty() && (!bulkWaiting || priorityGrants < weight)){
+				next = priorityQueue.pollFirst();
+				if(bulkWaiting)
+					priorityGrants++;
+			}
+			else if(bulkWaiting){
+				//Take the first waiter of the chatroom whose turn it is, the chatroom then goes to the end of the turn order
+				Iterator<Map.Entry<String, Deque<Waiter>>> rooms = bulkQueues.entrySet().iterator();
+				Map.Entry<String, Deque<Waiter>> room = rooms.next();
+				rooms.remove();
+				next = room.getValue().pollFirst();
+				if(!room.getValue().isEmpty())
+					bulkQueues.put(room.getKey(), room.getValue());
+				priorityGrants = 0;
+			}
+			if(next == null)
+				break;
+			next.granted = true;
+			inUse++;
+			granted = true;
+		}
+		if(granted)
+			notifyAll();
+	}
+
+
+	private static class Waiter {
+		private boolean granted = false;
+	}
+}
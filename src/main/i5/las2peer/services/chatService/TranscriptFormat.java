@@ -0,0 +1,116 @@
+package i5.las2peer.services.chatService;
+
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+
+/**
+ *
+ * <p>Formats that the {@link i5.las2peer.services.chatService.ChatService} can export the history of a
+ * {@link i5.las2peer.services.chatService.ChatRoom} in.<br>
+ * Each {@link i5.las2peer.services.chatService.ChatRoomMessage} becomes one line, so an export can be written
+ * chunk by chunk and continued after an interruption.
+ *
+ */
+public enum TranscriptFormat {
+
+	/**
+	 * One JSON object per line.
+	 */
+	NDJSON,
+
+	/**
+	 * Comma separated values, with a header line at the beginning of the export.
+	 */
+	CSV;
+
+
+	/**
+	 * Returns the line starting an export in this format.
+	 *
+	 * @return A line including its line break, empty if this format has no header.
+	 */
+	public String getHeader(){
+		if(this == CSV)
+			return "messageId,timestamp,senderId,sender,chatRoom,content,attachmentId\n";
+		return "";
+	}
+
+
+	/**
+	 * Formats a message as one line.
+	 *
+	 * @param chatRoomMessage the message
+	 * @param senderLogin the login name of the sending user
+	 *
+	 * @return A line including its line break.
+	 */
+	public String format(ChatRoomMessage chatRoomMessage, String senderLogin){
+		SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		isoFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		String timestamp = isoFormat.format(chatRoomMessage.getTimestamp());
+		StringBuilder line = new StringBuilder();
+		if(this == CSV){
+			line.append(csv(chatRoomMessage.getMessageId())).append(',');
+			line.append(timestamp).append(',');
+			line.append(chatRoomMessage.getSendById()).append(',');
+			line.append(csv(senderLogin)).append(',');
+			line.append(csv(chatRoomMessage.getInChatRoom())).append(',');
+			line.append(csv(chatRoomMessage.getContent())).append(',');
+			line.append(csv(chatRoomMessage.getAttachmentId()));
+		}
+		else{
+			line.append("{\"messageId\":").append(json(chatRoomMessage.getMessageId()));
+			line.append(",\"timestamp\":").append(json(timestamp));
+			line.append(",\"senderId\":").append(chatRoomMessage.getSendById());
+			line.append(",\"sender\":").append(json(senderLogin));
+			line.append(",\"chatRoom\":").append(json(chatRoomMessage.getInChatRoom()));
+			line.append(",\"content\":").append(json(chatRoomMessage.getContent()));
+			line.append(",\"attachmentId\":").append(json(chatRoomMessage.getAttachmentId()));
+			line.append('}');
+		}
+		return line.append('\n').toString();
+	}
+
+
+	private static String csv(String value){
+		if(value == null)
+			return "";
+		if(value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+			return value;
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+
+	private static String json(String value){
+		if(value == null)
+			return "null";
+		StringBuilder escaped = new StringBuilder("\"");
+		for(int i = 0; i < value.length(); i++){
+			char c = value.charAt(i);
+			switch(c){
+			case '"':
+				escaped.append("\\\"");
+				break;
+			case '\\':
+				escaped.append("\\\\");
+				break;
+			case '\n':
+				escaped.append("\\n");
+				break;
+			case '\r':
+				escaped.append("\\r");
+				break;
+			case '\t':
+				escaped.append("\\t");
+				break;
+			default:
+				if(c < 0x20)
+					escaped.append(String.format("\\u%04x", (int) c));
+				else
+					escaped.append(c);
+			}
+		}
+		return escaped.append('"').toString();
+	}
+}
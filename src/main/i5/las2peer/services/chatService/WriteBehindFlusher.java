@@ -0,0 +1,74 @@
+package i5.las2peer.services.chatService;
+
+import i5.las2peer.logging.L2pLogger;
+import i5.las2peer.logging.NodeObserver.Event;
+import i5.las2peer.p2p.Node;
+import i5.las2peer.security.Agent;
+
+import java.io.Serializable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ *
+ * <p>Triggers the writing of a write-behind queue of the {@link i5.las2peer.services.chatService.ChatService}
+ * after a delay, so queued changes reach the storage even if no user polls at the node.<br>
+ * The storage can only be accessed while handling a request, so the timer invokes the given method of the service
+ * at its own node, signed by the service agent. At most one trigger is scheduled at a time.
+ *
+ */
+public class WriteBehindFlusher {
+
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "ChatService-WriteBehindFlusher");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private final String method;
+
+
+	/**
+	 * Constructor for a {@link i5.las2peer.services.chatService.WriteBehindFlusher}.
+	 *
+	 * @param method the service method writing the queue, only callable by the service agent
+	 *
+	 */
+	public WriteBehindFlusher(String method){
+		this.method = method;
+	}
+
+
+	/**
+	 * Schedules the writing of the queue, unless it is scheduled already.
+	 *
+	 * @param delay the time in milliseconds until the queue is written
+	 * @param node the node of the service
+	 * @param serviceAgent the agent of the service, used to sign the invocation
+	 *
+	 */
+	public void schedule(long delay, final Node node, final Agent serviceAgent){
+		if(!scheduled.compareAndSet(false, true))
+			return;
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				scheduled.set(false); //Changes queued from now on need another trigger
+				try {
+					node.invokeGlobally(serviceAgent, serviceAgent.getId(), node.getNodeId(), ChatService.class.getName(),
+							method, new Serializable[0]);
+				} catch (Exception e) {
+					//Written with the next poll or heartbeat at this node
+					L2pLogger.logEvent(Event.SERVICE_ERROR, "Error invoking " + method + " for queued writes! " + e);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,189 @@
+package i5.las2peer.services.chatService;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ *
+ * <p>Holds changed {@link i5.las2peer.services.chatService.ChatRoom}s that the
+ * {@link i5.las2peer.services.chatService.ChatService} has not written to the storage yet.<br>
+ * Changes of the same room within the write window are coalesced, so only the latest state is written.
+ * Until then, the pending state is what this node reads, so users see their changes immediately. A failed
+ * write is retried until it succeeds or a newer state replaces it.
+ *
+ */
+public class WriteBehindQueue {
+
+	private final Map<String, PendingWrite> pending = new LinkedHashMap<String, PendingWrite>();
+
+
+	/**
+	 * Queues the state of a room for writing. If the room is already queued, its state is replaced, but it keeps
+	 * its time of writing.
+	 *
+	 * @param chatRoom the changed room
+	 * @param window the time in milliseconds changes are collected before writing
+	 *
+	 * @throws IOException if the room could not be copied
+	 */
+	public synchronized void put(ChatRoom chatRoom, long window) throws IOException {
+		PendingWrite write = pending.get(chatRoom.getRoomName());
+		if(write == null){
+			write = new PendingWrite(System.currentTimeMillis() + window);
+			pending.put(chatRoom.getRoomName(), write);
+		}
+		write.state = serialize(chatRoom);
+		write.version++;
+	}
+
+
+	/**
+	 * Returns a copy of the pending state of a room.
+	 *
+	 * @param chatRoomName the name of the room
+	 *
+	 * @return The room or null, if no change of it is pending.
+	 */
+	public ChatRoom get(String chatRoomName){
+		byte[] state;
+		synchronized(this){
+			PendingWrite write = pending.get(chatRoomName);
+			if(write == null)
+				return null;
+			state = write.state;
+		}
+		return deserialize(state);
+	}
+
+
+	/**
+	 * Returns the rooms whose time of writing has come and that are not being written by another thread.
+	 * Each returned room has to be reported back with {@link #written(DueWrite)} or
+	 * {@link #failed(DueWrite, long)}.
+	 *
+	 * @return A list of rooms with the version of their state.
+	 */
+	public synchronized List<DueWrite> takeDue(){
+		long now = System.currentTimeMillis();
+		List<DueWrite> due = new ArrayList<DueWrite>();
+		for(PendingWrite write : pending.values()){
+			if(!write.writing && write.dueAt <= now){
+				write.writing = true;
+				due.add(new DueWrite(deserialize(write.state), write.version));
+			}
+		}
+		return due;
+	}
+
+
+	/**
+	 * Determines, if changes are waiting to be written.
+	 *
+	 * @return True or False.
+	 */
+	public synchronized boolean isEmpty(){
+		return pending.isEmpty();
+	}
+
+
+	/**
+	 * Removes a written room, unless it was changed again in the meantime.
+	 *
+	 * @param write the written room and its version
+	 *
+	 */
+	public synchronized void written(DueWrite write){
+		PendingWrite current = pending.get(write.chatRoom.getRoomName());
+		if(current == null)
+			return;
+		current.writing = false;
+		if(current.version == write.version)
+			pending.remove(write.chatRoom.getRoomName());
+	}
+
+
+	/**
+	 * Schedules the retry of a failed write.
+	 *
+	 * @param write the room that could not be written and its version
+	 * @param retryInterval the time in milliseconds until the next attempt
+	 *
+	 */
+	public synchronized void failed(DueWrite write, long retryInterval){
+		PendingWrite current = pending.get(write.chatRoom.getRoomName());
+		if(current == null)
+			return;
+		current.writing = false;
+		current.dueAt = System.currentTimeMillis() + retryInterval;
+	}
+
+
+	static byte[] serialize(ChatRoom chatRoom) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		try {
+			out.writeObject(chatRoom);
+		} finally {
+			out.close();
+		}
+		return bytes.toByteArray();
+	}
+
+
+	static ChatRoom deserialize(byte[] state){
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(state));
+			try {
+				return (ChatRoom) in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			//The state was written by this class a moment ago
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	/**
+	 * A room due for writing, together with the version of its state.
+	 */
+	public static class DueWrite {
+		private final ChatRoom chatRoom;
+		private final int version;
+
+		private DueWrite(ChatRoom chatRoom, int version) {
+			this.chatRoom = chatRoom;
+			this.version = version;
+		}
+
+		/**
+		 * Gets the room to be written.
+		 *
+		 * @return The room.
+		 */
+		public ChatRoom getChatRoom() {
+			return chatRoom;
+		}
+	}
+
+
+	private static class PendingWrite {
+		private byte[] state; //Serialized, so every reader gets its own copy
+		private int version = 0;
+		private long dueAt;
+		private boolean writing = false;
+
+		private PendingWrite(long dueAt) {
+			this.dueAt = dueAt;
+		}
+	}
+}
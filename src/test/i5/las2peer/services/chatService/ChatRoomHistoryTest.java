@@ -0,0 +1,54 @@
+package i5.las2peer.services.chatService;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ChatRoomHistoryTest {
+	
+	@Test
+	public void testExpireByCount() {
+		long now = System.currentTimeMillis();
+		ChatRoomHistory history = new ChatRoomHistory();
+		for(int i = 0; i < 5; i++)
+			history.append(now, 2); //Segments 0 and 1 with two messages, segment 2 with one
+		assertEquals(5, history.getMessageCount());
+		
+		//Unlimited keeps everything
+		assertEquals(0, history.expire(0, 0).length);
+		
+		//Segment 1 is still needed to keep three messages
+		long[] removed = history.expire(0, 3);
+		assertEquals(1, removed.length);
+		assertEquals(0, removed[0]);
+		assertEquals(3, history.getMessageCount());
+		assertEquals(1, history.getSegmentAfter(-1));
+		
+		removed = history.expire(0, 1);
+		assertEquals(1, removed.length);
+		assertEquals(1, removed[0]);
+		assertEquals(1, history.getMessageCount());
+		
+		//The last segment is kept, even if it holds more messages than allowed
+		history.append(now, 2);
+		assertEquals(0, history.expire(0, 1).length);
+	}
+	
+	
+	@Test
+	public void testExpireByAge() {
+		long now = System.currentTimeMillis();
+		ChatRoomHistory history = new ChatRoomHistory();
+		history.append(now - 20000, 2);
+		history.append(now - 15000, 2); //Segment 0 is full, its newest message is 15 seconds old
+		history.append(now - 15000, 2);
+		history.append(now, 2); //Segment 1 has a recent message
+		history.append(now, 2);
+		
+		long[] removed = history.expire(10000, 0);
+		assertEquals(1, removed.length);
+		assertEquals(0, removed[0]);
+		assertEquals(3, history.getMessageCount());
+		assertEquals(0, history.expire(10000, 0).length);
+	}
+}
@@ -0,0 +1,363 @@
+package i5.las2peer.services.chatService;
+
+import i5.las2peer.httpConnector.HttpConnector;
+import i5.las2peer.httpConnector.client.Client;
+import i5.las2peer.p2p.LocalNode;
+import i5.las2peer.p2p.ServiceNameVersion;
+import i5.las2peer.security.ServiceAgent;
+import i5.las2peer.security.UserAgent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *
+ * <p>Load generator for the {@link i5.las2peer.services.chatService.ChatService}.<br>
+ * Starts a local test network of several {@link i5.las2peer.p2p.LocalNode}s, each hosting the service and
+ * an {@link i5.las2peer.httpConnector.HttpConnector}, and drives a configurable number of simulated users
+ * through create / join / send / poll / leave cycles at a target rate. At the end, throughput,
+ * p50/p99 latency and error rate are reported for each invoked service method.
+ *
+ * <p>This is not a unit test (and therefore not named like one), it is started by the "load_test" ant target
+ * or directly via its main method. All settings are read from system properties, a value out of range stops the
+ * generator before the network is started:
+ * <ul>
+ * <li>loadgen.nodes - number of nodes in the test network (default 3)</li>
+ * <li>loadgen.users - number of simulated users (default 100)</li>
+ * <li>loadgen.rooms - number of chatrooms the users are spread across (default 10)</li>
+ * <li>loadgen.rate - target number of service calls per second over all users (default 50)</li>
+ * <li>loadgen.duration - duration of the run in seconds (default 60)</li>
+ * <li>loadgen.messagesPerCycle - messages a user sends before leaving its chatroom again (default 5)</li>
+ * <li>loadgen.threads - number of worker threads issuing calls (default 32)</li>
+ * <li>loadgen.httpPort - port of the connector of the first node, the others use the following ports (default 8080)</li>
+ * </ul>
+ *
+ */
+public class ChatServiceLoadGenerator {
+	private static final String HTTP_ADDRESS = "localhost";
+	private static final ServiceNameVersion testServiceClass = new ServiceNameVersion(ChatService.class.getCanonicalName(),"0.1");
+
+	//Answers of the service that signal a failed call (all answers are plain Strings or String arrays)
+	private static final String[] errorPrefixes = {"Problems", "Error", "Wait a little, busy!", "There exists no agent"};
+
+	private final int nodeCount = getSetting("loadgen.nodes", 3, 1, 1000);
+	private final int userCount = getSetting("loadgen.users", 100, 1, Integer.MAX_VALUE);
+	private final int roomCount = getSetting("loadgen.rooms", 10, 1, Integer.MAX_VALUE);
+	private final int rate = getSetting("loadgen.rate", 50, 1, 1000000000); //The tick has to last at least a nanosecond
+	private final int duration = getSetting("loadgen.duration", 60, 1, Integer.MAX_VALUE);
+	private final int messagesPerCycle = getSetting("loadgen.messagesPerCycle", 5, 1, Integer.MAX_VALUE);
+	private final int threads = getSetting("loadgen.threads", 32, 1, Integer.MAX_VALUE);
+	private final int httpPort = getSetting("loadgen.httpPort", 8080, 1, 65536 - nodeCount);
+
+	private final List<LocalNode> nodes = new ArrayList<LocalNode>();
+	private final List<HttpConnector> connectors = new ArrayList<HttpConnector>();
+	private final List<SimulatedUser> users = new ArrayList<SimulatedUser>();
+	private final Map<String, MethodStatistics> statistics = new TreeMap<String, MethodStatistics>();
+	private final AtomicLong skippedTicks = new AtomicLong();
+
+
+	public static void main(String[] args) throws Exception {
+		ChatServiceLoadGenerator generator = new ChatServiceLoadGenerator();
+		try {
+			generator.startNetwork();
+			generator.createUsers();
+			generator.run();
+			generator.printReport(System.out);
+		} finally {
+			generator.shutDownNetwork();
+		}
+		System.exit(0);
+	}
+
+
+	/**
+	 * Reads a setting from the system properties.
+	 *
+	 * @param name the name of the system property
+	 * @param defaultValue the value if the property is not set
+	 * @param min the smallest valid value
+	 * @param max the largest valid value
+	 *
+	 * @return The value.
+	 *
+	 * @throws IllegalArgumentException if the property is not a number in the valid range
+	 */
+	private static int getSetting(String name, int defaultValue, int min, int max) {
+		String value = System.getProperty(name);
+		if(value == null)
+			return defaultValue;
+		try {
+			int parsed = Integer.parseInt(value.trim());
+			if(parsed >= min && parsed <= max)
+				return parsed;
+		} catch (NumberFormatException e) {
+			//Reported below
+		}
+		throw new IllegalArgumentException(name + " has to be a number between " + min + " and " + max + ", but is \""
+				+ value + "\"!");
+	}
+
+
+	/**
+	 * Starts the configured number of nodes. All nodes host the same service agent and
+	 * get their own connector, so that the simulated users can be spread over the network.
+	 *
+	 * @throws Exception if a node or a connector could not be started
+	 */
+	private void startNetwork() throws Exception {
+		ServiceAgent testService = ServiceAgent.createServiceAgent(testServiceClass.getName(), "a pass");
+		testService.unlockPrivateKey("a pass");
+
+		for(int i = 0; i < nodeCount; i++){
+			LocalNode node = LocalNode.newNode();
+			node.launch();
+			node.registerReceiver(testService);
+			nodes.add(node);
+
+			HttpConnector connector = new HttpConnector();
+			connector.setHttpPort(httpPort + i);
+			connector.setSocketTimeout(10000);
+			connector.setLogStream(new PrintStream(new ByteArrayOutputStream()));
+			connector.start(node);
+			connectors.add(connector);
+		}
+		System.out.println("Started " + nodeCount + " nodes.");
+	}
+
+
+	/**
+	 * Creates the simulated users, stores their agents in the (shared) storage of the local
+	 * network and logs them in at the connector of "their" node.
+	 *
+	 * @throws Exception if an agent could not be created or a client could not connect
+	 */
+	private void createUsers() throws Exception {
+		for(int i = 0; i < userCount; i++){
+			String pass = "loadUserPass" + i;
+			UserAgent agent = UserAgent.createUserAgent(pass);
+			agent.unlockPrivateKey(pass);
+			agent.setLoginName("loaduser" + i);
+			nodes.get(i % nodeCount).storeAgent(agent);
+
+			Client client = new Client(HTTP_ADDRESS, httpPort + (i % nodeCount), agent.getLoginName(), pass);
+			client.connect();
+			users.add(new SimulatedUser(agent.getLoginName(), client, "LoadTestRoom" + (i % roomCount)));
+		}
+		System.out.println("Created and connected " + userCount + " users.");
+	}
+
+
+	/**
+	 * Issues one call every 1/rate seconds, round robin over all users. Each call advances the
+	 * cycle of the chosen user by one step. If that user is still busy with its previous call,
+	 * the tick is skipped and counted, since this means the network can not keep up with the rate.
+	 *
+	 * @throws InterruptedException if interrupted while waiting for the end of the run
+	 */
+	private void run() throws InterruptedException {
+		final ExecutorService workers = Executors.newFixedThreadPool(threads);
+		ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+		final AtomicLong tick = new AtomicLong();
+
+		long startTime = System.nanoTime();
+		ticker.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				final SimulatedUser user = users.get((int) (tick.getAndIncrement() % users.size()));
+				if(!user.busy.compareAndSet(false, true)){
+					skippedTicks.incrementAndGet();
+					return;
+				}
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							user.nextStep();
+						} finally {
+							user.busy.set(false);
+						}
+					}
+				});
+			}
+		}, 0, TimeUnit.SECONDS.toNanos(1) / rate, TimeUnit.NANOSECONDS);
+
+		Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+		ticker.shutdownNow();
+		workers.shutdown();
+		workers.awaitTermination(30, TimeUnit.SECONDS);
+		long elapsed = System.nanoTime() - startTime;
+
+		synchronized(statistics){
+			for(MethodStatistics methodStatistics : statistics.values())
+				methodStatistics.setElapsedNanos(elapsed);
+		}
+	}
+
+
+	private void printReport(PrintStream out) {
+		out.println();
+		out.println("Load test: " + nodeCount + " nodes, " + userCount + " users, " + roomCount + " rooms, target rate "
+				+ rate + " calls/s, " + duration + " s");
+		out.println("------------------------------------------------------------------------------------------");
+		out.println(String.format("%-24s %10s %10s %10s %10s %10s", "method", "calls", "calls/s", "p50 ms", "p99 ms", "errors %"));
+		synchronized(statistics){
+			for(Map.Entry<String, MethodStatistics> entry : statistics.entrySet()){
+				MethodStatistics methodStatistics = entry.getValue();
+				out.println(String.format("%-24s %10d %10.1f %10.1f %10.1f %10.2f", entry.getKey(),
+						methodStatistics.count(), methodStatistics.throughput(), methodStatistics.percentile(0.5),
+						methodStatistics.percentile(0.99), methodStatistics.errorRate()));
+			}
+		}
+		out.println("Skipped ticks (user still busy): " + skippedTicks.get());
+	}
+
+
+	private void shutDownNetwork() {
+		for(HttpConnector connector : connectors){
+			try {
+				connector.stop();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		for(LocalNode node : nodes)
+			node.shutDown();
+		LocalNode.reset();
+	}
+
+
+	private MethodStatistics getStatistics(String method) {
+		synchronized(statistics){
+			MethodStatistics methodStatistics = statistics.get(method);
+			if(methodStatistics == null){
+				methodStatistics = new MethodStatistics();
+				statistics.put(method, methodStatistics);
+			}
+			return methodStatistics;
+		}
+	}
+
+
+	private static boolean isError(Object result) {
+		String answer;
+		if(result instanceof String[] && ((String[]) result).length == 1)
+			answer = ((String[]) result)[0];
+		else if(result instanceof String)
+			answer = (String) result;
+		else
+			return false;
+		for(String prefix : errorPrefixes){
+			if(answer.startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * One simulated user. A cycle consists of creating (or trying to create) its chatroom, joining it,
+	 * sending some messages with a poll after each one and finally leaving the chatroom again.
+	 */
+	private class SimulatedUser {
+		private final String login;
+		private final Client client;
+		private final String chatRoomName;
+		private final Random random = new Random();
+		private final AtomicBoolean busy = new AtomicBoolean(false);
+		private int step = 0;
+
+		private SimulatedUser(String login, Client client, String chatRoomName) {
+			this.login = login;
+			this.client = client;
+			this.chatRoomName = chatRoomName;
+		}
+
+		private void nextStep() {
+			int cycleLength = 3 + 2 * messagesPerCycle;
+			int position = step++ % cycleLength;
+			if(position == 0)
+				invoke("addChatRoom", chatRoomName, "false");
+			else if(position == 1)
+				invoke("addMember", chatRoomName, login);
+			else if(position == cycleLength - 1)
+				invoke("removeMember", chatRoomName, login);
+			else if(position % 2 == 0)
+				invoke("sendChatRoomMessage", "Load test message " + random.nextInt() + " from " + login, chatRoomName);
+			else
+				invoke("getNewChatRoomMessages", chatRoomName);
+		}
+
+		private void invoke(String method, Object... parameters) {
+			MethodStatistics methodStatistics = getStatistics(method);
+			long start = System.nanoTime();
+			boolean error;
+			try {
+				error = isError(client.invoke(testServiceClass.getName(), method, parameters));
+			} catch (Exception e) {
+				error = true;
+			}
+			methodStatistics.record(System.nanoTime() - start, error);
+		}
+	}
+
+
+	/**
+	 * Collects the latencies and errors of one service method.
+	 */
+	private static class MethodStatistics {
+		private long[] latencies = new long[1024];
+		private int count = 0;
+		private int errors = 0;
+		private long elapsedNanos = 0;
+
+		private synchronized void record(long latencyNanos, boolean error) {
+			if(count == latencies.length)
+				latencies = Arrays.copyOf(latencies, count * 2);
+			latencies[count++] = latencyNanos;
+			if(error)
+				errors++;
+		}
+
+		private synchronized void setElapsedNanos(long elapsedNanos) {
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		private synchronized int count() {
+			return count;
+		}
+
+		private synchronized double throughput() {
+			if(elapsedNanos == 0)
+				return 0;
+			return count / (elapsedNanos / 1e9);
+		}
+
+		private synchronized double percentile(double percentile) {
+			if(count == 0)
+				return 0;
+			long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percentile * count) - 1;
+			return sorted[Math.max(index, 0)] / 1e6;
+		}
+
+		private synchronized double errorRate() {
+			if(count == 0)
+				return 0;
+			return 100.0 * errors / count;
+		}
+	}
+}
@@ -13,6 +13,8 @@ import i5.las2peer.testing.MockAgentFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 
 import org.junit.After;
 import org.junit.Before;
@@ -273,6 +275,234 @@ public class ChatServiceTest {
 		}
 	}
 	
+	@Test
+	public void testIdempotentMessages() {
+		//1. login as Adam and create a chatroom (success)
+		//2. send a message with an id twice (success both times)
+		//3. fetch the messages, the resent message is only received once
+		Client c = new Client(HTTP_ADDRESS, HTTP_PORT, adam.getLoginName(), adamsPass);
+		
+		try {
+			c.connect();
+			
+			Object result = c.invoke(testServiceClass.getName(), "addChatRoom","TestChatRoom", "false");
+			assertEquals("Chatroom TestChatRoom was created!", result);
+			
+			result = c.invoke(testServiceClass.getName(), "sendChatRoomMessage", "Hello World!", "TestChatRoom", "message-1");
+			assertEquals("Message sent!", result);
+			
+			result = c.invoke(testServiceClass.getName(), "sendChatRoomMessage", "Hello World!", "TestChatRoom", "message-1");
+			assertEquals("Message sent!", result);
+			Thread.sleep(2000); //To ensure that message sending has finished
+			
+			result = c.invoke(testServiceClass.getName(), "getNewChatRoomMessages", "TestChatRoom");
+			String[] resultArray = (String[]) result;
+			assertEquals(1, resultArray.length);
+			assertTrue(resultArray[0].contains("Hello World!"));
+			
+			c.disconnect();
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception: " + e);
+		}
+	}
+	
+	
+	@Test
+	public void testPagedMessages() {
+		//1. login as Adam and create a chatroom (success)
+		//2. send three messages (success)
+		//3. fetch a page of two messages, followed by a continuation token
+		//4. fetch the next page with the token, containing the last message only
+		Client c = new Client(HTTP_ADDRESS, HTTP_PORT, adam.getLoginName(), adamsPass);
+		
+		try {
+			c.connect();
+			
+			Object result = c.invoke(testServiceClass.getName(), "addChatRoom","TestChatRoom", "false");
+			assertEquals("Chatroom TestChatRoom was created!", result);
+			
+			for(int i = 1; i <= 3; i++){
+				result = c.invoke(testServiceClass.getName(), "sendChatRoomMessage", "message " + i, "TestChatRoom");
+				assertEquals("Message sent!", result);
+			}
+			Thread.sleep(2000); //To ensure that message sending has finished
+			
+			result = c.invoke(testServiceClass.getName(), "getNewChatRoomMessages", "TestChatRoom", "2", "");
+			String[] resultArray = (String[]) result;
+			assertEquals(3, resultArray.length);
+			assertTrue(resultArray[0].contains("message 1"));
+			assertTrue(resultArray[1].contains("message 2"));
+			assertTrue(resultArray[2].startsWith("CONTINUATION:"));
+			
+			result = c.invoke(testServiceClass.getName(), "getNewChatRoomMessages", "TestChatRoom", "2", resultArray[2]);
+			resultArray = (String[]) result;
+			assertEquals(1, resultArray.length);
+			assertTrue(resultArray[0].contains("message 3"));
+			
+			c.disconnect();
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception: " + e);
+		}
+	}
+	
+	
+	@Test
+	public void testPollAllRooms() {
+		//1. login as Adam and create two chatrooms (success)
+		//2. send a message to each chatroom (success)
+		//3. one poll returns the messages of both chatrooms, grouped by chatroom
+		Client c = new Client(HTTP_ADDRESS, HTTP_PORT, adam.getLoginName(), adamsPass);
+		
+		try {
+			c.connect();
+			
+			Object result = c.invoke(testServiceClass.getName(), "addChatRoom","TestChatRoom", "false");
+			assertEquals("Chatroom TestChatRoom was created!", result);
+			result = c.invoke(testServiceClass.getName(), "addChatRoom","OtherChatRoom", "false");
+			assertEquals("Chatroom OtherChatRoom was created!", result);
+			
+			result = c.invoke(testServiceClass.getName(), "sendChatRoomMessage", "first message", "TestChatRoom");
+			assertEquals("Message sent!", result);
+			result = c.invoke(testServiceClass.getName(), "sendChatRoomMessage", "second message", "OtherChatRoom");
+			assertEquals("Message sent!", result);
+			Thread.sleep(2000); //To ensure that message sending has finished
+			
+			String[] resultArray = (String[]) c.invoke(testServiceClass.getName(), "getNewMessagesForAllRooms");
+			assertEquals(4, resultArray.length);
+			assertEquals("CHATROOM:TestChatRoom", resultArray[0]);
+			assertTrue(resultArray[1].contains("first message"));
+			assertEquals("CHATROOM:OtherChatRoom", resultArray[2]);
+			assertTrue(resultArray[3].contains("second message"));
+			
+			c.disconnect();
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception: " + e);
+		}
+	}
+	
+	
+	@Test
+	public void testFindChatRooms() {
+		//1. login as Adam and create three public chatrooms and a private one (success)
+		//2. search by prefix, page by page
+		//3. the private chatroom is not found
+		Client c = new Client(HTTP_ADDRESS, HTTP_PORT, adam.getLoginName(), adamsPass);
+		
+		try {
+			c.connect();
+			
+			Object result = c.invoke(testServiceClass.getName(), "addChatRoom","Lobby", "false");
+			assertEquals("Chatroom Lobby was created!", result);
+			result = c.invoke(testServiceClass.getName(), "addChatRoom","LobbyTwo", "false");
+			assertEquals("Chatroom LobbyTwo was created!", result);
+			result = c.invoke(testServiceClass.getName(), "addChatRoom","Lounge", "false");
+			assertEquals("Chatroom Lounge was created!", result);
+			result = c.invoke(testServiceClass.getName(), "addChatRoom","LobbySecret", "true");
+			assertEquals("Chatroom LobbySecret was created!", result);
+			
+			String[] resultArray = (String[]) c.invoke(testServiceClass.getName(), "findChatRooms", "Lobby", "1", "");
+			assertEquals(2, resultArray.length);
+			assertEquals("Lobby", resultArray[0]);
+			assertEquals("SEARCH:Lobby", resultArray[1]);
+			resultArray = (String[]) c.invoke(testServiceClass.getName(), "findChatRooms", "Lobby", "1", resultArray[1]);
+			assertEquals(1, resultArray.length);
+			assertEquals("LobbyTwo", resultArray[0]);
+			
+			resultArray = (String[]) c.invoke(testServiceClass.getName(), "findChatRooms", "L", "10", "");
+			assertEquals(3, resultArray.length);
+			assertEquals("Lounge", resultArray[2]);
+			
+			c.disconnect();
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception: " + e);
+		}
+	}
+	
+	
+	@Test
+	public void testChatRoomEvents() {
+		//1. login as Adam and create a chatroom, Eve joins it (success)
+		//2. Eve sends two typing events, only the latest is kept
+		//3. Adam reads the event, with the cursor he gets no event again
+		Client adamsClient = new Client(HTTP_ADDRESS, HTTP_PORT, adam.getLoginName(), adamsPass);
+		Client evesClient = new Client(HTTP_ADDRESS, HTTP_PORT, eve.getLoginName(), evesPass);
+		
+		try {
+			adamsClient.connect();
+			evesClient.connect();
+			
+			Object result = adamsClient.invoke(testServiceClass.getName(), "addChatRoom","TestChatRoom", "false");
+			assertEquals("Chatroom TestChatRoom was created!", result);
+			result = evesClient.invoke(testServiceClass.getName(), "addMember", "TestChatRoom", eve.getLoginName());
+			assertEquals("User with login eve1st added!", result);
+			
+			result = evesClient.invoke(testServiceClass.getName(), "sendChatRoomEvent", "TestChatRoom", "typing", "true");
+			assertEquals("Event sent!", result);
+			result = evesClient.invoke(testServiceClass.getName(), "sendChatRoomEvent", "TestChatRoom", "typing", "false");
+			assertEquals("Event sent!", result);
+			
+			String[] resultArray = (String[]) adamsClient.invoke(testServiceClass.getName(), "getChatRoomEvents", "TestChatRoom", "");
+			assertEquals(2, resultArray.length);
+			assertEquals("typing:eve1st:false", resultArray[0]);
+			assertTrue(resultArray[1].startsWith("EVENTS:"));
+			resultArray = (String[]) adamsClient.invoke(testServiceClass.getName(), "getChatRoomEvents", "TestChatRoom", resultArray[1]);
+			assertEquals(1, resultArray.length);
+			
+			adamsClient.disconnect();
+			evesClient.disconnect();
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception: " + e);
+		}
+	}
+	
+	
+	@Test
+	public void testAttachments() {
+		//1. login as Adam and create a chatroom (success)
+		//2. upload a file in two chunks and share it (success)
+		//3. the received message refers to the attachment
+		//4. download a range spanning both chunks
+		Client c = new Client(HTTP_ADDRESS, HTTP_PORT, adam.getLoginName(), adamsPass);
+		
+		try {
+			c.connect();
+			
+			Object result = c.invoke(testServiceClass.getName(), "addChatRoom","TestChatRoom", "false");
+			assertEquals("Chatroom TestChatRoom was created!", result);
+			
+			String firstChunk = (String) c.invoke(testServiceClass.getName(), "uploadAttachmentChunk",
+					Base64.getEncoder().encodeToString("Hello ".getBytes(StandardCharsets.UTF_8)));
+			String secondChunk = (String) c.invoke(testServiceClass.getName(), "uploadAttachmentChunk",
+					Base64.getEncoder().encodeToString("World".getBytes(StandardCharsets.UTF_8)));
+			result = c.invoke(testServiceClass.getName(), "sendAttachment", "TestChatRoom", "hello.txt", firstChunk + "," + secondChunk);
+			assertEquals("Message sent!", result);
+			Thread.sleep(2000); //To ensure that message sending has finished
+			
+			String[] resultArray = (String[]) c.invoke(testServiceClass.getName(), "getNewChatRoomMessages", "TestChatRoom");
+			assertEquals(1, resultArray.length);
+			assertTrue(resultArray[0].contains("hello.txt (11 bytes)"));
+			String attachmentId = resultArray[0].substring(resultArray[0].indexOf("(attachment ") + 12, resultArray[0].indexOf(")</i>"));
+			
+			resultArray = (String[]) c.invoke(testServiceClass.getName(), "getAttachmentInfo", attachmentId);
+			assertEquals("hello.txt", resultArray[0]);
+			assertEquals("11", resultArray[1]);
+			
+			result = c.invoke(testServiceClass.getName(), "downloadAttachment", attachmentId, "4", "100");
+			assertEquals("o World", new String(Base64.getDecoder().decode((String) result), StandardCharsets.UTF_8));
+			
+			c.disconnect();
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception: " + e);
+		}
+	}
+	
+	
 	@Test
 	public void testFetchPublicChatrooms() {
 		//1. login as Adam and search for public chatrooms, should contain none
@@ -0,0 +1,77 @@
+package i5.las2peer.services.chatService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DeferredMailboxTest {
+	
+	@Test
+	public void testAppendAndRead() {
+		DeferredMailbox mailbox = new DeferredMailbox();
+		assertEquals(0, mailbox.getNextSequence());
+		assertEquals(0, mailbox.getUnread(0).length);
+		
+		List<ChatRoomMessage> first = messages(0, 3);
+		mailbox = mailbox.append(first, 0, 10);
+		assertEquals(3, mailbox.getNextSequence());
+		assertEquals(3, mailbox.getUnread(0).length);
+		
+		//A reader that took the first two messages only gets the third
+		ChatRoomMessage[] unread = mailbox.getUnread(2);
+		assertEquals(1, unread.length);
+		assertTrue(unread[0] == first.get(2));
+		assertEquals(0, mailbox.getUnread(3).length);
+	}
+	
+	
+	@Test
+	public void testAppendDropsReadMessages() {
+		List<ChatRoomMessage> first = messages(0, 3);
+		DeferredMailbox mailbox = new DeferredMailbox().append(first, 0, 10);
+		
+		//Messages read up to 2 are dropped, the sequence numbers continue
+		List<ChatRoomMessage> second = messages(3, 2);
+		mailbox = mailbox.append(second, 2, 10);
+		assertEquals(5, mailbox.getNextSequence());
+		ChatRoomMessage[] unread = mailbox.getUnread(0);
+		assertEquals(3, unread.length);
+		assertTrue(unread[0] == first.get(2));
+		assertTrue(unread[2] == second.get(1));
+		assertEquals(1, mailbox.getUnread(4).length);
+	}
+	
+	
+	@Test
+	public void testAppendDropsOldestIfFull() {
+		List<ChatRoomMessage> first = messages(0, 4);
+		DeferredMailbox mailbox = new DeferredMailbox().append(first, 0, 3);
+		assertEquals(4, mailbox.getNextSequence());
+		ChatRoomMessage[] unread = mailbox.getUnread(0);
+		assertEquals(3, unread.length);
+		assertTrue(unread[0] == first.get(1));
+		
+		List<ChatRoomMessage> second = messages(4, 2);
+		mailbox = mailbox.append(second, 0, 3);
+		assertEquals(6, mailbox.getNextSequence());
+		unread = mailbox.getUnread(0);
+		assertEquals(3, unread.length);
+		assertTrue(unread[0] == first.get(3));
+		assertTrue(unread[2] == second.get(1));
+		
+		//Read positions keep their meaning after dropping
+		assertEquals(1, mailbox.getUnread(5).length);
+	}
+	
+	
+	private static List<ChatRoomMessage> messages(int first, int count) {
+		List<ChatRoomMessage> messages = new ArrayList<ChatRoomMessage>();
+		for(int i = first; i < first + count; i++)
+			messages.add(new ChatRoomMessage("Message " + i, 1, "TestChatRoom", false));
+		return messages;
+	}
+}
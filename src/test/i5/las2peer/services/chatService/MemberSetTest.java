@@ -0,0 +1,99 @@
+package i5.las2peer.services.chatService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class MemberSetTest {
+	
+	@Test
+	public void testAddAndRemove() {
+		MemberSet members = new MemberSet();
+		assertTrue(members.add(30));
+		assertTrue(members.add(10));
+		assertFalse(members.add(30));
+		for(long id = 100; id < 110; id++) //Grows beyond the initial capacity
+			assertTrue(members.add(id));
+		assertEquals(12, members.size());
+		assertTrue(members.contains(10));
+		assertTrue(members.contains(109));
+		assertFalse(members.contains(20));
+		
+		assertTrue(members.remove(10));
+		assertFalse(members.remove(10));
+		assertFalse(members.contains(10));
+		assertTrue(members.contains(30));
+		assertEquals(11, members.size());
+	}
+	
+	
+	@Test
+	public void testToArrayKeepsOrder() {
+		MemberSet members = new MemberSet();
+		members.add(30);
+		members.add(10);
+		members.add(20);
+		assertEquals(Arrays.asList(30L, 10L, 20L), Arrays.asList(members.toArray()));
+		
+		//Shared until the set changes
+		Long[] first = members.toArray();
+		assertTrue(first == members.toArray());
+		members.remove(10);
+		Long[] second = members.toArray();
+		assertFalse(first == second);
+		assertEquals(Arrays.asList(30L, 20L), Arrays.asList(second));
+		
+		//An up to date array of an equal set is reused, an outdated one is not
+		MemberSet equal = new MemberSet();
+		equal.add(30);
+		equal.add(20);
+		assertTrue(equal.toArray(second) == second);
+		assertFalse(equal.toArray(first) == first);
+	}
+	
+	
+	@Test
+	public void testSerialization() throws Exception {
+		MemberSet members = new MemberSet();
+		for(long id = 10; id > 0; id--)
+			members.add(id);
+		members.remove(5);
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(members);
+		out.close();
+		MemberSet read = (MemberSet) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		
+		assertEquals(9, read.size());
+		assertEquals(Arrays.asList(members.toArray()), Arrays.asList(read.toArray()));
+		for(long id = 1; id <= 10; id++)
+			assertEquals(id != 5, read.contains(id)); //The sorted copy is rebuilt
+		assertTrue(read.add(5));
+		assertTrue(read.add(11));
+		assertTrue(read.contains(5));
+		assertEquals(11, read.size());
+	}
+	
+	
+	@Test
+	public void testSerializationOfEmptySet() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(new MemberSet());
+		out.close();
+		MemberSet read = (MemberSet) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		
+		assertEquals(0, read.size());
+		assertTrue(read.add(1));
+		assertTrue(read.contains(1));
+	}
+}
@@ -0,0 +1,111 @@
+package i5.las2peer.services.chatService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import i5.las2peer.testing.MockAgentFactory;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class OperationLogTest {
+	
+	@Test
+	public void testAppendNumbersOperations() {
+		ChatRoomOperation[] logged = OperationLog.append(new ChatRoomOperation[0], new ChatRoomOperation[] {
+				new ChatRoomOperation(ChatRoomOperation.Type.ADD_MEMBER, 1001),
+				new ChatRoomOperation(ChatRoomOperation.Type.ADD_MEMBER, 1002)}, 0);
+		assertEquals(2, logged.length);
+		assertEquals(1, logged[0].getSequenceNumber());
+		assertEquals(2, logged[1].getSequenceNumber());
+		assertEquals(2, OperationLog.getLastSequence(logged));
+		
+		//Appending keeps the logged operations and continues their numbers
+		ChatRoomOperation[] appended = OperationLog.append(logged, new ChatRoomOperation[] {
+				new ChatRoomOperation(ChatRoomOperation.Type.REMOVE_MEMBER, 1001)}, 2);
+		assertEquals(3, appended.length);
+		assertTrue(appended[0] == logged[0]);
+		assertEquals(3, appended[2].getSequenceNumber());
+		assertEquals(0, OperationLog.getLastSequence(new ChatRoomOperation[0]));
+	}
+	
+	
+	@Test
+	public void testAppendDetectsConcurrentUpdate() {
+		ChatRoomOperation[] logged = {operation(ChatRoomOperation.Type.ADD_MEMBER, 1001, 3)};
+		ChatRoomOperation outdated = new ChatRoomOperation(ChatRoomOperation.Type.ADD_MEMBER, 1002);
+		
+		//The changed room only contains the log up to operation 2, so another node appended in the meantime
+		assertNull(OperationLog.append(logged, new ChatRoomOperation[] {outdated}, 2));
+		assertEquals(0, outdated.getSequenceNumber());
+		
+		//A room containing the whole log may append
+		assertEquals(2, OperationLog.append(logged, new ChatRoomOperation[] {outdated}, 3).length);
+		assertEquals(4, outdated.getSequenceNumber());
+	}
+	
+	
+	@Test
+	public void testCompactKeepsLastOperation() {
+		ChatRoomOperation[] logged = {operation(ChatRoomOperation.Type.ADD_MEMBER, 1001, 1),
+				operation(ChatRoomOperation.Type.ADD_MEMBER, 1002, 2),
+				operation(ChatRoomOperation.Type.REMOVE_MEMBER, 1001, 3)};
+		ChatRoomOperation[] compacted = OperationLog.compact(logged);
+		assertEquals(1, compacted.length);
+		assertEquals(3, OperationLog.getLastSequence(compacted));
+		
+		//The compacted log still tells its end, so numbering and the conflict check continue
+		assertNull(OperationLog.append(compacted, new ChatRoomOperation[] {
+				new ChatRoomOperation(ChatRoomOperation.Type.ADD_MEMBER, 1003)}, 2));
+		ChatRoomOperation[] appended = OperationLog.append(compacted, new ChatRoomOperation[] {
+				new ChatRoomOperation(ChatRoomOperation.Type.ADD_MEMBER, 1003)}, 3);
+		assertEquals(4, OperationLog.getLastSequence(appended));
+	}
+	
+	
+	@Test
+	public void testReplaySkipsOperationsInSnapshot() throws Exception {
+		ChatRoom snapshot = new ChatRoom("TestChatRoom", false, MockAgentFactory.getAdam());
+		snapshot.operationsStored(2, true);
+		ChatRoomOperation[] logged = {operation(ChatRoomOperation.Type.ADD_MEMBER, 1001, 1),
+				operation(ChatRoomOperation.Type.ADD_MEMBER, 1002, 2),
+				operation(ChatRoomOperation.Type.ADD_MEMBER, 1003, 3),
+				operation(ChatRoomOperation.Type.ADD_MEMBER, 1004, 4),
+				operation(ChatRoomOperation.Type.REMOVE_MEMBER, 1003, 5)};
+		
+		assertEquals(3, OperationLog.replay(snapshot, logged));
+		assertEquals(5, snapshot.getLastOperation());
+		assertEquals(2, snapshot.getSize()); //The admin and 1004, the operations 1 and 2 are in the snapshot
+		assertTrue(Arrays.asList(snapshot.getMemberIdList()).contains(1004L));
+		assertEquals(0, snapshot.getPendingOperations().length); //Replayed operations are not logged again
+		
+		//Replaying again changes nothing
+		assertEquals(0, OperationLog.replay(snapshot, logged));
+	}
+	
+	
+	@Test
+	public void testReplayAfterCompaction() throws Exception {
+		ChatRoomOperation[] compacted = OperationLog.compact(new ChatRoomOperation[] {
+				operation(ChatRoomOperation.Type.ADD_MEMBER, 1001, 1),
+				operation(ChatRoomOperation.Type.ADD_MEMBER, 1002, 2)});
+		
+		ChatRoom current = new ChatRoom("TestChatRoom", false, MockAgentFactory.getAdam());
+		current.operationsStored(2, true);
+		assertEquals(0, OperationLog.replay(current, compacted));
+		
+		//A snapshot written before the compaction only misses the kept operation
+		ChatRoom older = new ChatRoom("TestChatRoom", false, MockAgentFactory.getAdam());
+		older.operationsStored(1, true);
+		assertEquals(1, OperationLog.replay(older, compacted));
+		assertEquals(2, older.getLastOperation());
+	}
+	
+	
+	private static ChatRoomOperation operation(ChatRoomOperation.Type type, long agentId, long sequenceNumber) {
+		ChatRoomOperation operation = new ChatRoomOperation(type, agentId);
+		operation.setSequenceNumber(sequenceNumber);
+		return operation;
+	}
+}
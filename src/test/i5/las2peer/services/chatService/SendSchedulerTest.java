@@ -0,0 +1,104 @@
+package i5.las2peer.services.chatService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SendSchedulerTest {
+	
+	private final List<String> granted = Collections.synchronizedList(new ArrayList<String>());
+	
+	
+	@Test
+	public void testTryAcquire() {
+		SendScheduler slots = new SendScheduler(2, 4);
+		assertTrue(slots.tryAcquire(SendScheduler.Lane.BULK));
+		assertTrue(slots.tryAcquire(SendScheduler.Lane.PRIORITY));
+		assertFalse(slots.tryAcquire(SendScheduler.Lane.PRIORITY));
+		slots.release();
+		assertTrue(slots.tryAcquire(SendScheduler.Lane.PRIORITY));
+	}
+	
+	
+	@Test
+	public void testPriorityWeighting() throws Exception {
+		//One slot, the priority lane gets two slots for each slot of the bulk lane
+		SendScheduler slots = new SendScheduler(1, 2);
+		assertTrue(slots.tryAcquire(SendScheduler.Lane.PRIORITY));
+		startWaiting(slots, SendScheduler.Lane.BULK, "TestChatRoom", "B1");
+		startWaiting(slots, SendScheduler.Lane.BULK, "TestChatRoom", "B2");
+		startWaiting(slots, SendScheduler.Lane.PRIORITY, null, "P1");
+		startWaiting(slots, SendScheduler.Lane.PRIORITY, null, "P2");
+		startWaiting(slots, SendScheduler.Lane.PRIORITY, null, "P3");
+		
+		//A waiting lane blocks senders that try to skip the queue
+		assertFalse(slots.tryAcquire(SendScheduler.Lane.BULK));
+		
+		releaseAll(slots, 5);
+		assertEquals(Arrays.asList("P1", "P2", "B1", "P3", "B2"), granted);
+	}
+	
+	
+	@Test
+	public void testChatRoomsTakeTurns() throws Exception {
+		SendScheduler slots = new SendScheduler(1, 2);
+		assertTrue(slots.tryAcquire(SendScheduler.Lane.BULK));
+		startWaiting(slots, SendScheduler.Lane.BULK, "BusyRoom", "A1");
+		startWaiting(slots, SendScheduler.Lane.BULK, "BusyRoom", "A2");
+		startWaiting(slots, SendScheduler.Lane.BULK, "BusyRoom", "A3");
+		startWaiting(slots, SendScheduler.Lane.BULK, "QuietRoom", "B1");
+		
+		releaseAll(slots, 4);
+		assertEquals(Arrays.asList("A1", "B1", "A2", "A3"), granted);
+	}
+	
+	
+	@Test
+	public void testAcquireTimesOut() throws Exception {
+		SendScheduler slots = new SendScheduler(1, 2);
+		assertTrue(slots.tryAcquire(SendScheduler.Lane.PRIORITY));
+		assertFalse(slots.acquire(SendScheduler.Lane.BULK, "TestChatRoom", 50));
+		
+		//The timed out sender left the queue
+		slots.release();
+		assertTrue(slots.tryAcquire(SendScheduler.Lane.BULK));
+	}
+	
+	
+	private void startWaiting(final SendScheduler slots, final SendScheduler.Lane lane, final String chatRoomName,
+			final String name) throws InterruptedException {
+		Thread sender = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				try {
+					if(slots.acquire(lane, chatRoomName, 10000))
+						granted.add(name); //The slot is returned by the test
+				} catch (InterruptedException e) {
+					//Ends the sender
+				}
+			}
+		});
+		sender.setDaemon(true);
+		sender.start();
+		//Queued in the order the senders are started
+		while(sender.getState() != Thread.State.TIMED_WAITING)
+			Thread.sleep(1);
+	}
+	
+	
+	private void releaseAll(SendScheduler slots, int senders) throws InterruptedException {
+		for(int i = 1; i <= senders; i++){
+			slots.release();
+			long deadline = System.currentTimeMillis() + 5000;
+			while(granted.size() < i && System.currentTimeMillis() < deadline)
+				Thread.sleep(1);
+		}
+	}
+}